@@ -3,7 +3,11 @@ package price;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
 @Configuration
 @SpringBootApplication
@@ -13,4 +17,38 @@ public class Application {
     public static void main(String[] args) {
         SpringApplication.run(Application.class, args);
     }
+
+    /**
+     * Streamed responses run as async requests, which the container would otherwise
+     * cut off after its own default timeout however much is left to write. Requests
+     * answered with a DeferredResult set their own timeout. Streamed responses are
+     * written by a bounded pool rather than a new thread each.
+     * @return The MVC configuration
+     */
+    @Bean
+    public WebMvcConfigurerAdapter asyncConfigurer() {
+        return new WebMvcConfigurerAdapter() {
+            @Override
+            public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+                configurer.setDefaultTimeout(Config.STREAM_REQUEST_TIMEOUT);
+                configurer.setTaskExecutor(streamExecutor());
+            }
+        };
+    }
+
+    /**
+     * The threads which write streamed responses. Once they are all busy and
+     * Config.STREAM_QUEUE_SIZE responses are waiting, further ones are turned away.
+     * @return The executor
+     */
+    @Bean
+    public ThreadPoolTaskExecutor streamExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Config.STREAM_THREADS);
+        executor.setMaxPoolSize(Config.STREAM_THREADS);
+        executor.setQueueCapacity(Config.STREAM_QUEUE_SIZE);
+        executor.setThreadNamePrefix("Stream ");
+        executor.setDaemon(true);
+        return executor;
+    }
 }
@@ -0,0 +1,66 @@
+package price;
+
+import java.util.logging.Logger;
+
+/**
+ * Background thread which folds the append-only logs written by CacheBackupHandler
+ * back into their partition files once a log holds more than
+ * Config.COMPACTION_GARBAGE_RATIO of its partition's bytes, and splits partitions
+ * which have grown past Config.PARTITION_SPLIT_BYTES.
+ */
+public class BackupCompactor extends Thread {
+
+    final private CacheBackupHandler cacheBackupHandler;
+    private final static Logger LOGGER = Logger.getLogger(BackupCompactor.class.getName());
+
+    /**
+     * Class constructor
+     * @param cacheBackupHandler The handler whose partitions should be compacted
+     */
+    public BackupCompactor(CacheBackupHandler cacheBackupHandler) {
+        this.cacheBackupHandler = cacheBackupHandler;
+        this.setName("Backup Compactor");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Entry point to start a new thread
+     */
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                Thread.sleep(Config.COMPACTION_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            compactPartitions();
+        }
+    }
+
+    /**
+     * Make one pass over every partition, compacting and splitting those which need it.
+     * A partition split in this pass is looked at again in the next one.
+     */
+    public void compactPartitions() {
+        int compacted = 0;
+        int split = 0;
+
+        for (int i : cacheBackupHandler.getPartitions()) {
+            if (cacheBackupHandler.needsCompaction(i)) {
+                cacheBackupHandler.compactPartition(i);
+                compacted++;
+            }
+            if (cacheBackupHandler.needsSplit(i) && cacheBackupHandler.splitPartition(i)) {
+                split++;
+            }
+        }
+
+        if (compacted > 0) {
+            LOGGER.info("Compacted " + compacted + " backup partitions");
+        }
+        if (split > 0) {
+            LOGGER.info("Split " + split + " backup partitions");
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package price;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+
+/*
+ * Backup partitions are kept in numbered generation directories under
+ * Config.GENERATIONS_DIR. Every start of the service opens a new, empty generation
+ * which all writes go to. The generations left by earlier runs form a read-only
+ * snapshot that the CacheRebuilder loads the cache from, so nothing has to be
+ * copied before the service can start.
+ *
+ * A partition which hasn't been written to yet in the current generation is read
+ * from the newest snapshot generation that has it. The first write to a partition
+ * moves it into the current generation (see CacheBackupHandler), and once the
+ * rebuild is finished every remaining partition is moved over and the snapshot
+ * generations are deleted.
+ */
+
+public class BackupGenerations {
+
+    final private File generationsDir;
+    final private File currentDir;
+    final private List<File> snapshotDirs;
+    final private AtomicIntegerArray snapshotOwners;
+    final private int partitionCapacity;
+    private final static Logger LOGGER = Logger.getLogger(BackupGenerations.class.getName());
+
+    private static final int UNKNOWN = -2;
+    private static final int NONE = -1;
+
+    /**
+     * Class constructor - opens a new generation after the newest one on disk. Partition
+     * files left directly in backupDir by older versions are moved into a first generation.
+     * @param backupDir The root directory for backup files
+     * @param partitionCapacity One more than the highest partition number the backup can use
+     * @throws IOException if the new generation can't be created
+     */
+    public BackupGenerations(File backupDir, int partitionCapacity) throws IOException {
+        this.partitionCapacity = partitionCapacity;
+        generationsDir = new File(backupDir, Config.GENERATIONS_DIR);
+        generationsDir.mkdirs();
+
+        List<Integer> existing = listGenerations();
+        if (existing.isEmpty()) {
+            moveLegacyPartitions(backupDir, new File(generationsDir, "0"));
+            existing = listGenerations();
+        }
+
+        // Newest first
+        Collections.sort(existing, Collections.reverseOrder());
+        snapshotDirs = new ArrayList<File>();
+        for (Integer generation : existing) {
+            snapshotDirs.add(new File(generationsDir, Integer.toString(generation)));
+        }
+
+        int current = existing.isEmpty() ? 0 : existing.get(0) + 1;
+        currentDir = new File(generationsDir, Integer.toString(current));
+        Files.createDirectories(currentDir.toPath());
+
+        snapshotOwners = new AtomicIntegerArray(partitionCapacity);
+        for (int i = 0; i < partitionCapacity; i++) {
+            snapshotOwners.set(i, snapshotDirs.isEmpty() ? NONE : UNKNOWN);
+        }
+
+        LOGGER.info("Opened backup generation " + current + " with " + snapshotDirs.size() + " snapshot generations");
+    }
+
+    /**
+     * Get the directory of the generation which all writes go to
+     * @return The current generation's directory
+     */
+    public File getCurrentDir() {
+        return currentDir;
+    }
+
+    /**
+     * Get the newest snapshot generation which holds a partition. The snapshot never
+     * changes, so the answer is worked out once per partition and remembered.
+     * @param partitionNumber The partition in question
+     * @return The generation's directory, or null if no snapshot generation holds the partition
+     */
+    public File getSnapshotDir(int partitionNumber) {
+        int owner = snapshotOwners.get(partitionNumber);
+
+        if (owner == UNKNOWN) {
+            owner = NONE;
+            for (int i = 0; i < snapshotDirs.size(); i++) {
+                if (holdsPartition(snapshotDirs.get(i), partitionNumber)) {
+                    owner = i;
+                    break;
+                }
+            }
+            snapshotOwners.set(partitionNumber, owner);
+        }
+
+        return owner == NONE ? null : snapshotDirs.get(owner);
+    }
+
+    /**
+     * Returns true if there is a snapshot from an earlier run to rebuild the cache from
+     * @return Returns true if a snapshot generation exists
+     */
+    public boolean hasSnapshot() {
+        return !snapshotDirs.isEmpty();
+    }
+
+    /**
+     * Delete every snapshot generation. Must only be called once all partitions have
+     * been moved into the current generation and nothing reads the snapshot any more.
+     */
+    public void deleteSnapshot() {
+        for (File dir : snapshotDirs) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.delete()) {
+                        LOGGER.warning("Could not delete " + file.getPath());
+                    }
+                }
+            }
+            if (!dir.delete()) {
+                LOGGER.warning("Could not delete backup generation " + dir.getPath());
+            }
+        }
+
+        LOGGER.info("Deleted " + snapshotDirs.size() + " old backup generations");
+        snapshotDirs.clear();
+        for (int i = 0; i < partitionCapacity; i++) {
+            snapshotOwners.set(i, NONE);
+        }
+    }
+
+    private boolean holdsPartition(File dir, int partitionNumber) {
+        String name = Config.BACKUP_FILENAME + Integer.toString(partitionNumber);
+        return new File(dir, name).exists() || new File(dir, name + Config.LOG_SUFFIX).exists();
+    }
+
+    private List<Integer> listGenerations() {
+        List<Integer> generations = new ArrayList<Integer>();
+        String[] names = generationsDir.list();
+
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    generations.add(Integer.parseInt(name));
+                } catch (NumberFormatException e) {
+                    // Not a generation directory
+                }
+            }
+        }
+
+        return generations;
+    }
+
+    private void moveLegacyPartitions(File backupDir, File firstGeneration) throws IOException {
+        File[] files = backupDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        int moved = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile() || !name.startsWith(Config.BACKUP_FILENAME)
+                    || name.endsWith(".old") || name.endsWith(".tmp")) {
+                continue;
+            }
+
+            Files.createDirectories(firstGeneration.toPath());
+            Files.move(file.toPath(), new File(firstGeneration, name).toPath());
+            moved++;
+        }
+
+        if (moved > 0) {
+            LOGGER.info("Moved " + moved + " backup files into backup generation " + firstGeneration.getName());
+        }
+    }
+}
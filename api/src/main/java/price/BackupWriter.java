@@ -0,0 +1,260 @@
+package price;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background thread which writes backup mutations to the partition logs, so that
+ * requests only ever queue them in memory. Mutations are coalesced per SKU, so only
+ * the latest write to a SKU reaches the disk, and are grouped by partition so that
+ * each partition's log is appended to once per flush.
+ *
+ * At most Config.BACKUP_QUEUE_SIZE SKUs can be waiting to be written. Callers block
+ * when the queue is full, which slows requests down to the speed of the disk rather
+ * than letting the queue grow without bound.
+ */
+public class BackupWriter extends Thread {
+
+    final private CacheBackupHandler cacheBackupHandler;
+    final private ConcurrentMap<String, Product> pending = new ConcurrentHashMap<String, Product>();
+    final private Semaphore capacity;
+    final private int wakeThreshold;
+    final private Object flushLock = new Object();
+    private volatile boolean closed = false;
+    private long flushes = 0;
+    private final static Logger LOGGER = Logger.getLogger(BackupWriter.class.getName());
+
+    /**
+     * Class constructor
+     * @param cacheBackupHandler The handler whose partition logs mutations are written to
+     */
+    public BackupWriter(CacheBackupHandler cacheBackupHandler) {
+        this.cacheBackupHandler = cacheBackupHandler;
+        this.capacity = new Semaphore(Config.BACKUP_QUEUE_SIZE);
+        this.wakeThreshold = Config.BACKUP_QUEUE_SIZE / 2;
+        this.setName("Backup Writer");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Entry point to start a new thread
+     */
+    public void run() {
+        while (true) {
+            if (!closed) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Config.BACKUP_FLUSH_INTERVAL));
+            }
+
+            boolean drained = closed;
+            boolean written = false;
+            try {
+                written = flush();
+            } catch (RuntimeException e) {
+                // Whatever wasn't written stays queued for the next pass
+                LOGGER.log(Level.SEVERE, "Backup writer failed to flush", e);
+            }
+
+            synchronized (this) {
+                flushes++;
+                notifyAll();
+            }
+
+            if (drained && pending.isEmpty()) {
+                LOGGER.info("Backup writer drained");
+                return;
+            }
+            if (drained && !written) {
+                // Retrying forever would hold up shutdown
+                LOGGER.severe("Backup writer stopped with " + pending.size() + " writes it could not make");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue a product to be written to the backup, replacing any write to the same
+     * SKU still waiting. Blocks while the queue is full. Once the writer has stopped
+     * the product is written straight through instead.
+     * @param sku The SKU written
+     * @param product The product, or PartitionLog.TOMBSTONE to delete the SKU
+     */
+    public void enqueue(String sku, Product product) {
+        boolean interrupted = false;
+        while (true) {
+            if (closed || !isAlive()) {
+                // Nothing is left to drain the queue
+                writeThrough(sku, product);
+                break;
+            }
+
+            try {
+                if (capacity.tryAcquire(Config.BACKUP_FLUSH_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    queue(sku, product);
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Must be called holding a permit
+     */
+    private void queue(String sku, Product product) {
+        if (pending.put(sku, product) != null) {
+            // The earlier write held a place in the queue already
+            capacity.release();
+        }
+
+        if (capacity.availablePermits() < wakeThreshold) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Get a write to a SKU which hasn't reached the disk yet
+     * @param sku The SKU in question
+     * @return The product waiting to be written, PartitionLog.TOMBSTONE if the SKU is
+     * waiting to be deleted, or null if nothing is waiting
+     */
+    public Product getPending(String sku) {
+        return pending.get(sku);
+    }
+
+    /**
+     * Get every write still waiting for the SKUs a test picks out
+     * @param skus The test, called once for each SKU waiting to be written
+     * @return SKU to product waiting to be written, or PartitionLog.TOMBSTONE if the
+     * SKU is waiting to be deleted
+     */
+    public Map<String, Product> getPending(Predicate<String> skus) {
+        Map<String, Product> found = new HashMap<String, Product>();
+        for (Map.Entry<String, Product> entry : pending.entrySet()) {
+            if (skus.test(entry.getKey())) {
+                found.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Wait until every mutation queued before this call has been written
+     */
+    public void awaitFlush() {
+        if (!isAlive()) {
+            // Nothing else will write the queue
+            flush();
+            return;
+        }
+
+        synchronized (this) {
+            // The pass running now may have started before the last enqueue
+            long target = flushes + 2;
+            while (flushes < target && isAlive()) {
+                LockSupport.unpark(this);
+                try {
+                    wait(Config.BACKUP_FLUSH_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write everything still queued and stop. Blocks until the queue has drained.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Catch anything queued as the writer stopped
+        flush();
+    }
+
+    /*
+     * Write one product on the caller's thread, dropping any older write to the same
+     * SKU left in the queue so that it can't be written over the new one later
+     */
+    private void writeThrough(String sku, Product product) {
+        synchronized (flushLock) {
+            cacheBackupHandler.writeBatch(cacheBackupHandler.getPartitionNumber(sku),
+                    Collections.singletonList(new SimpleImmutableEntry<String, Product>(sku, product)));
+
+            if (pending.remove(sku) != null) {
+                capacity.release();
+            }
+        }
+    }
+
+    /*
+     * Entries are only removed from the queue once written, and only if they haven't
+     * been replaced since, so a read never falls between the queue and the log. A
+     * partition which can't be written is left queued to be tried again next time.
+     * Flushes are run one at a time so that an older write can't land after a newer
+     * one. Returns true if every partition was written.
+     */
+    private boolean flush() {
+        synchronized (flushLock) {
+            if (pending.isEmpty()) {
+                return true;
+            }
+
+            Map<Integer, List<Map.Entry<String, Product>>> partitions = new HashMap<Integer, List<Map.Entry<String, Product>>>();
+            for (Map.Entry<String, Product> entry : pending.entrySet()) {
+                int partitionNumber = cacheBackupHandler.getPartitionNumber(entry.getKey());
+                List<Map.Entry<String, Product>> batch = partitions.get(partitionNumber);
+                if (batch == null) {
+                    batch = new ArrayList<Map.Entry<String, Product>>();
+                    partitions.put(partitionNumber, batch);
+                }
+                batch.add(new SimpleImmutableEntry<String, Product>(entry.getKey(), entry.getValue()));
+            }
+
+            boolean written = true;
+            for (Map.Entry<Integer, List<Map.Entry<String, Product>>> partition : partitions.entrySet()) {
+                try {
+                    if (!cacheBackupHandler.writeBatch(partition.getKey(), partition.getValue())) {
+                        written = false;
+                        continue;
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Failed to write " + partition.getValue().size()
+                            + " items to backup log " + partition.getKey(), e);
+                    written = false;
+                    continue;
+                }
+
+                for (Map.Entry<String, Product> entry : partition.getValue()) {
+                    if (pending.remove(entry.getKey(), entry.getValue())) {
+                        capacity.release();
+                    }
+                }
+            }
+            return written;
+        }
+    }
+}
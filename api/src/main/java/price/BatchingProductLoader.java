@@ -0,0 +1,127 @@
+package price;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Micro-batches single product loads into BatchGetItem requests. A load waits up to
+ * Config.DB_BATCH_WINDOW for other loads to join its batch, and a batch is sent as
+ * soon as it holds Config.DB_BATCH_SIZE SKUs. Concurrent loads of the same SKU share
+ * one slot in the batch. Batches are sent with getProductsAsync(), so no thread
+ * waits on the database while a batch is in flight.
+ */
+public class BatchingProductLoader {
+
+    final private DBConnection conn;
+    final private ScheduledExecutorService scheduler;
+    private Map<String, CompletableFuture<Product>> pending; // guarded by this
+
+    /**
+     * Class constructor
+     * @param conn The connection used to resolve each batch
+     */
+    public BatchingProductLoader(DBConnection conn) {
+        this.conn = conn;
+        this.pending = new HashMap<String, CompletableFuture<Product>>();
+        this.scheduler = new ScheduledThreadPoolExecutor(Config.DB_BATCH_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("DB Batcher %d").setDaemon(true).build());
+    }
+
+    /**
+     * Load a product as part of the next batch
+     * @param sku The sku of the product
+     * @return A future which completes with the Product, or exceptionally if it
+     * wasn't found or the batch request failed
+     */
+    public CompletableFuture<Product> load(String sku) {
+        CompletableFuture<Product> future;
+        Map<String, CompletableFuture<Product>> full = null;
+
+        synchronized (this) {
+            future = pending.get(sku);
+            if (future != null) {
+                return future;
+            }
+
+            future = new CompletableFuture<Product>();
+            if (pending.isEmpty()) {
+                // The first load of a batch starts its window
+                final Map<String, CompletableFuture<Product>> batch = pending;
+                scheduler.schedule(() -> flush(batch), Config.DB_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+            }
+            pending.put(sku, future);
+
+            if (pending.size() >= Config.DB_BATCH_SIZE) {
+                full = pending;
+                pending = new HashMap<String, CompletableFuture<Product>>();
+            }
+        }
+
+        if (full != null) {
+            // The load which fills a batch sends it rather than waiting for the window
+            resolve(full);
+        }
+
+        return future;
+    }
+
+    /**
+     * Stop sending batches
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void flush(Map<String, CompletableFuture<Product>> batch) {
+        synchronized (this) {
+            if (pending != batch) {
+                // Already sent because it filled up
+                return;
+            }
+            pending = new HashMap<String, CompletableFuture<Product>>();
+        }
+
+        resolve(batch);
+    }
+
+    private void resolve(Map<String, CompletableFuture<Product>> batch) {
+        try {
+            conn.makeConnection();
+        } catch (ResourceUnavailableException e) {
+            fail(batch, e);
+            return;
+        }
+
+        conn.getProductsAsync(batch.keySet()).whenComplete((products, e) -> {
+            if (e != null) {
+                fail(batch, e);
+            } else {
+                complete(batch, products);
+            }
+        });
+    }
+
+    private void fail(Map<String, CompletableFuture<Product>> batch, Throwable e) {
+        for (CompletableFuture<Product> future : batch.values()) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void complete(Map<String, CompletableFuture<Product>> batch, Map<String, Product> products) {
+        for (Map.Entry<String, CompletableFuture<Product>> entry : batch.entrySet()) {
+            Product product = products.get(entry.getKey());
+            if (product != null) {
+                entry.getValue().complete(product);
+            } else {
+                // Item with SKU not found
+                entry.getValue().completeExceptionally(new Exception("Item " + entry.getKey() + " not found"));
+            }
+        }
+    }
+}
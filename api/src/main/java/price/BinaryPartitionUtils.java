@@ -0,0 +1,455 @@
+package price;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import static java.nio.file.StandardCopyOption.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.UnsignedBytes;
+
+/*
+ * Binary partition layout (all integers big-endian):
+ *
+ *   int     MAGIC
+ *   int     number of records (n)
+ *   int[n]  absolute offset of each record, ordered by SKU
+ *   records, each:
+ *     short   SKU length, SKU bytes (UTF-8)
+ *     int     price scale
+ *     byte    unscaled price length, unscaled price bytes (two's complement)
+ *     short   type length (-1 when null), type bytes (UTF-8)
+ *
+ * Records are written in SKU order so the offset table doubles as a sorted index
+ * that can be binary searched without decoding any other record.
+ */
+
+public class BinaryPartitionUtils {
+
+    public static final int MAGIC = 0x50524331; // "PRC1"
+
+    private static final int HEADER_SIZE = 8;
+    private static final Comparator<byte[]> SKU_ORDER = UnsignedBytes.lexicographicalComparator();
+
+    /**
+     * Returns true if the file starts with the binary partition magic number
+     * @param file The file to check
+     * @return Returns true if the file is a binary partition file
+     */
+    public static boolean isBinaryPartitionFile(File file) {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        InputStream in = null;
+        try {
+            in = Files.newInputStream(file.toPath());
+            byte[] magic = new byte[4];
+            if (in.read(magic) != magic.length) {
+                return false;
+            }
+            return ByteBuffer.wrap(magic).getInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a binary partition file into memory
+     * @param file The file to read from
+     * @return A buffer containing the whole partition, or null if the file could not be read
+     */
+    public static ByteBuffer readPartitionFile(File file) {
+        try {
+            return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } catch (Exception e) {
+            System.out.println("Could not read cache backup file "
+                    + file.getName()
+                    + " (or file hasn't been created yet)");
+            return null;
+        }
+    }
+
+    /**
+     * Binary search a partition for a single Product without decoding the rest of the partition
+     * @param partition A buffer containing a binary partition
+     * @param sku The SKU of the Product in question
+     * @return The Product, or null if it isn't in the partition
+     */
+    public static Product findProduct(ByteBuffer partition, String sku) {
+        if (isLegacyJSON(partition)) {
+            for (Product product : readLegacyJSON(partition)) {
+                if (sku.equals(product.getSku())) {
+                    return product;
+                }
+            }
+            return null;
+        }
+        if (partition == null || partition.limit() < HEADER_SIZE || partition.getInt(0) != MAGIC) {
+            return null;
+        }
+
+        byte[] target = sku.getBytes(Charsets.UTF_8);
+        int count = partition.getInt(4);
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = partition.getInt(HEADER_SIZE + mid * 4);
+            int cmp = compareSku(partition, offset, target);
+
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                ByteBuffer record = partition.duplicate();
+                record.position(offset);
+                return readRecord(record);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Decode every Product in a partition
+     * @param partition A buffer containing a binary partition
+     * @return Returns an ArrayList<Product> containing each Product in the partition
+     */
+    public static ArrayList<Product> readProducts(ByteBuffer partition) {
+        if (isLegacyJSON(partition)) {
+            return readLegacyJSON(partition);
+        }
+
+        ArrayList<Product> products = new ArrayList<Product>();
+
+        if (partition == null || partition.limit() < HEADER_SIZE || partition.getInt(0) != MAGIC) {
+            return products;
+        }
+
+        int count = partition.getInt(4);
+        ByteBuffer records = partition.duplicate();
+        records.position(HEADER_SIZE + count * 4);
+
+        try {
+            for (int i = 0; i < count; i++) {
+                products.add(readRecord(records));
+            }
+        } catch (BufferUnderflowException e) {
+            System.out.println("Binary partition is truncated, read " + products.size() + " of " + count + " records");
+        }
+
+        return products;
+    }
+
+    /**
+     * Read the SKU of every Product in a partition from its index, without decoding
+     * the rest of each record
+     * @param partition A buffer containing a binary partition
+     * @return Returns an ArrayList<String> containing each SKU in the partition
+     */
+    public static ArrayList<String> readSkus(ByteBuffer partition) {
+        ArrayList<String> skus = new ArrayList<String>();
+
+        if (isLegacyJSON(partition)) {
+            for (Product product : readLegacyJSON(partition)) {
+                skus.add(product.getSku());
+            }
+            return skus;
+        }
+        if (partition == null || partition.limit() < HEADER_SIZE || partition.getInt(0) != MAGIC) {
+            return skus;
+        }
+
+        int count = partition.getInt(4);
+        try {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer record = partition.duplicate();
+                record.position(partition.getInt(HEADER_SIZE + i * 4));
+                skus.add(readSku(record));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            System.out.println("Binary partition is truncated, read " + skus.size() + " of " + count + " SKUs");
+        }
+
+        return skus;
+    }
+
+    /**
+     * Read and decode a binary partition file
+     * @param file The file to read from
+     * @return Returns an ArrayList<Product> containing each Product in the file
+     */
+    public static ArrayList<Product> readProductsFromBinaryFile(File file) {
+        return readProducts(readPartitionFile(file));
+    }
+
+    /**
+     * Encode a list of Products as a binary partition and write it to a file. The file
+     * is written next to its destination and then renamed over it so that readers never
+     * see a partially written partition.
+     * @param products The products to encode and write
+     * @param file The file to write to
+     */
+    public static void writeProductsToBinaryFile(List<Product> products, File file) {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(encodePartition(products));
+            out.close();
+            out = null;
+            Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Failed to serialize products");
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Remove a Product from a binary partition file
+     * @param sku The SKU of the product to try removing
+     * @param file The file to remove from
+     */
+    public static void removeProductFromBinaryFileBySKU(String sku, File file) {
+        ArrayList<Product> products = readProductsFromBinaryFile(file);
+        int size = products.size();
+
+        for (int i = size - 1; i >= 0; i--) {
+            if (sku.equals(products.get(i).getSku())) {
+                products.remove(i);
+            }
+        }
+
+        if (products.size() != size) {
+            writeProductsToBinaryFile(products, file);
+        }
+    }
+
+    /**
+     * Convert a JSON backup file written by CacheBackupUtils into a binary partition,
+     * replacing the JSON file in place. A JSON file which can't be read in full is
+     * left as it is.
+     * @param file The JSON file to convert
+     * @return Returns true if the file was converted
+     */
+    public static boolean convertJSONFileToBinary(File file) {
+        if (!file.exists() || isBinaryPartitionFile(file)) {
+            return false;
+        }
+
+        ArrayList<Product> products;
+        try {
+            products = CacheBackupUtils.readProductsFromJSONFileOrFail(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not read JSON backup file " + file.getName() + ", leaving it unconverted");
+            return false;
+        }
+
+        writeProductsToBinaryFile(products, file);
+        return isBinaryPartitionFile(file);
+    }
+
+    /**
+     * Encode a list of Products as a binary partition. Duplicate SKUs are collapsed,
+     * keeping the last occurrence.
+     * @param products The products to encode
+     * @return The encoded partition
+     * @throws IOException
+     */
+    static byte[] encodePartition(List<Product> products) throws IOException {
+        // Sort by SKU bytes, last write wins for duplicates
+        TreeMap<byte[], Product> bySku = new TreeMap<byte[], Product>(SKU_ORDER);
+        for (Product product : products) {
+            bySku.put(product.getSku().getBytes(Charsets.UTF_8), product);
+        }
+        List<Product> sorted = new ArrayList<Product>(bySku.values());
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordsOut = new DataOutputStream(records);
+        int[] offsets = new int[sorted.size()];
+        int base = HEADER_SIZE + sorted.size() * 4;
+
+        for (int i = 0; i < sorted.size(); i++) {
+            offsets[i] = base + recordsOut.size();
+            writeRecord(recordsOut, sorted.get(i));
+        }
+        recordsOut.flush();
+
+        ByteArrayOutputStream partition = new ByteArrayOutputStream(base + records.size());
+        DataOutputStream out = new DataOutputStream(partition);
+        out.writeInt(MAGIC);
+        out.writeInt(sorted.size());
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        records.writeTo(out);
+        out.flush();
+
+        return partition.toByteArray();
+    }
+
+    /**
+     * Encode a single Product record
+     * @param out The stream to write to
+     * @param product The product to encode
+     * @throws IOException
+     */
+    static void writeRecord(DataOutputStream out, Product product) throws IOException {
+        writeSku(out, product.getSku());
+
+        BigDecimal price = product.getPrice();
+        BigInteger unscaled = price == null ? BigInteger.ZERO : price.unscaledValue();
+        byte[] unscaledBytes = unscaled.toByteArray();
+        if (unscaledBytes.length > Byte.MAX_VALUE) {
+            throw new IOException("Price of " + product.getSku() + " is too large to encode");
+        }
+        out.writeInt(price == null ? Integer.MIN_VALUE : price.scale());
+        out.writeByte(unscaledBytes.length);
+        out.write(unscaledBytes);
+
+        if (product.getType() == null) {
+            out.writeShort(-1);
+        } else {
+            byte[] type = product.getType().getBytes(Charsets.UTF_8);
+            out.writeShort(type.length);
+            out.write(type);
+        }
+    }
+
+    /**
+     * Encode a length prefixed SKU
+     * @param out The stream to write to
+     * @param sku The SKU to encode
+     * @throws IOException
+     */
+    static void writeSku(DataOutputStream out, String sku) throws IOException {
+        byte[] skuBytes = sku.getBytes(Charsets.UTF_8);
+        if (skuBytes.length > Short.MAX_VALUE) {
+            throw new IOException("SKU is too long to encode");
+        }
+        out.writeShort(skuBytes.length);
+        out.write(skuBytes);
+    }
+
+    /**
+     * Decode a single Product record at the buffer's position, advancing the position
+     * past the record.
+     * @param in The buffer to read from
+     * @return The decoded Product
+     */
+    static Product readRecord(ByteBuffer in) {
+        String sku = readSku(in);
+
+        int scale = in.getInt();
+        byte[] unscaled = new byte[in.get()];
+        in.get(unscaled);
+        BigDecimal price = scale == Integer.MIN_VALUE ? null : new BigDecimal(new BigInteger(unscaled), scale);
+
+        String type = null;
+        short typeLength = in.getShort();
+        if (typeLength >= 0) {
+            byte[] typeBytes = new byte[typeLength];
+            in.get(typeBytes);
+            type = new String(typeBytes, Charsets.UTF_8);
+        }
+
+        return new Product(sku, price, type);
+    }
+
+    /**
+     * Decode a length prefixed SKU at the buffer's position
+     * @param in The buffer to read from
+     * @return The decoded SKU
+     */
+    static String readSku(ByteBuffer in) {
+        byte[] skuBytes = new byte[in.getShort()];
+        in.get(skuBytes);
+        return new String(skuBytes, Charsets.UTF_8);
+    }
+
+    /**
+     * Returns true if a partition is still in the JSON format written by CacheBackupUtils
+     * @param partition A buffer containing a partition file
+     * @return Returns true if the partition is a JSON array
+     */
+    static boolean isLegacyJSON(ByteBuffer partition) {
+        if (partition == null) {
+            return false;
+        }
+
+        for (int i = 0; i < partition.limit(); i++) {
+            byte b = partition.get(i);
+            if (!Character.isWhitespace(b)) {
+                return b == '[';
+            }
+        }
+
+        return false;
+    }
+
+    private static ArrayList<Product> readLegacyJSON(ByteBuffer partition) {
+        byte[] contents = new byte[partition.limit()];
+        ByteBuffer in = partition.duplicate();
+        in.position(0);
+        in.get(contents);
+
+        try {
+            return new ArrayList<Product>(CacheBackupUtils.readJsonStream(new ByteArrayInputStream(contents)));
+        } catch (Exception e) {
+            System.out.println("Could not read JSON cache backup");
+            return new ArrayList<Product>();
+        }
+    }
+
+    /**
+     * Compare the SKU of the record at an offset with a target SKU, byte by byte,
+     * without decoding it.
+     */
+    private static int compareSku(ByteBuffer partition, int offset, byte[] target) {
+        int length = partition.getShort(offset);
+        int start = offset + 2;
+        int common = Math.min(length, target.length);
+
+        for (int i = 0; i < common; i++) {
+            int cmp = UnsignedBytes.compare(partition.get(start + i), target[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+
+        return Integer.compare(length, target.length);
+    }
+}
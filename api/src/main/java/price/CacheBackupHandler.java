@@ -1,270 +1,1195 @@
 package price;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import static java.nio.file.StandardCopyOption.*;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.google.common.hash.BloomFilter;
-import com.google.common.hash.Funnel;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
-import com.google.common.hash.PrimitiveSink;
+import com.google.common.util.concurrent.Striped;
 
 
 public class CacheBackupHandler {
 
     final private File backupDir;
-    final private File cachedFile;
-    final private File invalidFile;
+    final private File filterFile;
+    final private File sketchFile;
+    final private File heatFile;
+    final private File layoutFile;
 
-    private BloomFilter<String> cached;
-    private BloomFilter<String> invalid;
-     final private Funnel<String> strFunnel;
+    private volatile CuckooFilter filter;
+    private volatile Set<Integer> filterScanned = null; // Base partitions a filter refresh has read
+    private volatile List<Map.Entry<String, Boolean>> filterChanges = null; // SKUs written to or deleted from them since
+    final private FrequencySketch sketch;
+    final private PartitionHeat heat;
+    final private PartitionLayout layout;
     final private HashFunction hf;
+    final private PartitionReader partitionReader;
+    final private LoadingCache<File, PartitionLogIndex> logIndexes;
+    final private Striped<ReadWriteLock> partitionLocks;
+    final private AtomicLongArray logSizes;
+    final private BackupGenerations generations;
+    final private PartitionBitmap materialized;
+    final private AtomicBoolean filterDirty = new AtomicBoolean(false);
+    final private ReadWriteLock filterRefreshLock = new ReentrantReadWriteLock();
+    final private BackupWriter backupWriter;
 
     /**
      * Class constructor - provides utilities for creating, retrieving and modifying
-     * backups of the cache in an efficient manner and maintaining a pair of bloom filters
-     * which are used to quickly determine whether an item is in the backup.
+     * backups of the cache in an efficient manner and maintaining a cuckoo filter which
+     * is used to quickly determine whether an item is in the backup. The popularity
+     * of each SKU and partition is kept alongside the filter so it survives a restart,
+     * as is the layout of the partitions.
      * @param backupDir The root directory for backup files
      */
     public CacheBackupHandler(File backupDir) {
         this.backupDir = backupDir;
-        cachedFile = new File(backupDir, Config.CACHED_FILENAME);
-        invalidFile = new File(backupDir, Config.INVALID_FILENAME);
+        filterFile = new File(backupDir, Config.FILTER_FILENAME);
+        sketchFile = new File(backupDir, Config.SKETCH_FILENAME);
+        heatFile = new File(backupDir, Config.HEAT_FILENAME);
+        layoutFile = new File(backupDir, Config.LAYOUT_FILENAME);
 
-        // Funnel is required by BloomFilter
-        strFunnel = new Funnel<String>() {
-            private static final long serialVersionUID = 1L;
-
-            @Override
-            public void funnel(String str, PrimitiveSink into) {
-                into.putString(str, Charsets.UTF_8);
+        // A backup keeps the partition count it was created with, whatever the config says
+        PartitionLayout readLayout = readPartitionLayout(layoutFile);
+        if (readLayout == null) {
+            layout = new PartitionLayout(Config.BACKUP_PARTITIONS, Config.MAX_PARTITION_SPLITS);
+            backupDir.mkdirs();
+            writePartitionLayout();
+        } else {
+            layout = readLayout;
+            if (layout.getBase() != Config.BACKUP_PARTITIONS) {
+                System.out.println("Backup has " + layout.getBase() + " base partitions, not "
+                        + Config.BACKUP_PARTITIONS + ". Keeping " + layout.getBase());
             }
-        };
+        }
 
-        InputStream in = null;
+        System.out.println("Reading filter backup...");
+        filter = readFilter(filterFile);
+        if (filter == null) {
+            System.out.println("Could not read filter from file. Creating new filter.");
+            filter = new CuckooFilter(Config.FILTER_INITIAL_CAPACITY);
+            filterDirty.set(true);
+        } else {
+            System.out.println("Done reading filter backup");
+        }
 
-        try {
-            System.out.println("Reading bloom filter backups...");
-            in = new FileInputStream(cachedFile);
-            cached = BloomFilter.readFrom(in, strFunnel);
-            in = new FileInputStream(cachedFile);
-            invalid = BloomFilter.readFrom(in, strFunnel);
-            System.out.println("Done reading bloom filter backups");
-        } catch (Exception e) {
-            System.out.println("Could not read bloom filters from file. Creating new bloom filters.");
-            try {
-                if (in != null) {
-                    in.close();
-                }
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
-            cached = BloomFilter.create(strFunnel, Config.CACHE_SIZE, Config.BF_FALSE_PROB);
-            invalid = BloomFilter.create(strFunnel, Config.CACHE_SIZE, Config.BF_FALSE_PROB);
+        sketch = new FrequencySketch(Config.CACHE_SIZE);
+        if (readFrequencySketch(sketch, sketchFile)) {
+            System.out.println("Read SKU popularity from previous run");
+        }
+
+        heat = new PartitionHeat(layout.getCapacity());
+        if (readPartitionHeat(heat, heatFile)) {
+            System.out.println("Read partition heat from previous run");
         }
 
         hf = Hashing.md5();
-    }
 
-    /**
-     * Clear the 'invalid' bloom filter and rebuild the 'cached' bloom filter
-     * using items in the cache.
-     * @param cache
-     * The cache LoadingCache used to rebuild the bloom filter 'cached'.
-     */
-    public void refreshBloomFilters(LoadingCache<String, Product> cache) {
-        BloomFilter<String> newCached = BloomFilter.create(strFunnel, Config.CACHE_SIZE, Config.BF_FALSE_PROB);
+        if ("mmap".equals(Config.BACKUP_READER)) {
+            partitionReader = new MappedPartitionReader(Config.MAPPED_PARTITION_POOL_SIZE);
+        } else {
+            partitionReader = new StreamPartitionReader();
+        }
 
-        Set<String> cacheKeys = cache.asMap().keySet();
+        // Logs are read once and then looked up by offset, rather than read on every lookup
+        logIndexes = CacheBuilder.newBuilder().maximumSize(Config.LOG_INDEX_POOL_SIZE)
+                .build(new CacheLoader<File, PartitionLogIndex>() {
+                    @Override
+                    public PartitionLogIndex load(File log) {
+                        return new PartitionLogIndex(log);
+                    }
+                });
 
-        for (Iterator<String> keys = cacheKeys.iterator(); keys.hasNext();) {
-            String key = keys.next();
-            newCached.put(key);
+        try {
+            generations = new BackupGenerations(backupDir, layout.getCapacity());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open a new backup generation", e);
+        }
+        materialized = new PartitionBitmap(layout.getCapacity());
+
+        // Partitions split from the same base partition share a lock, so holding it
+        // also holds off splits. Log sizes are unknown (-1) until each log is first touched.
+        partitionLocks = Striped.readWriteLock(layout.getBase());
+        logSizes = new AtomicLongArray(layout.getCapacity());
+        for (int i = 0; i < layout.getCapacity(); i++) {
+            logSizes.set(i, -1);
         }
 
-        // This should be done atomically?
-        cached = newCached;
-        invalid = BloomFilter.create(strFunnel, Config.CACHE_SIZE, Config.BF_FALSE_PROB);
+        backupWriter = new BackupWriter(this);
+        backupWriter.start();
     }
 
     /**
-     * Returns true if cache backup might contain an item
-     * @param sku SKU of the item in question
-     * @return Returns true if item might be in backup, false if it isn't.
+     * Write every queued backup mutation to disk and stop the backup writer. Later
+     * mutations are written straight to disk by the caller.
      */
-    public boolean cachedMightContain(String sku) {
-        return cached.mightContain(sku);
+    public void close() {
+        backupWriter.close();
     }
 
     /**
-     * Returns true if item might have been removed from cache backup
-     * @param sku SKU of the item in question
-     * @return Returns true if item might have been removed from backup, false if it has not.
+     * Wait until every backup mutation queued so far has been written to disk
      */
-    public boolean invalidMightContain(String sku) {
-        return invalid.mightContain(sku);
+    public void flush() {
+        backupWriter.awaitFlush();
     }
 
     /**
-     * Write a Product to a backup file. Each file is a partition which items are mapped
-     * to by a hash function. Each product is also added to the 'cached' bloom filter,
-     * which is also written to disk.
-     * @param product The Product to be written to a backup file
+     * Rebuild the filter from the SKUs in the backup partitions, sized for them. This
+     * folds a filter which has grown several tables back into one, and puts back
+     * fingerprints lost when the filter was last checkpointed before a crash. Only the
+     * partitions' SKU indexes and log indexes are read, a base partition at a time,
+     * and backups are only held off while the new filter is swapped in.
+     * @return The number of SKUs put in the new filter
      */
-    public void backupItem(Product product) {
-        String sku = product.getSku();
+    public synchronized int refreshFilter() {
+        Set<Integer> scanned = ConcurrentHashMap.newKeySet();
+        List<Map.Entry<String, Boolean>> changes = Collections.synchronizedList(new ArrayList<Map.Entry<String, Boolean>>());
+        Lock swap = filterRefreshLock.writeLock();
+        swap.lock();
+        try {
+            filterScanned = scanned;
+            filterChanges = changes;
+        } finally {
+            swap.unlock();
+        }
+
+        CuckooFilter newFilter = null;
+        int backedUp = 0;
+        try {
+            CuckooFilter built = new CuckooFilter(Math.max(Config.FILTER_INITIAL_CAPACITY, filter.size() * 5 / 4));
+            for (int base = 0; base < layout.getBase(); base++) {
+                Set<String> skus = new HashSet<String>();
+                Lock lock = partitionLocks.get(base).readLock();
+                lock.lock();
+                try {
+                    readLiveSkus(base, skus);
+                    // Writes to the base partition from here on are recorded in changes
+                    scanned.add(base);
+                } finally {
+                    lock.unlock();
+                }
+
+                for (String sku : skus) {
+                    built.put(sku);
+                }
+                backedUp += skus.size();
+            }
+            newFilter = built;
+        } finally {
+            swap.lock();
+            try {
+                if (newFilter != null) {
+                    // Each change is one SKU newly written to or deleted from the backup
+                    // after its partition was read, so they are replayed in order
+                    synchronized (changes) {
+                        for (Map.Entry<String, Boolean> change : changes) {
+                            if (change.getValue()) {
+                                newFilter.put(change.getKey());
+                                backedUp++;
+                            } else if (newFilter.remove(change.getKey())) {
+                                backedUp--;
+                            }
+                        }
+                    }
+                    filter = newFilter;
+                    filterDirty.set(true);
+                }
+                filterScanned = null;
+                filterChanges = null;
+            } finally {
+                swap.unlock();
+            }
+        }
+
+        return backedUp;
+    }
+
+    /**
+     * Write the filter to disk if it has changed since the last checkpoint. The filter
+     * is only marked dirty in memory on each change, so this is where it actually
+     * gets persisted.
+     */
+    public void checkpointFilter() {
+        // Clear the flag before writing so that a change made during the write is
+        // picked up by the next checkpoint
+        if (filterDirty.getAndSet(false) && !writeFilter(filter, filterFile)) {
+            filterDirty.set(true);
+        }
+    }
+
+    /**
+     * Write the popularity sketch to disk if it has changed since it was last written
+     */
+    public void checkpointFrequencySketch() {
+        if (!sketch.isDirty()) {
+            return;
+        }
 
-        // Put in bloom filter
+        File tmp = new File(sketchFile.getParentFile(), sketchFile.getName() + ".tmp");
         try {
-            cached.put(sku);
+            FileOutputStream sketchFos = new FileOutputStream(tmp);
+            try {
+                sketch.writeTo(new BufferedOutputStream(sketchFos));
+            } finally {
+                sketchFos.close();
+            }
+            Files.move(tmp.toPath(), sketchFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
         } catch (Exception e) {
             e.printStackTrace();
-            System.out.println("Failed put to bloom filter 'cached'");
+            System.out.println("Failed to write popularity sketch to disk");
+        }
+    }
+
+    /**
+     * Write the partition heat to disk if it has changed since it was last written
+     */
+    public void checkpointPartitionHeat() {
+        if (!heat.isDirty()) {
             return;
         }
 
-        // Write the bloom filter to disk
+        File tmp = new File(heatFile.getParentFile(), heatFile.getName() + ".tmp");
         try {
-            FileOutputStream bloomFos = new FileOutputStream(cachedFile);
-            cached.writeTo(bloomFos);
-            bloomFos.close();
+            FileOutputStream heatFos = new FileOutputStream(tmp);
+            try {
+                heat.writeTo(new BufferedOutputStream(heatFos));
+            } finally {
+                heatFos.close();
+            }
+            Files.move(tmp.toPath(), heatFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
         } catch (Exception e) {
             e.printStackTrace();
-            System.out.println("Failed to write bloom filter file 'cached' to disk");
-            return;
+            System.out.println("Failed to write partition heat to disk");
         }
+    }
 
-        long partitionNumber = getHashCodeFromSku(sku) % Config.BACKUP_PARTITIONS;
+    /**
+     * Get the counts of how often requests land on each partition
+     * @return The partition heat, persisted next to the filter
+     */
+    public PartitionHeat getPartitionHeat() {
+        return heat;
+    }
 
-        String dataFileName = Config.BACKUP_FILENAME + Long.toString(partitionNumber);
+    /**
+     * Get the sketch counting how often each SKU is requested
+     * @return The popularity sketch, persisted next to the filter
+     */
+    public FrequencySketch getFrequencySketch() {
+        return sketch;
+    }
 
-        File dataFile = new File(backupDir, dataFileName);
+    /**
+     * Returns true if cache backup might contain an item
+     * @param sku SKU of the item in question
+     * @return Returns true if item might be in backup, false if it probably isn't.
+     */
+    public boolean mightContain(String sku) {
+        // The filter only covers what has reached the disk
+        Product queued = backupWriter.getPending(sku);
+        if (queued != null) {
+            return queued != PartitionLog.TOMBSTONE;
+        }
+        return filter.mightContain(sku);
+    }
 
-        // Serialize the item and write to disk
-        ArrayList<Product> fileContents = CacheBackupUtils.readProductsFromJSONFile(dataFile);
-        fileContents.add(product);
-        CacheBackupUtils.writeProductsToJSONFile(fileContents, dataFile);
+    /**
+     * Write a Product to a backup file. Each file is a partition which items are mapped
+     * to by a hash function. The write is queued for the backup writer, so this never
+     * waits on the disk unless the queue is full. Lookups find the product in the
+     * queue until the writer has written it and added its SKU to the filter.
+     * @param product The Product to be written to a backup file
+     */
+    public void backupItem(Product product) {
+        // Queued to be appended to the partition's log
+        backupWriter.enqueue(product.getSku(), product);
     }
 
     /**
      * Attempt to get an item from a backup file. Item is only checked if it is
-     * found by the 'cached' bloom filter and not by the 'invalid bloom filter.
+     * still queued or found by the filter.
      * @param sku The SKU of the Product in question
      * @return The deserialized Product object
      */
     public Product getItemFromBackup(String sku) {
+        // Writes still queued are newer than anything on disk, and aren't in the
+        // filter until they are written
+        Product queued = backupWriter.getPending(sku);
+        if (queued == PartitionLog.TOMBSTONE) {
+            return null;
+        } else if (queued != null) {
+            return queued;
+        }
 
-        // check if valid entry in backup using bloom filters
-        if (invalid.mightContain(sku) || cached.mightContain(sku) == false) {
+        // check if valid entry in backup using the filter
+        if (filter.mightContain(sku) == false) {
             return null;
         }
 
-        long partitionNumber = getHashCodeFromSku(sku) % Config.BACKUP_PARTITIONS;
+        HashCode hc = getHashCodeFromSku(sku);
 
-        // Remove the item 'sku' from file
-        String dataFileName = Config.BACKUP_FILENAME + Long.toString(partitionNumber);
+        // Compaction, materialization and splits can't swap the files out from under the read
+        Lock lock = partitionLocks.get(layout.getBasePartition(getBaseHash(hc))).readLock();
+        lock.lock();
+        try {
+            int partitionNumber = layout.getPartitionNumber(getBaseHash(hc), getSplitHash(hc));
 
-        File dataFile = new File(backupDir, dataFileName);
+            // The log holds the most recent writes so it is checked first
+            Product logged = logIndexes.getUnchecked(getLogFile(partitionNumber)).find(sku);
+            if (logged == PartitionLog.TOMBSTONE) {
+                return null;
+            } else if (logged != null) {
+                return logged;
+            }
 
-        ArrayList<Product> products = CacheBackupUtils.readProductsFromJSONFile(dataFile);
+            // Binary search the partition's SKU index for the item
+            ByteBuffer data = partitionReader.read(getPartitionFile(partitionNumber));
+            try {
+                return BinaryPartitionUtils.findProduct(data, sku);
+            } finally {
+                partitionReader.release(data);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        if (products == null) {
-            return null;
+    /**
+     * Get several items from the backup at once. SKUs are grouped by partition so
+     * that each partition's log and file are read once, however many of the SKUs
+     * they hold.
+     * @param skus The SKUs of the Products in question
+     * @return A map of SKU to Product for each item found. SKUs not in the backup are left out.
+     */
+    public Map<String, Product> getItemsFromBackup(Collection<String> skus) {
+        Map<String, Product> found = new HashMap<String, Product>();
+        Map<Integer, List<String>> bases = new HashMap<Integer, List<String>>();
+
+        for (String sku : skus) {
+            // Writes still queued are newer than anything on disk
+            Product queued = backupWriter.getPending(sku);
+            if (queued == PartitionLog.TOMBSTONE) {
+                continue;
+            } else if (queued != null) {
+                found.put(sku, queued);
+                continue;
+            }
+
+            if (filter.mightContain(sku) == false) {
+                continue;
+            }
+
+            int base = layout.getBasePartition(getBaseHash(getHashCodeFromSku(sku)));
+            List<String> baseSkus = bases.get(base);
+            if (baseSkus == null) {
+                baseSkus = new ArrayList<String>();
+                bases.put(base, baseSkus);
+            }
+            baseSkus.add(sku);
         }
 
-        for (int i = 0; i < products.size(); i++) {
-            if (products.get(i).getSku().equals(sku)) {
-                return products.get(i);
+        for (Map.Entry<Integer, List<String>> base : bases.entrySet()) {
+            Lock lock = partitionLocks.get(base.getKey()).readLock();
+            lock.lock();
+            try {
+                // Mapped with the lock held, as in getItemFromBackup()
+                Map<Integer, List<String>> partitions = new HashMap<Integer, List<String>>();
+                for (String sku : base.getValue()) {
+                    int partitionNumber = getPartitionNumber(sku);
+                    List<String> partitionSkus = partitions.get(partitionNumber);
+                    if (partitionSkus == null) {
+                        partitionSkus = new ArrayList<String>();
+                        partitions.put(partitionNumber, partitionSkus);
+                    }
+                    partitionSkus.add(sku);
+                }
+
+                for (Map.Entry<Integer, List<String>> partition : partitions.entrySet()) {
+                    Map<String, Product> log = logIndexes.getUnchecked(getLogFile(partition.getKey()))
+                            .findAll(partition.getValue());
+                    ByteBuffer data = null;
+
+                    try {
+                        for (String sku : partition.getValue()) {
+                            Product logged = log.get(sku);
+                            if (logged == PartitionLog.TOMBSTONE) {
+                                continue;
+                            } else if (logged != null) {
+                                found.put(sku, logged);
+                                continue;
+                            }
+
+                            if (data == null) {
+                                data = partitionReader.read(getPartitionFile(partition.getKey()));
+                            }
+                            Product product = BinaryPartitionUtils.findProduct(data, sku);
+                            if (product != null) {
+                                found.put(sku, product);
+                            }
+                        }
+                    } finally {
+                        partitionReader.release(data);
+                    }
+                }
+            } finally {
+                lock.unlock();
             }
         }
 
-        return null;
+        return found;
     }
 
     /**
-     * Invalidate a backup item by placing it in the 'invalid' bloom filter
-     * @param product The Product to invalidate
+     * Attemts to delete an item from a backup file. Lookups find the deletion in the
+     * queue until the writer has written it and removed the SKU from the filter.
+     * @param product The product to try and remove
      */
-    public void invalidateItemInBackup(Product product) {
-        String sku = product.getSku();
+    public void removeItemFromBackup(Product product) {
+        // Queue a tombstone for the item 'sku' to be appended to the partition's log
+        backupWriter.enqueue(product.getSku(), PartitionLog.TOMBSTONE);
+    }
 
-        // Put in INVALID bloom filter
+    /**
+     * Append a batch of writes to a partition's log in one go, then bring the filter
+     * into line with them. Used by the backup writer, so the disk is only read here
+     * rather than by requests: a SKU only gets a fingerprint when it wasn't in the
+     * backup before, and only loses one when it was, so SKUs sharing a fingerprint
+     * each keep their own copy and removing one doesn't hide the others.
+     * @param partitionNumber The partition every SKU in the batch is mapped to
+     * @param batch Pairs of SKU and the product written, or PartitionLog.TOMBSTONE if
+     * the SKU was deleted
+     * @return Returns true if the whole batch was written, false if it should be tried again
+     */
+    boolean writeBatch(int partitionNumber, List<Map.Entry<String, Product>> batch) {
+        // The partition may have been split since the batch was put together, so each
+        // SKU is mapped again with the lock held, which holds off further splits
+        Lock lock = lockFor(partitionNumber).writeLock();
+        lock.lock();
         try {
-            invalid.put(sku);
-        } catch (Exception e) {
+            Map<Integer, List<Map.Entry<String, Product>>> targets = new HashMap<Integer, List<Map.Entry<String, Product>>>();
+            for (Map.Entry<String, Product> write : batch) {
+                int target = getPartitionNumber(write.getKey());
+                List<Map.Entry<String, Product>> writes = targets.get(target);
+                if (writes == null) {
+                    writes = new ArrayList<Map.Entry<String, Product>>();
+                    targets.put(target, writes);
+                }
+                writes.add(write);
+            }
+
+            for (Map.Entry<Integer, List<Map.Entry<String, Product>>> target : targets.entrySet()) {
+                List<String> skus = new ArrayList<String>();
+                ByteArrayOutputStream entries = new ByteArrayOutputStream();
+                for (Map.Entry<String, Product> write : target.getValue()) {
+                    skus.add(write.getKey());
+                    if (write.getValue() == PartitionLog.TOMBSTONE) {
+                        entries.write(PartitionLog.encodeDelete(write.getKey()));
+                    } else {
+                        entries.write(PartitionLog.encodePut(write.getValue()));
+                    }
+                }
+
+                Set<String> backedUp = findBackedUp(target.getKey(), skus);
+                appendToLog(target.getKey(), entries.toByteArray());
+                for (Map.Entry<String, Product> write : target.getValue()) {
+                    updateFilter(target.getKey(), write.getKey(), backedUp.contains(write.getKey()),
+                            write.getValue() != PartitionLog.TOMBSTONE);
+                }
+            }
+            return true;
+        } catch (IOException e) {
             e.printStackTrace();
-            System.out.println("Failed to put to bloom filter: 'invalid'");
-            return;
+            System.out.println("Failed to write " + batch.size() + " items to backup log " + partitionNumber);
+            return false;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    /*
+     * Must be called with the partition's lock held. Finds which of the SKUs are in the
+     * partition's log or file, without asking the filter.
+     */
+    private Set<String> findBackedUp(int partitionNumber, List<String> skus) {
+        Set<String> backedUp = new HashSet<String>();
+        Map<String, Product> logged = logIndexes.getUnchecked(getLogFile(partitionNumber)).findAll(skus);
+        ByteBuffer data = null;
 
-        // Write the bloom filter to disk
         try {
-            FileOutputStream bloomFos = new FileOutputStream(invalidFile);
-            invalid.writeTo(bloomFos);
-            bloomFos.close();
-        } catch (Exception e) {
+            for (String sku : skus) {
+                Product write = logged.get(sku);
+                if (write == null) {
+                    if (data == null) {
+                        data = partitionReader.read(getPartitionFile(partitionNumber));
+                    }
+                    write = BinaryPartitionUtils.findProduct(data, sku);
+                }
+                if (write != null && write != PartitionLog.TOMBSTONE) {
+                    backedUp.add(sku);
+                }
+            }
+        } finally {
+            partitionReader.release(data);
+        }
+
+        return backedUp;
+    }
+
+    /*
+     * Must be called with the partition's lock held, once a write to a SKU is on disk.
+     * A SKU in the backup which has lost its fingerprint, such as when the filter was
+     * last checkpointed before a crash, gets it back the next time it is written.
+     */
+    private void updateFilter(int partitionNumber, String sku, boolean wasBackedUp, boolean backedUp) {
+        Lock refresh = filterRefreshLock.readLock();
+        refresh.lock();
+        try {
+            boolean owned = wasBackedUp && filter.mightContain(sku);
+            if (backedUp && !owned) {
+                filter.put(sku);
+                filterDirty.set(true);
+            } else if (!backedUp && owned && filter.remove(sku)) {
+                filterDirty.set(true);
+            }
+
+            // A refresh which has already read the partition builds its filter from
+            // what was on disk then, so it is told what changed since
+            Set<Integer> scanned = filterScanned;
+            if (scanned != null && scanned.contains(layout.getBasePartitionOf(partitionNumber))
+                    && wasBackedUp != backedUp) {
+                filterChanges.add(new SimpleImmutableEntry<String, Boolean>(sku, backedUp));
+            }
+        } finally {
+            refresh.unlock();
+        }
+    }
+
+    /**
+     * Returns true if a partition's log has grown large enough relative to the
+     * partition file that it should be compacted
+     * @param partitionNumber The partition in question
+     * @return Returns true if the partition should be compacted
+     */
+    public boolean needsCompaction(int partitionNumber) {
+        // Only partitions written to in the current generation have logs to compact
+        if (!materialized.get(partitionNumber)) {
+            return false;
+        }
+
+        Lock lock = lockFor(partitionNumber).writeLock();
+        lock.lock();
+        try {
+            long logSize = getLogSize(partitionNumber);
+            long partitionSize = getPartitionFile(partitionNumber).length();
+
+            return logSize >= Config.COMPACTION_MIN_LOG_BYTES
+                    && logSize >= Config.COMPACTION_GARBAGE_RATIO * (partitionSize + logSize);
+        } catch (IOException e) {
             e.printStackTrace();
-            System.out.println("Failed to write bloom filter 'invalid' file to disk");
-            return;
+            return false;
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Attemts to delete an item from a backup file
-     * @param product The product to try and remove
+     * Fold a partition's log into its partition file and delete the log
+     * @param partitionNumber The partition to compact
      */
-    public void removeItemFromBackup(Product product) {
-        String sku = product.getSku();
+    public void compactPartition(int partitionNumber) {
+        Lock lock = lockFor(partitionNumber).writeLock();
+        lock.lock();
+        try {
+            if (!layout.isLive(partitionNumber)) {
+                return;
+            }
+            materialize(partitionNumber);
+
+            File dataFile = getPartitionFile(partitionNumber);
+            File logFile = getLogFile(partitionNumber);
+            if (!logFile.exists()) {
+                return;
+            }
+
+            ArrayList<Product> merged = PartitionLog.merge(readPartitionProducts(dataFile),
+                    PartitionLog.readEntries(PartitionLog.readLog(logFile)));
+            BinaryPartitionUtils.writeProductsToBinaryFile(merged, dataFile);
+            partitionReader.invalidate(dataFile);
+
+            Files.delete(logFile.toPath());
+            logIndexes.invalidate(logFile);
+            logSizes.set(partitionNumber, 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to compact backup partition " + partitionNumber);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if a partition has grown to Config.PARTITION_SPLIT_BYTES and can be
+     * split. Nothing is split while there is a snapshot, since the rebuild reads the
+     * snapshot with the layout it was written with.
+     * @param partitionNumber The partition in question
+     * @return Returns true if the partition should be split
+     */
+    public boolean needsSplit(int partitionNumber) {
+        if (generations.hasSnapshot() || !layout.canSplit(partitionNumber)) {
+            return false;
+        }
+
+        Lock lock = lockFor(partitionNumber).readLock();
+        lock.lock();
+        try {
+            long logSize = Math.max(0, logSizes.get(partitionNumber));
+            return getPartitionFile(partitionNumber).length() + logSize >= Config.PARTITION_SPLIT_BYTES;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Split a partition in two, moving each of its products into one of the partitions
+     * it is split into. The children are written before the new layout, and the
+     * partition's own files are only deleted after, so a crash at any point leaves a
+     * layout whose partitions are all on disk.
+     * @param partitionNumber The partition to split
+     * @return Returns true if the partition was split
+     */
+    public boolean splitPartition(int partitionNumber) {
+        Lock lock = lockFor(partitionNumber).writeLock();
+        lock.lock();
+        try {
+            if (generations.hasSnapshot() || !layout.canSplit(partitionNumber)) {
+                return false;
+            }
+            materialize(partitionNumber);
 
-        invalidateItemInBackup(product);
+            File dataFile = getPartitionFile(partitionNumber);
+            File logFile = getLogFile(partitionNumber);
+            ArrayList<Product> merged = PartitionLog.merge(readPartitionProducts(dataFile),
+                    PartitionLog.readEntries(PartitionLog.readLog(logFile)));
 
-        long partitionNumber = getHashCodeFromSku(sku) % Config.BACKUP_PARTITIONS;
+            int[] children = layout.getChildren(partitionNumber);
+            List<Product> first = new ArrayList<Product>();
+            List<Product> second = new ArrayList<Product>();
+            for (Product product : merged) {
+                int child = layout.getChild(partitionNumber, getSplitHash(getHashCodeFromSku(product.getSku())));
+                (child == children[0] ? first : second).add(product);
+            }
 
-        // Remove the item 'sku' from file
-        String dataFileName = Config.BACKUP_FILENAME + Long.toString(partitionNumber);
+            File firstFile = getPartitionFile(children[0]);
+            File secondFile = getPartitionFile(children[1]);
+            BinaryPartitionUtils.writeProductsToBinaryFile(first, firstFile);
+            BinaryPartitionUtils.writeProductsToBinaryFile(second, secondFile);
+            for (int child : children) {
+                materialized.set(child);
+                logSizes.set(child, 0);
+            }
 
-        File dataFile = new File(backupDir, dataFileName);
+            layout.split(partitionNumber);
+            if (!firstFile.exists() || !secondFile.exists() || !writePartitionLayout()) {
+                layout.unsplit(partitionNumber);
+                Files.deleteIfExists(firstFile.toPath());
+                Files.deleteIfExists(secondFile.toPath());
+                System.out.println("Failed to split backup partition " + partitionNumber);
+                return false;
+            }
 
-        CacheBackupUtils.removeProductFromJSONFileBySKU(sku, dataFile);
+            partitionReader.invalidate(dataFile);
+            Files.deleteIfExists(dataFile.toPath());
+            Files.deleteIfExists(logFile.toPath());
+            logIndexes.invalidate(logFile);
+            logSizes.set(partitionNumber, 0);
+            heat.split(partitionNumber, children);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to split backup partition " + partitionNumber);
+            return false;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Make a backup of each backup.
-     * @param suffix A string value which is appended to the filename of each backup to differentiate it from
-     * the original.
-     * @throws IOException
-     */
-    public void copyAndSuffixBackupFiles(String suffix) throws IOException {
-        for (int i = 0; i < Config.BACKUP_PARTITIONS; i++) {
-            File current = new File(backupDir, Config.BACKUP_FILENAME + Integer.toString(i));
-            File future = new File(backupDir, Config.BACKUP_FILENAME + Integer.toString(i) + suffix);
-            Files.copy(current.toPath(), future.toPath(), REPLACE_EXISTING);
-        }
-        /*
-        File futureCached = new File(backupDir, Config.CACHED_FILENAME + suffix);
-        Files.copy(cachedFile.toPath(), futureCached.toPath());
-        File futureInvalid = new File(backupDir, Config.INVALID_FILENAME + suffix);
-        Files.copy(invalidFile.toPath(), futureInvalid.toPath());
-        */
-    }
-
-    private long getHashCodeFromSku(String sku) {
-        HashCode hc = hf.newHasher()
+     * List every partition in use. Only changes when a partition is split.
+     * @return The partition numbers, in ascending order
+     */
+    public List<Integer> getPartitions() {
+        return layout.getPartitions();
+    }
+
+    /**
+     * Returns true if the previous run left a backup to rebuild the cache from
+     * @return Returns true if there is a snapshot
+     */
+    public boolean hasSnapshot() {
+        return generations.hasSnapshot();
+    }
+
+    /**
+     * Get one more than the highest partition number this backup can ever use, for
+     * sizing arrays indexed by partition number
+     * @return The number of partition numbers
+     */
+    public int getPartitionCapacity() {
+        return layout.getCapacity();
+    }
+
+    /**
+     * Read the contents of a partition as it was when the service started, from the
+     * snapshot generations left by the previous run
+     * @param partitionNumber The partition to read
+     * @return Returns an ArrayList<Product> containing each Product in the partition
+     */
+    public ArrayList<Product> readSnapshotPartition(int partitionNumber) {
+        File snapshotDir = generations.getSnapshotDir(partitionNumber);
+        if (snapshotDir == null) {
+            return new ArrayList<Product>();
+        }
+
+        String name = Config.BACKUP_FILENAME + Integer.toString(partitionNumber);
+        return PartitionLog.readMergedPartition(new File(snapshotDir, name),
+                new File(snapshotDir, name + Config.LOG_SUFFIX));
+    }
+
+    /**
+     * Read everything backed up in a partition as it is now: the partition file merged
+     * with its log, with writes still queued applied. Deleted products are left out
+     * going by the tombstones in the log and the queue, not the filter, which can
+     * forget SKUs that are still backed up. A partition split since it was listed is
+     * read through the partitions it was split into.
+     * @param partitionNumber The partition to read
+     * @return Returns an ArrayList<Product> containing each Product in the partition
+     */
+    public ArrayList<Product> readPartition(int partitionNumber) {
+        // Taken before the files are read: a write is only dequeued once it is on disk
+        int depth = layout.getDepth(partitionNumber);
+        Map<String, Product> queued = backupWriter.getPending(sku -> {
+            HashCode hc = getHashCodeFromSku(sku);
+            return layout.getPartitionAtDepth(getBaseHash(hc), getSplitHash(hc), depth) == partitionNumber;
+        });
+
+        return readPartitionWith(partitionNumber, queued);
+    }
+
+    /**
+     * Group the writes still queued by the partition each SKU falls in, so that a pass
+     * over every partition walks the queue once rather than once per partition
+     * @param partitions The partitions to be read, as listed by getPartitions()
+     * @return Partition number to the SKUs queued for it, for passing to
+     * readPartition(int, Set)
+     */
+    public Map<Integer, Set<String>> getQueuedByPartition(Collection<Integer> partitions) {
+        Set<Integer> listed = new HashSet<Integer>(partitions);
+        Map<Integer, Set<String>> queued = new HashMap<Integer, Set<String>>();
+
+        for (String sku : backupWriter.getPending(sku -> true).keySet()) {
+            HashCode hc = getHashCodeFromSku(sku);
+            // Partitions are only ever split, so one listed partition holds the SKU
+            // at whatever depth it was listed
+            for (int depth = 0; depth <= layout.getMaxDepth(); depth++) {
+                int partitionNumber = layout.getPartitionAtDepth(getBaseHash(hc), getSplitHash(hc), depth);
+                if (listed.contains(partitionNumber)) {
+                    Set<String> skus = queued.get(partitionNumber);
+                    if (skus == null) {
+                        skus = new HashSet<String>();
+                        queued.put(partitionNumber, skus);
+                    }
+                    skus.add(sku);
+                    break;
+                }
+            }
+        }
+
+        return queued;
+    }
+
+    /**
+     * Read a partition as readPartition(int) does, applying the writes still queued
+     * for the SKUs getQueuedByPartition() found queued for it. A SKU queued since
+     * then is read as it is on disk.
+     * @param partitionNumber The partition to read
+     * @param queuedSkus The SKUs which were queued for the partition, or null if none
+     * @return Returns an ArrayList<Product> containing each Product in the partition
+     */
+    public ArrayList<Product> readPartition(int partitionNumber, Set<String> queuedSkus) {
+        // Taken before the files are read, as in readPartition(int). A SKU no longer
+        // queued has reached the disk.
+        Map<String, Product> queued = new HashMap<String, Product>();
+        if (queuedSkus != null) {
+            for (String sku : queuedSkus) {
+                Product write = backupWriter.getPending(sku);
+                if (write != null) {
+                    queued.put(sku, write);
+                }
+            }
+        }
+
+        return readPartitionWith(partitionNumber, queued);
+    }
+
+    private ArrayList<Product> readPartitionWith(int partitionNumber, Map<String, Product> queued) {
+        ArrayList<Product> contents = new ArrayList<Product>();
+        Lock lock = lockFor(partitionNumber).readLock();
+        lock.lock();
+        try {
+            readLivePartitions(partitionNumber, contents);
+        } finally {
+            lock.unlock();
+        }
+
+        int kept = 0;
+        for (Product product : contents) {
+            Product write = queued.remove(product.getSku());
+            if (write != PartitionLog.TOMBSTONE) {
+                contents.set(kept++, write != null ? write : product);
+            }
+        }
+        contents.subList(kept, contents.size()).clear();
+
+        for (Product write : queued.values()) {
+            if (write != PartitionLog.TOMBSTONE) {
+                contents.add(write);
+            }
+        }
+
+        return contents;
+    }
+
+    /**
+     * Move every partition not yet written to into the current generation and delete
+     * the snapshot generations. Must only be called once the cache has been rebuilt.
+     */
+    public void releaseSnapshot() {
+        if (!generations.hasSnapshot()) {
+            return;
+        }
+
+        for (int i : layout.getPartitions()) {
+            Lock lock = lockFor(i).writeLock();
+            lock.lock();
+            try {
+                materialize(i);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to move backup partition " + i + " into the current generation");
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        generations.deleteSnapshot();
+    }
+
+    /**
+     * Get the backup partition which a SKU is mapped to
+     * @param sku The SKU of the Product in question
+     * @return The partition number
+     */
+    public int getPartitionNumber(String sku) {
+        HashCode hc = getHashCodeFromSku(sku);
+        return layout.getPartitionNumber(getBaseHash(hc), getSplitHash(hc));
+    }
+
+    private ReadWriteLock lockFor(int partitionNumber) {
+        return partitionLocks.get(layout.getBasePartitionOf(partitionNumber));
+    }
+
+    /*
+     * Partitions which haven't been written to in the current generation are read
+     * straight from the snapshot.
+     */
+    private File getPartitionDir(int partitionNumber) {
+        if (!materialized.get(partitionNumber)) {
+            File snapshotDir = generations.getSnapshotDir(partitionNumber);
+            if (snapshotDir != null) {
+                return snapshotDir;
+            }
+        }
+        return generations.getCurrentDir();
+    }
+
+    private File getPartitionFile(int partitionNumber) {
+        return new File(getPartitionDir(partitionNumber), Config.BACKUP_FILENAME + Integer.toString(partitionNumber));
+    }
+
+    /*
+     * Must be called with the partition's lock held
+     */
+    private ArrayList<Product> readPartitionProducts(File dataFile) {
+        ByteBuffer data = partitionReader.read(dataFile);
+        try {
+            return BinaryPartitionUtils.readProducts(data);
+        } finally {
+            partitionReader.release(data);
+        }
+    }
+
+    /*
+     * Must be called with the partition's lock held. Brings a partition into the current
+     * generation before it is first written to. The snapshot's partition file is hard
+     * linked when it can be used as is, otherwise it is merged with its log (or converted
+     * from JSON) into a new partition file.
+     */
+    private void materialize(int partitionNumber) throws IOException {
+        if (materialized.get(partitionNumber)) {
+            return;
+        }
+
+        File snapshotDir = generations.getSnapshotDir(partitionNumber);
+        if (snapshotDir != null) {
+            String name = Config.BACKUP_FILENAME + Integer.toString(partitionNumber);
+            File snapshotFile = new File(snapshotDir, name);
+            File snapshotLog = new File(snapshotDir, name + Config.LOG_SUFFIX);
+            File target = new File(generations.getCurrentDir(), name);
+
+            if (snapshotLog.exists() || (snapshotFile.exists() && !BinaryPartitionUtils.isBinaryPartitionFile(snapshotFile))) {
+                BinaryPartitionUtils.writeProductsToBinaryFile(
+                        PartitionLog.readMergedPartition(snapshotFile, snapshotLog), target);
+            } else if (snapshotFile.exists()) {
+                try {
+                    Files.createLink(target.toPath(), snapshotFile.toPath());
+                } catch (UnsupportedOperationException | IOException e) {
+                    Files.copy(snapshotFile.toPath(), target.toPath(), REPLACE_EXISTING);
+                }
+            }
+            partitionReader.invalidate(snapshotFile);
+            logIndexes.invalidate(snapshotLog);
+        }
+
+        materialized.set(partitionNumber);
+    }
+
+    /*
+     * Must be called with the partition's lock held, which keeps its base partition's
+     * tree from being split further while it is walked.
+     */
+    private void readLivePartitions(int partitionNumber, List<Product> contents) {
+        if (layout.isLive(partitionNumber)) {
+            contents.addAll(PartitionLog.readMergedPartition(getPartitionFile(partitionNumber),
+                    getLogFile(partitionNumber)));
+        } else if (layout.getDepth(partitionNumber) < layout.getMaxDepth()) {
+            for (int child : layout.getChildren(partitionNumber)) {
+                readLivePartitions(child, contents);
+            }
+        }
+    }
+
+    /*
+     * Must be called with the partition's lock held, as with readLivePartitions(). Reads
+     * SKUs from the partition file's index and the log's index rather than decoding
+     * any product.
+     */
+    private void readLiveSkus(int partitionNumber, Set<String> skus) {
+        if (layout.isLive(partitionNumber)) {
+            Set<String> partitionSkus = new HashSet<String>();
+            ByteBuffer data = partitionReader.read(getPartitionFile(partitionNumber));
+            try {
+                partitionSkus.addAll(BinaryPartitionUtils.readSkus(data));
+            } finally {
+                partitionReader.release(data);
+            }
+            logIndexes.getUnchecked(getLogFile(partitionNumber)).applyTo(partitionSkus);
+            skus.addAll(partitionSkus);
+        } else if (layout.getDepth(partitionNumber) < layout.getMaxDepth()) {
+            for (int child : layout.getChildren(partitionNumber)) {
+                readLiveSkus(child, skus);
+            }
+        }
+    }
+
+    private CuckooFilter readFilter(File file) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            return CuckooFilter.readFrom(in);
+        } catch (Exception e) {
+            return null;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean readFrequencySketch(FrequencySketch sketch, File file) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            return sketch.readFrom(in);
+        } catch (Exception e) {
+            return false;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean readPartitionHeat(PartitionHeat heat, File file) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            return heat.readFrom(in);
+        } catch (Exception e) {
+            return false;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private PartitionLayout readPartitionLayout(File file) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            return PartitionLayout.readFrom(in, Config.MAX_PARTITION_SPLITS);
+        } catch (Exception e) {
+            return null;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean writePartitionLayout() {
+        File tmp = new File(layoutFile.getParentFile(), layoutFile.getName() + ".tmp");
+        try {
+            FileOutputStream layoutFos = new FileOutputStream(tmp);
+            try {
+                layout.writeTo(new BufferedOutputStream(layoutFos));
+            } finally {
+                layoutFos.close();
+            }
+            Files.move(tmp.toPath(), layoutFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Failed to write partition layout to disk");
+            return false;
+        }
+    }
+
+    private boolean writeFilter(CuckooFilter filter, File file) {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            FileOutputStream filterFos = new FileOutputStream(tmp);
+            try {
+                filter.writeTo(new BufferedOutputStream(filterFos));
+            } finally {
+                filterFos.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println("Failed to write filter file " + file.getName() + " to disk");
+            return false;
+        }
+    }
+
+    private File getLogFile(int partitionNumber) {
+        return new File(getPartitionDir(partitionNumber), Config.BACKUP_FILENAME + Integer.toString(partitionNumber) + Config.LOG_SUFFIX);
+    }
+
+    private void appendToLog(int partitionNumber, byte[] entries) throws IOException {
+        Lock lock = lockFor(partitionNumber).writeLock();
+        lock.lock();
+        try {
+            materialize(partitionNumber);
+            long offset = getLogSize(partitionNumber);
+            File logFile = getLogFile(partitionNumber);
+            PartitionLog.append(logFile, entries);
+            logSizes.addAndGet(partitionNumber, entries.length);
+
+            PartitionLogIndex index = logIndexes.getIfPresent(logFile);
+            if (index != null) {
+                index.appended(offset, entries);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Must be called with the partition's lock held. The first time a log is touched
+     * any torn entry left by a crash is cut off so that appends follow a whole entry.
+     */
+    private long getLogSize(int partitionNumber) throws IOException {
+        long size = logSizes.get(partitionNumber);
+        if (size < 0) {
+            size = PartitionLog.recover(getLogFile(partitionNumber));
+            logSizes.set(partitionNumber, size);
+        }
+        return size;
+    }
+
+    private HashCode getHashCodeFromSku(String sku) {
+        return hf.newHasher()
                .putString(sku, Charsets.UTF_8)
                .hash();
+    }
 
+    /*
+     * The first four bytes of the hash pick the base partition, as they always have.
+     * The next four pick a child each time a partition is split.
+     */
+    private long getBaseHash(HashCode hc) {
         return Integer.toUnsignedLong(hc.asInt());
     }
+
+    private int getSplitHash(HashCode hc) {
+        return (int) (hc.asLong() >>> 32);
+    }
 }
@@ -23,27 +23,38 @@ public class CacheBackupUtils {
      * in the JSON file
      */
     public static ArrayList<Product> readProductsFromJSONFile(File file) {
-        ArrayList<Product> products = new ArrayList<Product>();
-        InputStream in = null;
         try {
-            in = new FileInputStream(file);
-            products = (ArrayList<Product>) readJsonStream(in);
-        } catch (Exception e) {
+            return readProductsFromJSONFileOrFail(file);
+        } catch (IOException e) {
             System.out.println("Could not read cache backup file "
                     + file.getName()
                     + " (or file hasn't been created yet)");
-            return products;
+            return new ArrayList<Product>();
+        }
+    }
+
+    /**
+     * Read and deserialize a JSON file of Products, failing instead of returning
+     * whatever could be read
+     * @param file The file to read from
+     * @return Returns an ArrayList<Product> containing each Product object contained
+     * in the JSON file
+     * @throws IOException if the file can't be read or isn't a complete JSON array of Products
+     */
+    public static ArrayList<Product> readProductsFromJSONFileOrFail(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return (ArrayList<Product>) readJsonStream(in);
+        } catch (RuntimeException e) {
+            // Gson reports unexpected tokens and bad numbers unchecked
+            throw new IOException("Malformed JSON in " + file.getName(), e);
         } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+            try {
+                in.close();
+            } catch (Exception e) {
+                e.printStackTrace();
             }
         }
-
-        return products;
     }
 
     /**
@@ -104,7 +115,7 @@ public class CacheBackupUtils {
         writeProductsToJSONFile(products, file);
     }
 
-    private static List<Product> readJsonStream(InputStream in) throws IOException {
+    static List<Product> readJsonStream(InputStream in) throws IOException {
         JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
         try {
             return readProductsArray(reader);
@@ -135,7 +146,7 @@ public class CacheBackupUtils {
             if (name.equals("SKU")) {
                 sku = reader.nextString();
             } else if (name.equals("Price")) {
-                price = BigDecimal.valueOf(reader.nextDouble());
+                price = new BigDecimal(reader.nextString());
             } else if (name.equals("Type")) {
                 type = reader.nextString();
             } else {
@@ -1,35 +1,88 @@
 package price;
 
-import java.io.File;
 import java.util.ArrayList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.logging.Logger;
 
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-/* IMPORTANT: CacheRebuilder should not be used at the same time as
- * CacheBackupHandler when they both operate on the same files.
+/* CacheRebuilder reads the snapshot generations left by the previous run, which
+ * CacheBackupHandler never writes to, so the two can run at the same time.
  */
 
 public class CacheRebuilder extends Thread {
 
-    BlockingQueue<String> invalidQueue;
-
-    final private File backupDir;
+    final private CacheBackupHandler cacheBackupHandler;
     private LoadingCache<String, Product> cache;
+    private final OffHeapProductStore l2Cache;
+    private final InvalidationCounter invalidations;
+    private final PartitionBitmap loadedPartitions;
+    private final PartitionBitmap failedPartitions;
+    private final AtomicIntegerArray loadAttempts;
+    private final List<Queue<String>> invalidQueues;
+    private final BlockingDeque<Integer> rebuildQueue = new LinkedBlockingDeque<Integer>();
+    private final AtomicIntegerArray unloadedRequests;
+    private final int unusedPartitions;
+    private final Striped<Lock> loadLocks;
+    private final Striped<ReadWriteLock> invalidQueueLocks;
+    private final LatencyMetrics metrics;
     private final static Logger LOGGER = Logger.getLogger(CacheRebuilder.class.getName());
 
     /**
      * Class constructor
-     * @param backupDir Directory where cache backups will be located
+     * @param cacheBackupHandler The handler whose snapshot the cache is rebuilt from
      * @param cache A LoadingCache that is this service's cache
+     * @param l2Cache The off-heap store which products evicted from the cache are demoted to
+     * @param invalidations The counts products demoted to l2Cache are stamped with
+     * @param metrics Where the time taken to load each partition is recorded
      */
-    public CacheRebuilder(File backupDir, LoadingCache<String, Product> cache) {
-        this.backupDir = backupDir;
-        this.invalidQueue = new LinkedBlockingQueue<String>();
+    public CacheRebuilder(CacheBackupHandler cacheBackupHandler, LoadingCache<String, Product> cache,
+            OffHeapProductStore l2Cache, InvalidationCounter invalidations, LatencyMetrics metrics) {
+        this.cacheBackupHandler = cacheBackupHandler;
         this.cache = cache;
+        this.l2Cache = l2Cache;
+        this.invalidations = invalidations;
+        this.metrics = metrics;
+        int capacity = cacheBackupHandler.getPartitionCapacity();
+        this.loadedPartitions = new PartitionBitmap(capacity);
+        this.failedPartitions = new PartitionBitmap(capacity);
+        this.loadAttempts = new AtomicIntegerArray(capacity);
+        this.invalidQueues = new ArrayList<Queue<String>>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            invalidQueues.add(new ConcurrentLinkedQueue<String>());
+        }
+
+        // Partition numbers not in use hold nothing, so they count as loaded. The layout
+        // doesn't change while there is a snapshot to rebuild from.
+        PartitionBitmap inUse = new PartitionBitmap(capacity);
+        for (int partitionNumber : cacheBackupHandler.getPartitions()) {
+            inUse.set(partitionNumber);
+        }
+        for (int i = 0; i < capacity; i++) {
+            if (!inUse.get(i)) {
+                loadedPartitions.set(i);
+            }
+        }
+        this.unusedPartitions = capacity - inUse.cardinality();
+
+        this.unloadedRequests = new AtomicIntegerArray(capacity);
+        this.loadLocks = Striped.lock(capacity);
+        this.invalidQueueLocks = Striped.readWriteLock(capacity);
         this.setName("Cache Rebuilder");
     }
 
@@ -41,27 +94,276 @@ public class CacheRebuilder extends Thread {
     }
 
     /**
-     * Rebuilds the LoadingCache cache using the backup data files then invalidates any entries
-     * to the cache whose values were updated during the rebuilding process.
+     * Rebuilds the LoadingCache cache using the backup data files. Partitions are
+     * loaded hottest first, going by how often requests landed on them before the
+     * restart, so the cache reaches a useful hit rate long before it is complete.
+     * Once the cache is full, later partitions are demoted to the off-heap tier
+     * rather than evicting the hotter ones loaded before them.
+     * Partitions are read and decoded by Config.REBUILD_THREADS threads at once,
+     * skipping any which requests have already loaded on demand. The snapshot is
+     * released once every partition has been loaded.
      */
     public void rebuildCache() {
         LOGGER.info("Begin rebuilding cache...");
 
-        for (int i = 0; i < Config.BACKUP_PARTITIONS; i++) {
-            String partitionFileName = Config.BACKUP_FILENAME + Integer.toString(i) + ".old";
-            File partitionFile = new File(backupDir, partitionFileName);
+        for (Integer partitionNumber : cacheBackupHandler.getPartitionHeat().hottestFirst()) {
+            if (!loadedPartitions.get(partitionNumber)) {
+                rebuildQueue.addLast(partitionNumber);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Config.REBUILD_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("Cache Rebuilder %d").setDaemon(true).build());
+        List<Future<?>> workers = new ArrayList<Future<?>>(Config.REBUILD_THREADS);
+
+        try {
+            for (int i = 0; i < Config.REBUILD_THREADS; i++) {
+                workers.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A partition moved to the front is in the queue twice, and
+                        // the second time it is skipped as already loaded. A partition
+                        // which fails to load is queued again at the back.
+                        Integer partitionNumber;
+                        while (!Thread.currentThread().isInterrupted() && (partitionNumber = rebuildQueue.pollFirst()) != null) {
+                            tryLoadPartition(partitionNumber);
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    LOGGER.severe("Backup partition loader failed: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.severe("Interrupted while rebuilding cache");
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (failedPartitions.cardinality() > 0) {
+            LOGGER.warning("Done rebuilding cache. " + failedPartitions.cardinality()
+                    + " backup partitions could not be loaded and are read from the backup as requested.");
+        } else {
+            LOGGER.info("Done rebuilding cache.");
+        }
+
+        if (!isRebuilding()) {
+            cacheBackupHandler.releaseSnapshot();
+        }
+    }
+
+    /**
+     * Returns true until every partition of the backup has been loaded into the cache,
+     * or has failed to load Config.REBUILD_MAX_ATTEMPTS times
+     * @return Returns true if the cache is still being rebuilt
+     */
+    public boolean isRebuilding() {
+        return loadedPartitions.cardinality() + failedPartitions.cardinality() < loadedPartitions.size();
+    }
+
+    /**
+     * Returns true if a partition of the backup has been loaded into the cache, in
+     * which case the cache can be used for every SKU in that partition.
+     * @param partitionNumber The partition in question
+     * @return Returns true if the partition has been loaded
+     */
+    public boolean isPartitionLoaded(int partitionNumber) {
+        return loadedPartitions.get(partitionNumber);
+    }
+
+    /**
+     * Get the number of partitions of the backup loaded into the cache so far
+     * @return The number of loaded partitions
+     */
+    public int getLoadedPartitionCount() {
+        return loadedPartitions.cardinality() - unusedPartitions;
+    }
+
+    /**
+     * Get the number of partitions of the backup which failed to load and have been
+     * given up on. Requests for their SKUs are answered from the backup one at a time.
+     * @return The number of failed partitions
+     */
+    public int getFailedPartitionCount() {
+        return failedPartitions.cardinality();
+    }
+
+    /**
+     * Load a partition of the backup into the cache unless it has been loaded already.
+     * Blocks while another thread is loading the same partition. If the partition has
+     * failed to load before, it is left to the rebuilder to retry rather than retried
+     * on the caller's thread.
+     * @param partitionNumber The partition to load
+     */
+    public void ensurePartitionLoaded(int partitionNumber) {
+        if (loadedPartitions.get(partitionNumber) || loadAttempts.get(partitionNumber) > 0) {
+            return;
+        }
+        tryLoadPartition(partitionNumber);
+    }
+
+    /*
+     * Load a partition unless it has been loaded or given up on. A failed load is
+     * queued to be tried again by the rebuilder until Config.REBUILD_MAX_ATTEMPTS
+     * tries have failed, after which the partition is marked as failed so that the
+     * rebuild can finish without it.
+     */
+    private void tryLoadPartition(int partitionNumber) {
+        if (loadedPartitions.get(partitionNumber) || failedPartitions.get(partitionNumber)) {
+            return;
+        }
+
+        Lock lock = loadLocks.get(partitionNumber);
+        lock.lock();
+        try {
+            if (loadedPartitions.get(partitionNumber) || failedPartitions.get(partitionNumber)) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                loadPartition(partitionNumber);
+            } catch (RuntimeException e) {
+                int attempts = loadAttempts.incrementAndGet(partitionNumber);
+                LOGGER.severe("Failed to load backup partition " + partitionNumber + " (attempt " + attempts + "): " + e);
+
+                if (attempts < Config.REBUILD_MAX_ATTEMPTS) {
+                    rebuildQueue.addLast(partitionNumber);
+                } else {
+                    giveUpOnPartition(partitionNumber);
+                }
+                return;
+            }
+            metrics.recordSince(LatencyMetrics.Tier.REBUILD_PARTITION, start);
+
+            // No invalidation can be queued between draining the queue and marking
+            // the partition as loaded
+            ReadWriteLock queueLock = invalidQueueLocks.get(partitionNumber);
+            queueLock.writeLock().lock();
+            try {
+                Queue<String> invalidQueue = invalidQueues.get(partitionNumber);
+                while (invalidQueue.isEmpty() == false) {
+                    // Loading the partition may already have demoted the entry
+                    String sku = invalidQueue.poll();
+                    cache.invalidate(sku);
+                    l2Cache.remove(sku);
+                }
 
-            ArrayList<Product> partitionContents =
-                    CacheBackupUtils.readProductsFromJSONFile(partitionFile);
+                loadedPartitions.set(partitionNumber);
+            } finally {
+                queueLock.writeLock().unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Must be called with the partition's load lock held. Anything loaded before the
+     * failure stays cached, so queued invalidations are applied as if it had loaded.
+     * Invalidations after this are made straight away, as for a loaded partition.
+     */
+    private void giveUpOnPartition(int partitionNumber) {
+        LOGGER.severe("Giving up on loading backup partition " + partitionNumber
+                + ", its SKUs will be read from the backup as requested");
+
+        ReadWriteLock queueLock = invalidQueueLocks.get(partitionNumber);
+        queueLock.writeLock().lock();
+        try {
+            Queue<String> invalidQueue = invalidQueues.get(partitionNumber);
+            while (invalidQueue.isEmpty() == false) {
+                String sku = invalidQueue.poll();
+                cache.invalidate(sku);
+                l2Cache.remove(sku);
+            }
 
-            cache.putAll(Maps.uniqueIndex(partitionContents, Product::getSku));
+            failedPartitions.set(partitionNumber);
+        } finally {
+            queueLock.writeLock().unlock();
         }
+    }
 
-        while (invalidQueue.isEmpty() == false) {
-            cache.invalidate(invalidQueue.poll());
+    /**
+     * Count a request for a SKU whose partition hasn't been loaded yet. Once
+     * Config.REBUILD_PROMOTE_REQUESTS requests have landed on the same partition it
+     * is moved to the front of the rebuild, whatever its heat from the previous run.
+     * @param partitionNumber The partition the requested SKU is mapped to
+     */
+    public void recordUnloadedRequest(int partitionNumber) {
+        if (loadedPartitions.get(partitionNumber) || loadAttempts.get(partitionNumber) > 0) {
+            return;
         }
 
-        ProductController.isRebuildingCache.set(false);
-        LOGGER.info("Done rebuilding cache.");
+        if (unloadedRequests.incrementAndGet(partitionNumber) == Config.REBUILD_PROMOTE_REQUESTS) {
+            LOGGER.info("Moving backup partition " + partitionNumber + " to the front of the rebuild");
+            rebuildQueue.offerFirst(partitionNumber);
+        }
+    }
+
+    /**
+     * Queue a SKU to be invalidated once its partition has been loaded, if it has not
+     * been loaded yet.
+     * @param sku The SKU whose cache entry is out of date
+     * @param partitionNumber The partition the SKU is mapped to
+     * @return Returns true if the SKU was queued, false if the partition has already been
+     * loaded (or given up on) and the caller should invalidate the entry itself.
+     */
+    public boolean queueInvalidation(String sku, int partitionNumber) {
+        ReadWriteLock queueLock = invalidQueueLocks.get(partitionNumber);
+        queueLock.readLock().lock();
+        try {
+            if (!loadedPartitions.get(partitionNumber) && !failedPartitions.get(partitionNumber)) {
+                invalidQueues.get(partitionNumber).add(sku);
+                return true;
+            }
+            return false;
+        } finally {
+            queueLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read one partition of the backup and put its contents into the cache, least
+     * popular first. If the cache can't hold them all, an LRU or CLOCK cache evicts
+     * the entries put first, and TinyLFU admits a later entry only if it is more
+     * popular, so either way the most popular are the ones kept.
+     * @param partitionNumber The partition to load
+     */
+    private void loadPartition(int partitionNumber) {
+        ArrayList<Product> partitionContents = cacheBackupHandler.readSnapshotPartition(partitionNumber);
+
+        FrequencySketch sketch = cacheBackupHandler.getFrequencySketch();
+        partitionContents.sort(Comparator.comparingInt((Product product) -> sketch.frequency(product.getSku())));
+
+        // Partitions are loaded hottest first, so once the cache is full a partition
+        // would evict products hotter than its own. Unless TinyLFU decides what is
+        // admitted, only as many as there is room for are cached, roughly, as other
+        // threads fill the cache too. The rest are demoted as if they had been evicted.
+        int demoted = 0;
+        if (!admitsByPopularity()) {
+            long room = Math.max(0, Config.CACHE_SIZE - cache.size());
+            demoted = (int) Math.max(0, partitionContents.size() - room);
+        }
+        for (Product product : partitionContents.subList(0, demoted)) {
+            if (!l2Cache.put(product, invalidations.get(product.getSku()))) {
+                cacheBackupHandler.removeItemFromBackup(product);
+            }
+        }
+
+        cache.putAll(Maps.uniqueIndex(partitionContents.subList(demoted, partitionContents.size()), Product::getSku));
+    }
+
+    /*
+     * A full compact cache with admission keeps a new entry only if it is more popular
+     * than the one it would evict, so a colder partition can't flush a hotter one
+     */
+    private static boolean admitsByPopularity() {
+        return !Config.CACHE_ENGINE.equals("guava") && Config.CACHE_ADMISSION;
     }
 }
@@ -0,0 +1,195 @@
+package price;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Background thread which fills the cache straight from the database when there is
+ * no backup to rebuild it from, such as on a new node, so requests don't each pay
+ * for a database read until the cache fills by itself. The table is read with a
+ * parallel scan of Config.PREWARM_SEGMENTS segments, one thread each, sharing a
+ * budget of Config.PREWARM_READ_CAPACITY read capacity units per second so the scan
+ * leaves capacity for requests. Each page is put into the cache and queued for the
+ * backup as a batch, and the scan stops once the cache is full.
+ */
+public class CacheWarmer extends Thread {
+
+    final private DBConnection conn;
+    final private CacheBackupHandler cacheBackupHandler;
+    final private LoadingCache<String, Product> cache;
+    final private OffHeapProductStore l2Cache;
+    final private RateLimiter readCapacity;
+    final private Set<String> invalidated = ConcurrentHashMap.newKeySet();
+    final private AtomicLong scanned = new AtomicLong();
+    final private AtomicLong loaded = new AtomicLong();
+    private volatile boolean warming = false;
+    private volatile long warmMillis = 0;
+    private final static Logger LOGGER = Logger.getLogger(CacheWarmer.class.getName());
+
+    /**
+     * Class constructor
+     * @param conn The database to scan
+     * @param cacheBackupHandler The handler products are backed up with
+     * @param cache The cache to fill
+     * @param l2Cache The off-heap store which products evicted from the cache are demoted to
+     */
+    public CacheWarmer(DBConnection conn, CacheBackupHandler cacheBackupHandler, LoadingCache<String, Product> cache,
+            OffHeapProductStore l2Cache) {
+        this.conn = conn;
+        this.cacheBackupHandler = cacheBackupHandler;
+        this.cache = cache;
+        this.l2Cache = l2Cache;
+        this.readCapacity = RateLimiter.create(Config.PREWARM_READ_CAPACITY);
+        this.setName("Cache Warmer");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Start warming the cache. Changes recorded from now on are checked against every
+     * page loaded.
+     */
+    @Override
+    public synchronized void start() {
+        warming = true;
+        super.start();
+    }
+
+    /**
+     * Entry point to start a new thread
+     */
+    public void run() {
+        LOGGER.info("Begin prewarming cache from the database...");
+        long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Config.PREWARM_SEGMENTS,
+                new ThreadFactoryBuilder().setNameFormat("Cache Warmer %d").setDaemon(true).build());
+        List<Future<?>> segments = new ArrayList<Future<?>>(Config.PREWARM_SEGMENTS);
+
+        try {
+            conn.makeConnection();
+
+            for (int i = 0; i < Config.PREWARM_SEGMENTS; i++) {
+                final int segment = i;
+                segments.add(pool.submit(() -> {
+                    conn.scanSegment(segment, Config.PREWARM_SEGMENTS, Config.PREWARM_PAGE_SIZE, readCapacity,
+                            this::loadPage);
+                    return null;
+                }));
+            }
+
+            for (Future<?> segment : segments) {
+                try {
+                    segment.get();
+                } catch (ExecutionException e) {
+                    LOGGER.severe("Scan of a database segment failed: " + e.getCause());
+                }
+            }
+        } catch (ResourceUnavailableException e) {
+            LOGGER.severe("Connection to database failed. Not prewarming the cache.");
+        } catch (InterruptedException e) {
+            LOGGER.severe("Interrupted while prewarming cache");
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            warming = false;
+            invalidated.clear();
+        }
+
+        warmMillis = (System.nanoTime() - start) / 1000000;
+        LOGGER.info("Done prewarming cache with " + loaded.get() + " products in " + warmMillis + "ms");
+    }
+
+    /**
+     * Record a SKU changed in the database while the scan runs, so that a copy read
+     * by the scan before the change isn't left in the cache. Must be called before the
+     * cache entry is invalidated.
+     * @param sku The SKU changed
+     */
+    public void recordInvalidation(String sku) {
+        if (warming) {
+            invalidated.add(sku);
+        }
+    }
+
+    /**
+     * Summarise the scan so far
+     * @return A map of whether the scan is running, the number of products it has read
+     * and put into the cache, and how long it took (ms) once it is done
+     */
+    public Map<String, Object> getSummary() {
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("warming", warming);
+        summary.put("scanned", scanned.get());
+        summary.put("loaded", loaded.get());
+        summary.put("millis", warmMillis);
+        return summary;
+    }
+
+    /**
+     * Put one page of the scan into the cache and queue it for the backup. Products
+     * already cached were loaded by requests, so they are at least as fresh and are
+     * kept, and products changed since the scan started are left to be loaded when
+     * requested.
+     * @param page The products read
+     * @return Returns false once the cache is full, to stop the scan
+     */
+    private boolean loadPage(List<Product> page) {
+        if (isInterrupted() || isFull()) {
+            return false;
+        }
+
+        for (Product product : page) {
+            if (invalidated.contains(product.getSku())) {
+                continue;
+            }
+
+            // A slot is taken before the put, so segments loading pages at the same
+            // time can't overfill the cache between them
+            if (loaded.getAndIncrement() >= Config.CACHE_SIZE) {
+                loaded.decrementAndGet();
+                break;
+            }
+            if (cache.asMap().putIfAbsent(product.getSku(), product) == null) {
+                // The backup writer appends each partition's share of the page at once
+                cacheBackupHandler.backupItem(product);
+            } else {
+                loaded.decrementAndGet();
+            }
+        }
+        scanned.addAndGet(page.size());
+
+        // A product changed as its page was loaded may have been cached out of date,
+        // and since demoted or left only in the backup if the cache didn't admit it
+        for (Product product : page) {
+            if (invalidated.contains(product.getSku())) {
+                cache.invalidate(product.getSku());
+                l2Cache.remove(product.getSku());
+                cacheBackupHandler.removeItemFromBackup(product);
+            }
+        }
+
+        return !isFull();
+    }
+
+    /*
+     * The cache can evict to make room before it reaches its size, so the products
+     * the scan has loaded are counted too
+     */
+    private boolean isFull() {
+        return loaded.get() >= Config.CACHE_SIZE || cache.size() >= Config.CACHE_SIZE;
+    }
+}
@@ -0,0 +1,909 @@
+package price;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.AbstractLoadingCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/*
+ * A LoadingCache of products which holds no Product objects. Each entry is a row
+ * of primitive arrays in an open-addressing (linear probing) hash table:
+ *
+ *   long   SKU encoded by SkuCodec
+ *   long   unscaled price, with its scale in a byte (the minor units for prices in cents)
+ *   int    type id in a StringDictionary, -1 for no type
+ *   byte   CLOCK reference bit
+ *
+ * which is around 30 bytes per entry instead of the few hundred taken by a Guava
+ * entry holding a Product with its String and BigDecimal fields. Products are
+ * only built when an entry is read. Entries which don't fit (a SKU not of the
+ * form PREFIX-DIGITS, a price with more than 63 bits) are kept in a small Guava
+ * cache on the side.
+ *
+ * The table is split into independently locked segments. Reads are optimistic
+ * (StampedLock) and so take no lock unless they race with a write. When a segment
+ * is full, entries are evicted with the CLOCK algorithm, which approximates LRU.
+ * Removal notifications are sent like a Guava cache's: SIZE for evictions,
+ * EXPLICIT for invalidations and REPLACED for overwrites.
+ *
+ * Given a FrequencySketch, a full segment only admits a new entry if its SKU has been
+ * requested more often than the entry CLOCK would evict (TinyLFU). A rejected entry
+ * is notified as evicted for SIZE straight away, so it is demoted like any other.
+ */
+
+public class CompactProductCache extends AbstractLoadingCache<String, Product> {
+
+    private static final byte NULL_SCALE = Byte.MIN_VALUE;
+    private static final int NO_TYPE = -1;
+    private static final int MAX_TYPES = 65536;
+    private static final int FALLBACK_SHARE = 16; // share of maximumSize the fallback cache may hold
+    private static final double LOAD_FACTOR = 0.75;
+
+    final private Segment[] segments;
+    final private SkuCodec skus = new SkuCodec();
+    final private StringDictionary types = new StringDictionary(0, MAX_TYPES);
+    final private Cache<String, Product> fallback;
+    final private RemovalListener<String, Product> removalListener;
+    final private CacheLoader<String, Product> loader;
+    final private FrequencySketch sketch;
+    final private SingleFlight<String, Product> loads = new SingleFlight<String, Product>();
+    final private AbstractCache.SimpleStatsCounter stats = new AbstractCache.SimpleStatsCounter();
+    private ConcurrentMap<String, Product> mapView;
+    private final static Logger LOGGER = Logger.getLogger(CompactProductCache.class.getName());
+
+    /**
+     * Class constructor
+     * @param maximumSize The most entries the cache holds before evicting
+     * @param segmentCount The number of independently locked segments, rounded up to a power of two
+     * @param removalListener Notified of every entry removed from the cache
+     * @param loader Loads entries which aren't in the cache
+     * @param sketch Popularity used to decide whether a new entry is worth evicting
+     * another for, or null to always admit new entries
+     */
+    public CompactProductCache(long maximumSize, int segmentCount, RemovalListener<String, Product> removalListener,
+            CacheLoader<String, Product> loader, FrequencySketch sketch) {
+        this.removalListener = removalListener;
+        this.loader = loader;
+        this.sketch = sketch;
+
+        int count = Integer.highestOneBit(Math.max(1, segmentCount) * 2 - 1);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((int) Math.min(Integer.MAX_VALUE / 2, Math.max(1, maximumSize / count)));
+        }
+
+        // Only evictions are passed on, the other removals are notified by this class
+        fallback = CacheBuilder.newBuilder().maximumSize(Math.max(1, maximumSize / FALLBACK_SHARE))
+                .removalListener(new RemovalListener<String, Product>() {
+                    public void onRemoval(RemovalNotification<String, Product> removal) {
+                        if (removal.wasEvicted()) {
+                            stats.recordEviction();
+                            removalListener.onRemoval(removal);
+                        }
+                    }
+                }).build();
+    }
+
+    /**
+     * Get a product, loading it if it isn't cached. Concurrent loads of the same SKU
+     * share one call to the loader, as in a Guava cache.
+     */
+    @Override
+    public Product get(String sku) throws ExecutionException {
+        Product product = getIfPresent(sku);
+        if (product != null) {
+            return product;
+        }
+
+        try {
+            return Uninterruptibles.getUninterruptibly(loads.execute(sku, () -> load(sku)));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidCacheLoadException) {
+                throw (InvalidCacheLoadException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw new UncheckedExecutionException(cause);
+            } else if (cause instanceof Error) {
+                throw new ExecutionError((Error) cause);
+            }
+            throw new ExecutionException(cause);
+        }
+    }
+
+    @Override
+    public ImmutableMap<String, Product> getAll(Iterable<? extends String> skus) throws ExecutionException {
+        Map<String, Product> result = new LinkedHashMap<String, Product>();
+        List<String> missing = new ArrayList<String>();
+
+        for (String sku : skus) {
+            Product product = getIfPresent(sku);
+            if (product != null) {
+                result.put(sku, product);
+            } else if (!result.containsKey(sku)) {
+                missing.add(sku);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<String, Product> loaded;
+            long start = System.nanoTime();
+            try {
+                loaded = loader.loadAll(missing);
+            } catch (RuntimeException e) {
+                stats.recordLoadException(System.nanoTime() - start);
+                throw new UncheckedExecutionException(e);
+            } catch (Exception e) {
+                stats.recordLoadException(System.nanoTime() - start);
+                throw new ExecutionException(e);
+            }
+            stats.recordLoadSuccess(System.nanoTime() - start);
+
+            for (String sku : missing) {
+                Product product = loaded.get(sku);
+                if (product == null) {
+                    throw new InvalidCacheLoadException("loadAll failed to return a value for " + sku);
+                }
+                put(sku, product);
+                result.put(sku, product);
+            }
+        }
+
+        return ImmutableMap.copyOf(result);
+    }
+
+    @Override
+    public Product getIfPresent(Object key) {
+        Product product = lookup((String) key);
+        if (product != null) {
+            stats.recordHits(1);
+        } else {
+            stats.recordMisses(1);
+        }
+        return product;
+    }
+
+    @Override
+    public void put(String sku, Product product) {
+        putEntry(sku, product, false);
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        Product removed = removeEntry((String) key);
+        if (removed != null) {
+            removalListener.onRemoval(RemovalNotification.create((String) key, removed, RemovalCause.EXPLICIT));
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (String sku : asMap().keySet()) {
+            invalidate(sku);
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = fallback.size();
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void cleanUp() {
+        fallback.cleanUp();
+    }
+
+    /**
+     * Load a product again and replace the cached copy with it. As in a Guava cache,
+     * if the load fails the exception is logged and the cached copy is kept.
+     */
+    @Override
+    public void refresh(String sku) {
+        Product old = getIfPresent(sku);
+        long start = System.nanoTime();
+        try {
+            Product product = old == null ? loader.load(sku) : Uninterruptibles.getUninterruptibly(loader.reload(sku, old));
+            if (product == null) {
+                throw new InvalidCacheLoadException("CacheLoader returned null for key " + sku + ".");
+            }
+            stats.recordLoadSuccess(System.nanoTime() - start);
+            put(sku, product);
+        } catch (Throwable t) {
+            stats.recordLoadException(System.nanoTime() - start);
+            LOGGER.log(Level.WARNING, "Exception thrown during refresh of " + sku, t);
+        }
+    }
+
+    /**
+     * Get the cache's statistics, which unlike a Guava cache's are always recorded
+     */
+    @Override
+    public CacheStats stats() {
+        return stats.snapshot();
+    }
+
+    @Override
+    public ConcurrentMap<String, Product> asMap() {
+        if (mapView == null) {
+            mapView = new MapView();
+        }
+        return mapView;
+    }
+
+    /**
+     * Load a product which isn't cached and cache it. Only one thread loads each SKU
+     * at a time.
+     */
+    private Product load(String sku) throws Exception {
+        // Loaded by another thread since the caller looked
+        Product product = lookup(sku);
+        if (product != null) {
+            return product;
+        }
+
+        long start = System.nanoTime();
+        try {
+            product = loader.load(sku);
+        } catch (Exception | Error e) {
+            stats.recordLoadException(System.nanoTime() - start);
+            throw e;
+        }
+
+        if (product == null) {
+            stats.recordLoadException(System.nanoTime() - start);
+            throw new InvalidCacheLoadException("CacheLoader returned null for key " + sku + ".");
+        }
+
+        stats.recordLoadSuccess(System.nanoTime() - start);
+        put(sku, product);
+        return product;
+    }
+
+    private Product lookup(String sku) {
+        long code = skus.encode(sku);
+        Product product = code == 0 ? null : segmentFor(code).get(code, sku);
+        return product != null ? product : fallback.getIfPresent(sku);
+    }
+
+    /**
+     * Products are built again on every read, so cached copies are compared by value
+     */
+    private static boolean sameProduct(Product a, Product b) {
+        return a != null && b != null && Objects.equals(a.getSku(), b.getSku())
+                && Objects.equals(a.getPrice(), b.getPrice()) && Objects.equals(a.getType(), b.getType());
+    }
+
+    /**
+     * Returns true if the product can be held in a segment rather than the fallback cache
+     */
+    private boolean fitsCompact(long code, Product product) {
+        return code != 0 && (product.getType() == null || types.id(product.getType()) != NO_TYPE)
+                && (product.getPrice() == null || fitsInLong(product.getPrice()));
+    }
+
+    /**
+     * Remove an entry if it holds the expected product
+     * @return The removed product, or null if the entry held something else
+     */
+    private Product removeEntry(String sku, Product expected) {
+        long code = skus.encode(sku);
+        Product removed = code == 0 ? null : segmentFor(code).remove(code, sku, expected);
+        if (removed == null) {
+            Product current = fallback.getIfPresent(sku);
+            // Compared by identity in the fallback cache, which holds the instance it returns
+            if (sameProduct(current, expected) && fallback.asMap().remove(sku, current)) {
+                removed = current;
+            }
+        }
+
+        if (removed != null) {
+            removalListener.onRemoval(RemovalNotification.create(sku, removed, RemovalCause.EXPLICIT));
+        }
+        return removed;
+    }
+
+    /**
+     * Replace an entry if it holds the expected product. Moving an entry between a
+     * segment and the fallback cache isn't atomic, but only happens if the product
+     * changes to or from a price or type which doesn't fit in a segment.
+     * @return The replaced product, or null if the entry held something else
+     */
+    private Product replaceEntry(String sku, Product expected, Product product) {
+        long code = skus.encode(sku);
+        boolean compact = fitsCompact(code, product);
+        Product replaced = null;
+
+        if (code != 0) {
+            if (compact) {
+                BigDecimal price = product.getPrice();
+                replaced = segmentFor(code).replace(code, sku, expected,
+                        price == null ? 0 : price.unscaledValue().longValue(),
+                        price == null ? NULL_SCALE : (byte) price.scale(),
+                        product.getType() == null ? NO_TYPE : types.id(product.getType()));
+            } else if ((replaced = segmentFor(code).remove(code, sku, expected)) != null) {
+                fallback.put(sku, product);
+            }
+        }
+
+        if (replaced == null) {
+            Product current = fallback.getIfPresent(sku);
+            if (sameProduct(current, expected)) {
+                if (!compact && fallback.asMap().replace(sku, current, product)) {
+                    replaced = current;
+                } else if (compact && fallback.asMap().remove(sku, current)) {
+                    putEntry(sku, product, false);
+                    replaced = current;
+                }
+            }
+        }
+
+        if (replaced != null) {
+            removalListener.onRemoval(RemovalNotification.create(sku, replaced, RemovalCause.REPLACED));
+        }
+        return replaced;
+    }
+
+    /**
+     * Put an entry in whichever store it fits in
+     * @return The product it replaced, or null
+     */
+    private Product putEntry(String sku, Product product, boolean onlyIfAbsent) {
+        long code = skus.encode(sku);
+        int type = product.getType() == null ? NO_TYPE : types.id(product.getType());
+        BigDecimal price = product.getPrice();
+        boolean compact = fitsCompact(code, product);
+
+        Product replaced;
+        if (compact && onlyIfAbsent && (replaced = fallback.getIfPresent(sku)) != null) {
+            return replaced;
+        } else if (compact) {
+            long unscaled = price == null ? 0 : price.unscaledValue().longValue();
+            byte scale = price == null ? NULL_SCALE : (byte) price.scale();
+            replaced = segmentFor(code).put(code, sku, unscaled, scale, type, onlyIfAbsent);
+            if (replaced == null) {
+                replaced = fallback.asMap().remove(sku);
+            }
+        } else {
+            replaced = onlyIfAbsent ? fallback.asMap().putIfAbsent(sku, product) : fallback.asMap().put(sku, product);
+            if (replaced == null && code != 0) {
+                replaced = segmentFor(code).remove(code, sku);
+            }
+        }
+
+        if (replaced != null && !onlyIfAbsent) {
+            removalListener.onRemoval(RemovalNotification.create(sku, replaced, RemovalCause.REPLACED));
+        }
+        return replaced;
+    }
+
+    /**
+     * Remove an entry from whichever store holds it
+     * @return The removed product, or null
+     */
+    private Product removeEntry(String sku) {
+        long code = skus.encode(sku);
+        Product removed = code == 0 ? null : segmentFor(code).remove(code, sku);
+        if (removed == null) {
+            removed = fallback.asMap().remove(sku);
+        }
+        return removed;
+    }
+
+    private static boolean fitsInLong(BigDecimal price) {
+        return price.unscaledValue().bitLength() < 64 && price.scale() > NULL_SCALE && price.scale() <= Byte.MAX_VALUE;
+    }
+
+    private static long spread(long code) {
+        long hash = code * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    private Segment segmentFor(long code) {
+        return segments[(int) (spread(code) >>> 40) & (segments.length - 1)];
+    }
+
+    private Product toProduct(String sku, long unscaled, byte scale, int type) {
+        BigDecimal price = scale == NULL_SCALE ? null : BigDecimal.valueOf(unscaled, scale);
+        return new Product(sku, price, type == NO_TYPE ? null : types.get(type));
+    }
+
+    /**
+     * The arrays of one segment's hash table. Replaced as a whole when the table grows
+     * so that optimistic readers always see arrays of the same length.
+     */
+    private static class Table {
+        final long[] codes;
+        final long[] prices;
+        final byte[] scales;
+        final int[] types;
+        final byte[] referenced;
+        final int mask;
+
+        Table(int length) {
+            codes = new long[length];
+            prices = new long[length];
+            scales = new byte[length];
+            types = new int[length];
+            referenced = new byte[length];
+            mask = length - 1;
+        }
+
+        /**
+         * @return The slot holding code, or -1
+         */
+        int find(long code) {
+            int slot = (int) spread(code) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long found = codes[slot];
+                if (found == code) {
+                    return slot;
+                }
+                if (found == 0) {
+                    return -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void set(int slot, long code, long price, byte scale, int type) {
+            codes[slot] = code;
+            prices[slot] = price;
+            scales[slot] = scale;
+            types[slot] = type;
+            referenced[slot] = 1;
+        }
+
+        void move(int from, int to) {
+            codes[to] = codes[from];
+            prices[to] = prices[from];
+            scales[to] = scales[from];
+            types[to] = types[from];
+            referenced[to] = referenced[from];
+        }
+
+        /**
+         * Empty a slot, shifting later entries of the same probe run back so that
+         * lookups never need tombstones
+         */
+        void delete(int slot) {
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                long code = codes[next];
+                if (code == 0) {
+                    break;
+                }
+
+                // An entry can fill the hole unless its home slot lies after the hole
+                int home = (int) spread(code) & mask;
+                boolean homeAfterHole = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+                if (!homeAfterHole) {
+                    move(next, hole);
+                    hole = next;
+                }
+            }
+
+            codes[hole] = 0;
+            referenced[hole] = 0;
+        }
+    }
+
+    private class Segment {
+        final private StampedLock lock = new StampedLock();
+        final private int maxEntries;
+        final private int maxLength;
+        private volatile Table table;
+        private int size = 0;
+        private int hand = 0;
+
+        Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+            this.maxLength = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE / 2, (long) (maxEntries / LOAD_FACTOR) + 1) * 2 - 1);
+            this.table = new Table(Math.min(64, maxLength));
+        }
+
+        Product get(long code, String sku) {
+            long stamp = lock.tryOptimisticRead();
+            Table t = table;
+            int slot = t.find(code);
+            long price = slot < 0 ? 0 : t.prices[slot];
+            byte scale = slot < 0 ? 0 : t.scales[slot];
+            int type = slot < 0 ? 0 : t.types[slot];
+
+            if (!lock.validate(stamp)) {
+                // A write raced with the read, so read again under the lock
+                stamp = lock.readLock();
+                try {
+                    t = table;
+                    slot = t.find(code);
+                    price = slot < 0 ? 0 : t.prices[slot];
+                    scale = slot < 0 ? 0 : t.scales[slot];
+                    type = slot < 0 ? 0 : t.types[slot];
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+
+            if (slot < 0) {
+                return null;
+            }
+
+            // A lost update only makes the entry look a little colder to CLOCK
+            t.referenced[slot] = 1;
+            return toProduct(sku, price, scale, type);
+        }
+
+        Product put(long code, String sku, long price, byte scale, int type, boolean onlyIfAbsent) {
+            Product evicted = null;
+            Product replaced = null;
+
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = t.find(code);
+
+                if (slot >= 0) {
+                    replaced = toProduct(sku, t.prices[slot], t.scales[slot], t.types[slot]);
+                    if (!onlyIfAbsent) {
+                        t.set(slot, code, price, scale, type);
+                    }
+                } else if (size >= maxEntries && !admit(sku)) {
+                    evicted = toProduct(sku, price, scale, type);
+                } else {
+                    if (size >= maxEntries) {
+                        int victim = findVictim();
+                        evicted = toProduct(skus.decode(t.codes[victim]), t.prices[victim], t.scales[victim], t.types[victim]);
+                        t.delete(victim);
+                        size--;
+                    }
+                    if (size + 1 > t.codes.length * LOAD_FACTOR && t.codes.length < maxLength) {
+                        grow();
+                        t = table;
+                    }
+
+                    slot = (int) spread(code) & t.mask;
+                    while (t.codes[slot] != 0) {
+                        slot = (slot + 1) & t.mask;
+                    }
+                    t.set(slot, code, price, scale, type);
+                    size++;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+
+            if (evicted != null) {
+                stats.recordEviction();
+                removalListener.onRemoval(RemovalNotification.create(evicted.getSku(), evicted, RemovalCause.SIZE));
+            }
+            return replaced;
+        }
+
+        Product remove(long code, String sku) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = t.find(code);
+                if (slot < 0) {
+                    return null;
+                }
+
+                Product removed = toProduct(sku, t.prices[slot], t.scales[slot], t.types[slot]);
+                t.delete(slot);
+                size--;
+                return removed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Remove an entry if it holds the expected product
+         */
+        Product remove(long code, String sku, Product expected) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = t.find(code);
+                if (slot < 0) {
+                    return null;
+                }
+
+                Product removed = toProduct(sku, t.prices[slot], t.scales[slot], t.types[slot]);
+                if (!sameProduct(removed, expected)) {
+                    return null;
+                }
+                t.delete(slot);
+                size--;
+                return removed;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Replace an entry if it holds the expected product
+         */
+        Product replace(long code, String sku, Product expected, long price, byte scale, int type) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int slot = t.find(code);
+                if (slot < 0) {
+                    return null;
+                }
+
+                Product replaced = toProduct(sku, t.prices[slot], t.scales[slot], t.types[slot]);
+                if (!sameProduct(replaced, expected)) {
+                    return null;
+                }
+                t.set(slot, code, price, scale, type);
+                return replaced;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        long[] codes() {
+            long stamp = lock.readLock();
+            try {
+                Table t = table;
+                long[] codes = new long[size];
+                int n = 0;
+                for (long code : t.codes) {
+                    if (code != 0) {
+                        codes[n++] = code;
+                    }
+                }
+                return Arrays.copyOf(codes, n);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * TinyLFU: a new entry only evicts the entry CLOCK would if it has been requested
+         * more often, so a sweep of cold SKUs doesn't flush the hot set. A rejected
+         * entry moves the hand on so that one popular entry can't block every other.
+         * Must hold the write lock.
+         * @param sku The SKU of the new entry
+         * @return Returns true if the new entry should be admitted
+         */
+        private boolean admit(String sku) {
+            if (sketch == null) {
+                return true;
+            }
+
+            int victim = findVictim();
+            if (sketch.frequency(sku) > sketch.frequency(skus.decode(table.codes[victim]))) {
+                return true;
+            }
+
+            hand++;
+            return false;
+        }
+
+        /**
+         * Sweep the CLOCK hand to the first entry not referenced since the last sweep.
+         * Must hold the write lock.
+         * @return The slot of the entry to evict
+         */
+        private int findVictim() {
+            Table t = table;
+            while (true) {
+                hand &= t.mask;
+                if (t.codes[hand] != 0) {
+                    if (t.referenced[hand] == 0) {
+                        return hand;
+                    }
+                    t.referenced[hand] = 0;
+                }
+                hand++;
+            }
+        }
+
+        /**
+         * Double the table. Must hold the write lock.
+         */
+        private void grow() {
+            Table old = table;
+            Table grown = new Table(old.codes.length * 2);
+
+            for (int i = 0; i < old.codes.length; i++) {
+                long code = old.codes[i];
+                if (code != 0) {
+                    int slot = (int) spread(code) & grown.mask;
+                    while (grown.codes[slot] != 0) {
+                        slot = (slot + 1) & grown.mask;
+                    }
+                    grown.set(slot, code, old.prices[i], old.scales[i], old.types[i]);
+                    grown.referenced[slot] = old.referenced[i];
+                }
+            }
+
+            table = grown;
+        }
+    }
+
+    /**
+     * The ConcurrentMap view returned by asMap(). Iteration is weakly consistent:
+     * it works from a snapshot of each segment's keys taken as it reaches it.
+     */
+    private class MapView extends AbstractMap<String, Product> implements ConcurrentMap<String, Product> {
+
+        @Override
+        public Product get(Object key) {
+            return key instanceof String ? getIfPresent(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Product put(String sku, Product product) {
+            return putEntry(sku, product, false);
+        }
+
+        @Override
+        public Product putIfAbsent(String sku, Product product) {
+            return putEntry(sku, product, true);
+        }
+
+        @Override
+        public Product remove(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+
+            Product removed = removeEntry((String) key);
+            if (removed != null) {
+                removalListener.onRemoval(RemovalNotification.create((String) key, removed, RemovalCause.EXPLICIT));
+            }
+            return removed;
+        }
+
+        @Override
+        public Product replace(String sku, Product product) {
+            return containsKey(sku) ? put(sku, product) : null;
+        }
+
+        /**
+         * Cached Products are built again on every read, so the value is compared by
+         * its SKU, price and type rather than by identity
+         */
+        @Override
+        public boolean remove(Object key, Object value) {
+            if (!(key instanceof String) || !(value instanceof Product)) {
+                return false;
+            }
+            return removeEntry((String) key, (Product) value) != null;
+        }
+
+        /**
+         * Cached Products are built again on every read, so the old value is compared
+         * by its SKU, price and type rather than by identity
+         */
+        @Override
+        public boolean replace(String sku, Product oldProduct, Product newProduct) {
+            if (oldProduct == null || newProduct == null) {
+                throw new NullPointerException();
+            }
+            return replaceEntry(sku, oldProduct, newProduct) != null;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, CompactProductCache.this.size());
+        }
+
+        @Override
+        public void clear() {
+            invalidateAll();
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return new AbstractSet<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return keys();
+                }
+
+                @Override
+                public int size() {
+                    return MapView.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Set<Map.Entry<String, Product>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Product>>() {
+                @Override
+                public Iterator<Map.Entry<String, Product>> iterator() {
+                    return Iterators.filter(Iterators.transform(keys(), sku -> {
+                        Product product = getIfPresent(sku);
+                        return product == null ? null : new SimpleImmutableEntry<String, Product>(sku, product);
+                    }), entry -> entry != null);
+                }
+
+                @Override
+                public int size() {
+                    return MapView.this.size();
+                }
+            };
+        }
+
+        private Iterator<String> keys() {
+            List<Iterator<String>> parts = new ArrayList<Iterator<String>>(segments.length + 1);
+            for (Segment segment : segments) {
+                parts.add(new Iterator<String>() {
+                    private long[] codes;
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (codes == null) {
+                            codes = segment.codes();
+                        }
+                        return next < codes.length;
+                    }
+
+                    @Override
+                    public String next() {
+                        hasNext();
+                        return skus.decode(codes[next++]);
+                    }
+                });
+            }
+            parts.add(new ArrayList<String>(fallback.asMap().keySet()).iterator());
+
+            return Iterators.concat(parts.iterator());
+        }
+    }
+}
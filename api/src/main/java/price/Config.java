@@ -8,21 +8,75 @@ public final class Config {
     public static boolean BACKUP_ENABLED      	= true;
 
     // Database
-    public static String DB_URL                	= "http://localhost:8000";
+    public static String DB_URL                	= "http://localhost:8000"; // "memory:" for an in-process stand-in
+    public static int MEMORY_DB_ITEMS        	= 500000; // Products in the "memory:" stand-in
+    public static long MEMORY_DB_LATENCY     	= 30; // Simulated round trip of the "memory:" stand-in (ms)
+    public static int DB_BATCH_SIZE         	= 100; // Most misses resolved by one BatchGetItem
+    public static long DB_BATCH_WINDOW       	= 2; // How long a miss waits for others to batch with (ms)
+    public static int DB_BATCH_THREADS      	= 4; // Batches sent at once when their window closes
+    public static int DB_CLIENT_THREADS     	= 50; // Requests the shared DynamoDB client has in flight at once
+    public static int DB_COMPLETION_THREADS 	= 8; // Threads caching and backing up products fetched asynchronously
+    public static int DB_MAX_ATTEMPTS       	= 8; // BatchGetItem requests per batch before unprocessed keys fail the read
+    public static long DB_RETRY_BASE_DELAY   	= 50; // Most a first retry of unprocessed keys waits (ms), doubled each retry
+    public static long DB_RETRY_MAX_DELAY    	= 2000; // Most any retry of unprocessed keys waits (ms)
+    public static long ASYNC_REQUEST_TIMEOUT 	= 10000; // Longest a request waits on the database (ms)
+    public static int BATCH_GET_MAX_SKUS    	= 1000; // Most SKUs one POST /products:batchGet can ask for
+    public static int STREAM_BUFFER_BYTES   	= 65536; // Written to a streamed response at a time
+    public static long STREAM_REQUEST_TIMEOUT	= 600000; // Longest a streamed response such as an export may take (ms)
+    public static int STREAM_THREADS         	= 16; // Threads writing streamed responses such as batchGet and export
+    public static int STREAM_QUEUE_SIZE      	= 64; // Streamed responses waiting for a thread before more are turned away
 
     // Caching
     public static long CACHE_SIZE            	= 200000;
+    public static String CACHE_ENGINE        	= "compact"; // "compact" for primitive arrays keyed by encoded SKU, "guava" for a Guava cache
+    public static int CACHE_SEGMENTS         	= 16; // Independently locked parts of the compact cache
+    public static int INVALIDATION_STRIPES   	= 65536; // Counters that changes made while a product is fetched are detected with
+    public static boolean CACHE_ADMISSION    	= true; // Only admit products to a full compact cache if requested more often than the one they'd evict
+    public static int REBUILD_THREADS        	= 4; // Backup partitions read at once while rebuilding
+    public static boolean REBUILD_ON_DEMAND   	= true; // Requests load their partition if it isn't loaded yet
+    public static int REBUILD_PROMOTE_REQUESTS	= 3; // Requests to an unloaded partition which move it to the front of the rebuild
+    public static int REBUILD_MAX_ATTEMPTS   	= 3; // Tries to load a backup partition before it is served from the backup instead
+    public static long L2_CACHE_BYTES        	= 67108864; // 64MB off-heap for products evicted from the cache, 0 disables
+    public static int L2_CACHE_SEGMENTS      	= 16; // Independently locked parts of the off-heap cache
 
-    // Bloom Filter
-    public static double BF_FALSE_PROB         	= 0.01;
+    // Prewarming
+    public static boolean PREWARM_ENABLED    	= true; // Scan the database into the cache when there is no backup to rebuild from
+    public static int PREWARM_SEGMENTS       	= 8; // Segments of the parallel scan, each read by its own thread
+    public static int PREWARM_PAGE_SIZE      	= 1000; // Most items read by one Scan request
+    public static double PREWARM_READ_CAPACITY	= 100; // Read capacity units per second the scan may consume
+
+    // Membership Filter
+    public static long FILTER_INITIAL_CAPACITY 	= 262144; // SKUs held before the filter grows
     public static long BF_REFRESH_INTERVAL     	= 60000; // 1 min
+    public static long BF_CHECKPOINT_INTERVAL  	= 5000; // 5 sec
 
     // Partitioning
     public static String BACKUP_DIR         	= "cache_backups/";
+    public static String GENERATIONS_DIR     	= "generations/";
     public static String BLOOM_FILTER_DIR     	= "bloom_filters/";
     public static String DATA_DIR            	= "data/";
-    public static int BACKUP_PARTITIONS        	= 2000; // Do not change when using old backup files!
+    public static int BACKUP_PARTITIONS        	= 2000; // Base partitions of a new backup. An existing backup keeps its own
+    public static int MAX_PARTITION_SPLITS     	= 3; // Times a base partition can be split in depth, up to 8 partitions each
+    public static long PARTITION_SPLIT_BYTES   	= 262144; // 256KB, partitions larger than this are split in two
     public static String BACKUP_FILENAME     	= "Data_";
-    public static String CACHED_FILENAME    	= "Cached_1.bin";
-    public static String INVALID_FILENAME    	= "Invalid_1.bin";
+    public static String FILTER_FILENAME    	= "Filter_1.bin";
+    public static String SKETCH_FILENAME    	= "Popularity_1.bin";
+    public static String HEAT_FILENAME      	= "Heat_1.bin";
+    public static String LAYOUT_FILENAME    	= "Partitions_1.bin";
+    public static String LOG_SUFFIX         	= ".log";
+    public static int BACKUP_QUEUE_SIZE     	= 10000; // SKUs waiting to be written to the backup before requests block
+    public static long BACKUP_FLUSH_INTERVAL	= 100; // Longest a queued backup write waits (ms)
+
+    // Compaction
+    public static long COMPACTION_INTERVAL     	= 10000; // 10 sec
+    public static long COMPACTION_MIN_LOG_BYTES	= 16384;
+    public static double COMPACTION_GARBAGE_RATIO	= 0.25; // Share of partition bytes held in its log
+
+    // Metrics
+    public static int METRICS_STRIPES        	= 8; // Counter stripes per latency histogram
+
+    // Backup reads
+    public static String BACKUP_READER      	= "stream"; // "stream" or "mmap"
+    public static long MAPPED_PARTITION_POOL_SIZE	= 256; // Partitions kept mapped when using "mmap"
+    public static long LOG_INDEX_POOL_SIZE	= 4096; // Partition logs whose SKU offsets are kept in memory
 }
@@ -0,0 +1,318 @@
+package price;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A set membership filter which, unlike a bloom filter, can remove what it holds.
+ * Each SKU is stored as a 16-bit fingerprint in one of two buckets of four slots
+ * (a cuckoo filter), giving a false positive rate of about 0.01% per table.
+ *
+ * A cuckoo filter can't be resized without the original keys, so when a table is
+ * full a new table twice its size is added and lookups check every table. The
+ * filter can be rebuilt at its current size to fold them back into one.
+ *
+ * Every put stores a fingerprint, even if a matching one is there already, so SKUs
+ * with the same fingerprint and buckets each have their own copy and removing one
+ * leaves the others. A bucket pair holds at most MAX_DUPLICATES copies of a
+ * fingerprint, so a SKU put over and over can't fill its buckets. Callers should
+ * only put a SKU which isn't in the filter yet and only remove one which is, or the
+ * copies no longer line up with the SKUs. Lookups racing a relocation can still
+ * occasionally miss, so callers must treat a miss as "probably not there", which for
+ * the backup only costs a trip to the DB.
+ */
+public class CuckooFilter {
+
+    private static final int SLOTS = 4;
+    private static final int MAX_KICKS = 500;
+    private static final int MAX_DUPLICATES = 4;
+    private static final double LOAD_FACTOR = 0.95;
+    private static final int FORMAT_VERSION = 1;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private volatile Table[] tables;
+
+    /**
+     * Class constructor
+     * @param expectedItems The number of SKUs the filter should hold before it grows
+     */
+    public CuckooFilter(long expectedItems) {
+        tables = new Table[] { new Table(bucketsFor(expectedItems)) };
+    }
+
+    private CuckooFilter(Table[] tables) {
+        this.tables = tables;
+    }
+
+    /**
+     * Add a SKU to the filter, alongside any matching fingerprints unless its buckets
+     * already hold MAX_DUPLICATES of them
+     * @param sku The SKU to add
+     */
+    public synchronized void put(String sku) {
+        long hash = hash(sku);
+        Table[] current = tables;
+        int copies = 0;
+        for (Table table : current) {
+            copies += table.copies(hash);
+        }
+        if (copies >= MAX_DUPLICATES) {
+            return;
+        }
+
+        if (current[current.length - 1].insert(hash)) {
+            return;
+        }
+
+        // The newest table is full, so add one twice its size
+        Table grown = new Table(current[current.length - 1].buckets.length / SLOTS * 2);
+        grown.insert(hash);
+        Table[] added = Arrays.copyOf(current, current.length + 1);
+        added[current.length] = grown;
+        tables = added;
+    }
+
+    /**
+     * Remove a SKU from the filter
+     * @param sku The SKU to remove
+     * @return Returns true if a fingerprint for the SKU was found and removed
+     */
+    public synchronized boolean remove(String sku) {
+        long hash = hash(sku);
+        Table[] current = tables;
+        for (int i = current.length - 1; i >= 0; i--) {
+            if (current[i].delete(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the filter might contain a SKU. Doesn't lock.
+     * @param sku The SKU in question
+     * @return Returns true if the SKU might have been put, false if it probably wasn't
+     */
+    public boolean mightContain(String sku) {
+        return mightContain(hash(sku));
+    }
+
+    /**
+     * Get the number of SKUs in the filter
+     * @return The number of fingerprints held
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (Table table : tables) {
+            size += table.count;
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of tables the filter has grown to
+     * @return The number of tables, 1 until the filter first fills up
+     */
+    public int getTableCount() {
+        return tables.length;
+    }
+
+    /**
+     * Write the filter to a stream
+     * @param out The stream to write to
+     * @throws IOException
+     */
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(tables.length);
+        for (Table table : tables) {
+            data.writeInt(table.buckets.length);
+            data.writeInt(table.count);
+            for (short fingerprint : table.buckets) {
+                data.writeShort(fingerprint);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Read a filter written by writeTo()
+     * @param in The stream to read from
+     * @return The filter
+     * @throws IOException If the stream doesn't hold a filter
+     */
+    public static CuckooFilter readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unknown filter format");
+        }
+
+        Table[] tables = new Table[data.readInt()];
+        for (int i = 0; i < tables.length; i++) {
+            int slots = data.readInt();
+            if (slots < SLOTS || Integer.bitCount(slots) != 1) {
+                throw new IOException("Corrupt filter table");
+            }
+            tables[i] = new Table(slots / SLOTS);
+            tables[i].count = data.readInt();
+            for (int j = 0; j < slots; j++) {
+                tables[i].buckets[j] = data.readShort();
+            }
+        }
+        return new CuckooFilter(tables);
+    }
+
+    private boolean mightContain(long hash) {
+        for (Table table : tables) {
+            if (table.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long hash(String sku) {
+        return HASH.hashString(sku, Charsets.UTF_8).asLong();
+    }
+
+    private static int bucketsFor(long items) {
+        long buckets = (long) Math.ceil(Math.max(1, items) / (SLOTS * LOAD_FACTOR));
+        return (int) Math.min(1 << 28, Long.highestOneBit(buckets * 2 - 1));
+    }
+
+    /*
+     * One table of buckets. A fingerprint is never 0, which marks an empty slot.
+     * Slots are read without locking, so a lookup racing a relocation may miss.
+     */
+    private static final class Table {
+        final short[] buckets;
+        final int mask;
+        int count = 0;
+
+        Table(int bucketCount) {
+            buckets = new short[bucketCount * SLOTS];
+            mask = bucketCount - 1;
+        }
+
+        boolean contains(long hash) {
+            short fingerprint = fingerprint(hash);
+            int first = (int) hash & mask;
+            return holds(first, fingerprint) || holds(alternate(first, fingerprint), fingerprint);
+        }
+
+        int copies(long hash) {
+            short fingerprint = fingerprint(hash);
+            int first = (int) hash & mask;
+            int second = alternate(first, fingerprint);
+            return first == second ? count(first, fingerprint) : count(first, fingerprint) + count(second, fingerprint);
+        }
+
+        boolean insert(long hash) {
+            short fingerprint = fingerprint(hash);
+            int first = (int) hash & mask;
+            int second = alternate(first, fingerprint);
+            if (add(first, fingerprint) || add(second, fingerprint)) {
+                count++;
+                return true;
+            }
+
+            // Evict a fingerprint to its other bucket until one fits, keeping what was
+            // moved so the table can be put back as it was if none does
+            int[] movedSlots = new int[MAX_KICKS];
+            short[] movedFingerprints = new short[MAX_KICKS];
+            int bucket = ThreadLocalRandom.current().nextBoolean() ? first : second;
+            for (int kick = 0; kick < MAX_KICKS; kick++) {
+                int slot = bucket * SLOTS + ThreadLocalRandom.current().nextInt(SLOTS);
+                movedSlots[kick] = slot;
+                movedFingerprints[kick] = buckets[slot];
+
+                short evicted = buckets[slot];
+                buckets[slot] = fingerprint;
+                fingerprint = evicted;
+                bucket = alternate(bucket, fingerprint);
+
+                if (add(bucket, fingerprint)) {
+                    count++;
+                    return true;
+                }
+            }
+
+            for (int kick = MAX_KICKS - 1; kick >= 0; kick--) {
+                buckets[movedSlots[kick]] = movedFingerprints[kick];
+            }
+            return false;
+        }
+
+        boolean delete(long hash) {
+            short fingerprint = fingerprint(hash);
+            int first = (int) hash & mask;
+            if (clear(first, fingerprint) || clear(alternate(first, fingerprint), fingerprint)) {
+                count--;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean holds(int bucket, short fingerprint) {
+            int start = bucket * SLOTS;
+            for (int i = start; i < start + SLOTS; i++) {
+                if (buckets[i] == fingerprint) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int count(int bucket, short fingerprint) {
+            int copies = 0;
+            int start = bucket * SLOTS;
+            for (int i = start; i < start + SLOTS; i++) {
+                if (buckets[i] == fingerprint) {
+                    copies++;
+                }
+            }
+            return copies;
+        }
+
+        private boolean add(int bucket, short fingerprint) {
+            int start = bucket * SLOTS;
+            for (int i = start; i < start + SLOTS; i++) {
+                if (buckets[i] == 0) {
+                    buckets[i] = fingerprint;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean clear(int bucket, short fingerprint) {
+            int start = bucket * SLOTS;
+            for (int i = start; i < start + SLOTS; i++) {
+                if (buckets[i] == fingerprint) {
+                    buckets[i] = 0;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int alternate(int bucket, short fingerprint) {
+            return (bucket ^ (fingerprint * 0x5bd1e995)) & mask;
+        }
+
+        private static short fingerprint(long hash) {
+            short fingerprint = (short) (hash >>> 48);
+            return fingerprint == 0 ? 1 : fingerprint;
+        }
+    }
+}
@@ -1,31 +1,97 @@
 package price;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class DBConnection {
-    private Table table = null;
-    private AmazonDynamoDBClient client;
+    public static final String TABLE_NAME = "Products";
+    public static final int MAX_BATCH_GET_KEYS = 100; // DynamoDB's BatchGetItem limit
+
+    // Times the simulated network delay and retry backoff without holding a thread. Only
+    // hands each completion to DB_COMPLETION, so one timer thread never runs callers' work.
+    protected static final ScheduledExecutorService NETWORK_DELAY = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("DB Network Delay").setDaemon(true).build());
+
+    // Completes async requests, so the stages callers chain on them (caching and backing
+    // up what was fetched) run here and one slow stage holds up at most one thread
+    protected static final ExecutorService DB_COMPLETION = Executors.newFixedThreadPool(Config.DB_COMPLETION_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("DB Completion %d").setDaemon(true).build());
+
+    private volatile Table table = null;
+    private AmazonDynamoDBAsyncClient client;
     private DynamoDB dynamoDB;
 
     /**
-     * Connect to the DynamoDB database. Database URL specified by Config.DB_URL
+     * Connect to the DynamoDB database. Database URL specified by Config.DB_URL.
+     * The client is built by the first call and shared by every later call, so
+     * this is cheap to call before each request.
      * @throws ResourceUnavailableException
      */
     public void makeConnection() throws ResourceUnavailableException {
+        if (table != null) {
+            return;
+        }
 
-        try { // Connect to DB and get table
-            client = new AmazonDynamoDBClient(new ProfileCredentialsProvider())
-                    .withEndpoint(Config.DB_URL);
+        synchronized (this) {
+            if (table != null) {
+                return;
+            }
 
-            dynamoDB = new DynamoDB(client);
+            try { // Connect to DB and get table
+                client = new AmazonDynamoDBAsyncClient(new ProfileCredentialsProvider(),
+                        Executors.newFixedThreadPool(Config.DB_CLIENT_THREADS,
+                                new ThreadFactoryBuilder().setNameFormat("DB Client %d").setDaemon(true).build()));
+                client.setEndpoint(Config.DB_URL);
 
-            table = dynamoDB.getTable("Products");
-        } catch (Exception e) {
-            throw new ResourceUnavailableException();
+                dynamoDB = new DynamoDB(client);
+
+                table = dynamoDB.getTable(TABLE_NAME);
+            } catch (Exception e) {
+                throw new ResourceUnavailableException();
+            }
+        }
+    }
+
+    /**
+     * Release the client's connections and threads
+     */
+    public void close() {
+        synchronized (this) {
+            if (client != null) {
+                client.shutdown();
+                client = null;
+                table = null;
+            }
         }
     }
 
@@ -61,6 +127,129 @@ public class DBConnection {
         return new Product(sku, item.getNumber("Price"), item.getString("Type"));
     }
 
+    /**
+     * Get several products from the database with BatchGetItem, at most
+     * MAX_BATCH_GET_KEYS keys per request. Keys which DynamoDB leaves unprocessed
+     * (e.g. when throttled) are requested again after a backoff delay, up to
+     * Config.DB_MAX_ATTEMPTS requests per batch.
+     * @param skus The skus of the products (Primary keys)
+     * @return A map of sku to Product for each product found. Skus which weren't
+     * found are left out.
+     * @throws Exception if a request fails, or keys are still unprocessed after
+     * Config.DB_MAX_ATTEMPTS requests
+     */
+    public Map<String, Product> getProducts(Collection<String> skus) throws Exception {
+        Map<String, Product> products = new HashMap<String, Product>();
+        List<String> keys = new ArrayList<String>(skus);
+
+        for (int start = 0; start < keys.size(); start += MAX_BATCH_GET_KEYS) {
+            Map<String, KeysAndAttributes> batch = toKeys(keys.subList(start, Math.min(start + MAX_BATCH_GET_KEYS, keys.size())));
+
+            for (int attempt = 1; ; attempt++) {
+                BatchGetItemResult response = batchGetItem(new BatchGetItemRequest(batch));
+                addProducts(response, products);
+
+                batch = response.getUnprocessedKeys();
+                if (batch == null || batch.isEmpty()) {
+                    break;
+                }
+                if (attempt >= Config.DB_MAX_ATTEMPTS) {
+                    throw new Exception(countKeys(batch) + " keys still unprocessed after " + attempt + " requests");
+                }
+
+                // Resending straight away would only be throttled again
+                Thread.sleep(getRetryDelay(attempt));
+            }
+        }
+
+        return products;
+    }
+
+    /**
+     * Get several products from the database with BatchGetItem without blocking the
+     * calling thread. Works like getProducts(), with each request sent on the client's
+     * own threads and each retry of unprocessed keys scheduled after its backoff delay
+     * rather than waited for. The future is completed, and stages chained on it run, on
+     * one of Config.DB_COMPLETION_THREADS threads.
+     * @param skus The skus of the products (Primary keys)
+     * @return A future which completes with a map of sku to Product for each product
+     * found, or exceptionally if a request fails or keys are still unprocessed after
+     * Config.DB_MAX_ATTEMPTS requests
+     */
+    public CompletableFuture<Map<String, Product>> getProductsAsync(Collection<String> skus) {
+        List<String> keys = new ArrayList<String>(skus);
+        List<CompletableFuture<Map<String, Product>>> requests = new ArrayList<CompletableFuture<Map<String, Product>>>();
+
+        for (int start = 0; start < keys.size(); start += MAX_BATCH_GET_KEYS) {
+            requests.add(batchGetItemAsync(toKeys(keys.subList(start, Math.min(start + MAX_BATCH_GET_KEYS, keys.size()))),
+                    new HashMap<String, Product>(), 1));
+        }
+
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[requests.size()])).thenApply(done -> {
+            Map<String, Product> products = new HashMap<String, Product>();
+            for (CompletableFuture<Map<String, Product>> request : requests) {
+                products.putAll(request.join());
+            }
+            return products;
+        });
+    }
+
+    /**
+     * Read one segment of a parallel scan of the table (Segment of TotalSegments), a
+     * page at a time. The read capacity each page consumed is taken from a budget
+     * shared by every segment before the next page is requested, so the scan as a
+     * whole stays within the budget however many segments are read at once.
+     * @param segment The segment to read, from 0 to totalSegments - 1
+     * @param totalSegments The number of segments the table is divided into
+     * @param pageSize The most items one Scan request reads
+     * @param readCapacity Read capacity units per second, shared by every segment
+     * @param page Called with the products of each page. Returns false to stop early.
+     * @throws Exception if a request fails
+     */
+    public void scanSegment(int segment, int totalSegments, int pageSize, RateLimiter readCapacity,
+            Predicate<List<Product>> page) throws Exception {
+        Map<String, AttributeValue> startKey = null;
+
+        do {
+            ScanRequest request = new ScanRequest(TABLE_NAME)
+                    .withSegment(segment)
+                    .withTotalSegments(totalSegments)
+                    .withLimit(pageSize)
+                    .withExclusiveStartKey(startKey)
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            ScanResult result = client.scan(request);
+
+            List<Product> products = new ArrayList<Product>(result.getItems().size());
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                products.add(toProduct(item));
+            }
+
+            // Wait longer to simulate network, once per round trip
+            Thread.sleep(30L);
+
+            if (result.getConsumedCapacity() != null) {
+                readCapacity.acquire(Math.max(1, (int) Math.ceil(result.getConsumedCapacity().getCapacityUnits())));
+            }
+            if (!page.test(products)) {
+                return;
+            }
+
+            startKey = result.getLastEvaluatedKey();
+        } while (startKey != null && !startKey.isEmpty());
+    }
+
+    /**
+     * Create the connection described by Config.DB_URL. A URL starting with
+     * "memory:" gives an in-process stand-in instead of a DynamoDB connection.
+     * @return A new DBConnection
+     */
+    public static DBConnection create() {
+        if (Config.DB_URL.startsWith(InMemoryDBConnection.URL_SCHEME)) {
+            return new InMemoryDBConnection(Config.MEMORY_DB_ITEMS);
+        }
+        return new DBConnection();
+    }
+
     /**
      * Add/Update a product in the database
      * @param product The product to add/update
@@ -74,4 +263,178 @@ public class DBConnection {
 
         table.putItem(item);
     }
+
+    /**
+     * Add/Update a product in the database without blocking the calling thread
+     * @param product The product to add/update
+     * @return A future which completes once the product is written, or exceptionally
+     * if unsuccessful
+     */
+    public CompletableFuture<Void> putProductAsync(Product product) {
+        Map<String, AttributeValue> item = toItem(product);
+
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+        client.putItemAsync(new PutItemRequest(TABLE_NAME, item), new AsyncHandler<PutItemRequest, PutItemResult>() {
+            @Override
+            public void onError(Exception e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onSuccess(PutItemRequest request, PutItemResult response) {
+                result.complete(null);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Send one BatchGetItem request and wait for the response
+     * @param request The request
+     * @return The response, including any keys left unprocessed
+     */
+    protected BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+        BatchGetItemResult response = client.batchGetItem(request);
+
+        // Wait longer to simulate network, once per round trip
+        try {
+            long time = 30L;
+            Thread.sleep(time);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return response;
+    }
+
+    /**
+     * Send one BatchGetItem request without blocking the calling thread
+     * @param request The request
+     * @return A future which completes with the response, including any keys left
+     * unprocessed, or exceptionally if the request fails
+     */
+    protected CompletableFuture<BatchGetItemResult> batchGetItemAsync(BatchGetItemRequest request) {
+        CompletableFuture<BatchGetItemResult> result = new CompletableFuture<BatchGetItemResult>();
+
+        client.batchGetItemAsync(request, new AsyncHandler<BatchGetItemRequest, BatchGetItemResult>() {
+            @Override
+            public void onError(Exception e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onSuccess(BatchGetItemRequest request, BatchGetItemResult response) {
+                // Wait longer to simulate network, once per round trip
+                NETWORK_DELAY.schedule(() -> DB_COMPLETION.execute(() -> result.complete(response)),
+                        30L, TimeUnit.MILLISECONDS);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Get how long to wait before resending keys left unprocessed: exponential in the
+     * number of requests sent so far, capped at Config.DB_RETRY_MAX_DELAY, with full
+     * jitter so that requests throttled together don't retry together
+     * @param attempt The number of requests sent so far, from 1
+     * @return The delay in milliseconds
+     */
+    static long getRetryDelay(int attempt) {
+        long ceiling = Math.min(Config.DB_RETRY_MAX_DELAY, Config.DB_RETRY_BASE_DELAY << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Build the keys of a BatchGetItem request
+     * @param skus The skus of the products, at most MAX_BATCH_GET_KEYS
+     * @return The request items
+     */
+    protected static Map<String, KeysAndAttributes> toKeys(Collection<String> skus) {
+        List<Map<String, AttributeValue>> keys = new ArrayList<Map<String, AttributeValue>>(skus.size());
+        for (String sku : skus) {
+            keys.add(Collections.singletonMap("SKU", new AttributeValue(sku)));
+        }
+        return Collections.singletonMap(TABLE_NAME, new KeysAndAttributes().withKeys(keys));
+    }
+
+    /**
+     * Build a table item from a product
+     * @param product The product
+     * @return The item's attributes
+     */
+    protected static Map<String, AttributeValue> toItem(Product product) {
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put("SKU", new AttributeValue(product.getSku()));
+        if (product.getPrice() != null) {
+            item.put("Price", new AttributeValue().withN(product.getPrice().toPlainString()));
+        }
+        if (product.getType() != null) {
+            item.put("Type", new AttributeValue(product.getType()));
+        }
+        return item;
+    }
+
+    /**
+     * Complete a future with a value once a delay has passed, without holding a
+     * thread while waiting. The future is completed on a DB_COMPLETION thread.
+     * @param value The value to complete with
+     * @param delay The delay in milliseconds
+     * @return The future
+     */
+    protected static <T> CompletableFuture<T> completeAfter(T value, long delay) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        NETWORK_DELAY.schedule(() -> DB_COMPLETION.execute(() -> future.complete(value)), delay, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private CompletableFuture<Map<String, Product>> batchGetItemAsync(Map<String, KeysAndAttributes> keys,
+            Map<String, Product> products, int attempt) {
+        return batchGetItemAsync(new BatchGetItemRequest(keys)).thenCompose(response -> {
+            addProducts(response, products);
+
+            Map<String, KeysAndAttributes> unprocessed = response.getUnprocessedKeys();
+            if (unprocessed == null || unprocessed.isEmpty()) {
+                return CompletableFuture.completedFuture(products);
+            }
+            if (attempt >= Config.DB_MAX_ATTEMPTS) {
+                CompletableFuture<Map<String, Product>> failed = new CompletableFuture<Map<String, Product>>();
+                failed.completeExceptionally(new Exception(countKeys(unprocessed) + " keys still unprocessed after "
+                        + attempt + " requests"));
+                return failed;
+            }
+
+            // Resending straight away would only be throttled again
+            return completeAfter(unprocessed, getRetryDelay(attempt))
+                    .thenCompose(retry -> batchGetItemAsync(retry, products, attempt + 1));
+        });
+    }
+
+    private static void addProducts(BatchGetItemResult response, Map<String, Product> products) {
+        List<Map<String, AttributeValue>> items = response.getResponses().get(TABLE_NAME);
+        if (items != null) {
+            for (Map<String, AttributeValue> item : items) {
+                Product product = toProduct(item);
+                products.put(product.getSku(), product);
+            }
+        }
+    }
+
+    private static int countKeys(Map<String, KeysAndAttributes> keys) {
+        int count = 0;
+        for (KeysAndAttributes table : keys.values()) {
+            count += table.getKeys().size();
+        }
+        return count;
+    }
+
+    private static Product toProduct(Map<String, AttributeValue> item) {
+        AttributeValue price = item.get("Price");
+        AttributeValue type = item.get("Type");
+
+        return new Product(item.get("SKU").getS(),
+                price == null ? null : new BigDecimal(price.getN()),
+                type == null ? null : type.getS());
+    }
 }
@@ -0,0 +1,38 @@
+package price;
+
+/**
+ * Background thread which writes the membership filter, popularity sketch and
+ * partition heat held by CacheBackupHandler to disk every
+ * Config.BF_CHECKPOINT_INTERVAL, so that requests only ever update them in memory.
+ */
+public class FilterCheckpointer extends Thread {
+
+    final private CacheBackupHandler cacheBackupHandler;
+
+    /**
+     * Class constructor
+     * @param cacheBackupHandler The handler whose filter should be persisted
+     */
+    public FilterCheckpointer(CacheBackupHandler cacheBackupHandler) {
+        this.cacheBackupHandler = cacheBackupHandler;
+        this.setName("Filter Checkpointer");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Entry point to start a new thread
+     */
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                Thread.sleep(Config.BF_CHECKPOINT_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            cacheBackupHandler.checkpointFilter();
+            cacheBackupHandler.checkpointFrequencySketch();
+            cacheBackupHandler.checkpointPartitionHeat();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package price;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Background thread which rebuilds the membership filter held by CacheBackupHandler
+ * from the backup partitions every Config.BF_REFRESH_INTERVAL, so that no request
+ * pays for reading them. Refreshes are skipped while the cache is being rebuilt,
+ * which is reading the same partitions.
+ */
+public class FilterRefresher extends Thread {
+
+    final private CacheBackupHandler cacheBackupHandler;
+    final private CacheRebuilder cacheRebuilder;
+    private volatile long refreshes = 0;
+    private volatile long lastRefreshTime = 0;
+    private volatile long lastRefreshMillis = 0;
+    private volatile int lastRefreshKeys = 0;
+    private final static Logger LOGGER = Logger.getLogger(FilterRefresher.class.getName());
+
+    /**
+     * Class constructor
+     * @param cacheBackupHandler The handler whose filter should be refreshed
+     * @param cacheRebuilder Tells whether the cache is still being rebuilt
+     */
+    public FilterRefresher(CacheBackupHandler cacheBackupHandler, CacheRebuilder cacheRebuilder) {
+        this.cacheBackupHandler = cacheBackupHandler;
+        this.cacheRebuilder = cacheRebuilder;
+        this.setName("Filter Refresher");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Entry point to start a new thread
+     */
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                Thread.sleep(Config.BF_REFRESH_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (!cacheRebuilder.isRebuilding()) {
+                refresh();
+            }
+        }
+    }
+
+    /**
+     * Rebuild the filter now and record how long it took
+     */
+    public void refresh() {
+        LOGGER.info("Refreshing filter");
+        long start = System.nanoTime();
+
+        int keys = cacheBackupHandler.refreshFilter();
+
+        lastRefreshMillis = (System.nanoTime() - start) / 1000000;
+        lastRefreshKeys = keys;
+        lastRefreshTime = System.currentTimeMillis();
+        refreshes++;
+        LOGGER.info("Finished refreshing filter with " + keys + " SKUs in " + lastRefreshMillis + "ms");
+    }
+
+    /**
+     * Summarise the refreshes made so far
+     * @return A map of the number of refreshes, and the time (epoch ms), duration (ms)
+     * and number of SKUs of the last one
+     */
+    public Map<String, Long> getSummary() {
+        Map<String, Long> summary = new LinkedHashMap<String, Long>();
+        summary.put("refreshes", refreshes);
+        summary.put("lastRefreshTime", lastRefreshTime);
+        summary.put("lastRefreshMillis", lastRefreshMillis);
+        summary.put("lastRefreshKeys", (long) lastRefreshKeys);
+        return summary;
+    }
+}
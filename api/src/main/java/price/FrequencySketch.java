@@ -0,0 +1,172 @@
+package price;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch estimating how often each SKU has been requested recently, as
+ * used by TinyLFU. Each long holds sixteen 4-bit counters and every SKU is counted in
+ * four of them, picked by different hashes. Once as many increments as ten times the
+ * cache size have been counted every counter is halved, so popularity fades with age.
+ *
+ * Counters are only estimates: concurrent increments and resets can lose counts.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int FORMAT_VERSION = 1;
+
+    final private AtomicLongArray table;
+    final private int tableMask;
+    final private int sampleSize;
+    final private AtomicInteger additions = new AtomicInteger();
+    private volatile boolean dirty = false;
+
+    /**
+     * Class constructor
+     * @param maximumSize The number of entries whose popularity should be tracked accurately
+     */
+    public FrequencySketch(long maximumSize) {
+        int length = Integer.highestOneBit((int) Math.max(1, Math.min(maximumSize, 1 << 30)) * 2 - 1);
+        table = new AtomicLongArray(length);
+        tableMask = length - 1;
+        sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * Math.max(1, maximumSize));
+    }
+
+    /**
+     * Count a request for a SKU
+     * @param sku The SKU requested
+     */
+    public void increment(String sku) {
+        int hash = spread(sku.hashCode());
+        int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added) {
+            if (!dirty) {
+                dirty = true;
+            }
+            if (additions.incrementAndGet() == sampleSize) {
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Estimate how often a SKU has been requested recently
+     * @param sku The SKU in question
+     * @return The estimated number of requests, from 0 to 15
+     */
+    public int frequency(String sku) {
+        int hash = spread(sku.hashCode());
+        int start = (hash & 3) << 2;
+
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int offset = (start + i) << 2;
+            frequency = Math.min(frequency, (int) ((table.get(indexOf(hash, i)) >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /**
+     * Returns true if the sketch has changed since it was last written
+     * @return Returns true if the sketch has changed
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Write the counters to a stream. Counts made while writing may or may not be
+     * included.
+     * @param out The stream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        dirty = false;
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(table.length());
+        data.writeInt(additions.get());
+        for (int i = 0; i < table.length(); i++) {
+            data.writeLong(table.get(i));
+        }
+        data.flush();
+    }
+
+    /**
+     * Read counters written by writeTo() into this sketch
+     * @param in The stream to read from
+     * @return Returns false, leaving the sketch empty, if the counters were written by a
+     * sketch of a different size
+     * @throws IOException
+     */
+    public boolean readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != FORMAT_VERSION || data.readInt() != table.length()) {
+            return false;
+        }
+
+        additions.set(Math.min(data.readInt(), sampleSize - 1));
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, data.readLong());
+        }
+        return true;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+
+        while (true) {
+            long word = table.get(index);
+            if ((word & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(index, word, word + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    /*
+     * Halve every counter. Odd counters lose half a count each, which is taken off
+     * the number of additions too.
+     */
+    private synchronized void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length(); i++) {
+            long word;
+            do {
+                word = table.get(i);
+            } while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+            odd += Long.bitCount(word & ONE_MASK);
+        }
+        additions.addAndGet(-(sampleSize - ((sampleSize - (odd >>> 2)) >>> 1)));
+    }
+
+    private int indexOf(int hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
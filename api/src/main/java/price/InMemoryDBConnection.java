@@ -0,0 +1,186 @@
+package price;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * In-process stand-in for the DynamoDB Products table, for running the service
+ * and its tools on a machine without DynamoDB Local. It is filled with the same
+ * products as scripts/DB/buildtestdb.js and simulates the same 30ms round trip as
+ * DBConnection, once per request.
+ */
+public class InMemoryDBConnection extends DBConnection {
+
+    public static final String URL_SCHEME = "memory:";
+
+    // The attribute names, which DynamoDB counts towards an item's size
+    private static final int ITEM_OVERHEAD_BYTES = 12;
+
+    final private ConcurrentMap<String, Product> table;
+    final private AtomicLong batchGetItems = new AtomicLong();
+    private volatile double unprocessedShare = 0;
+
+    /**
+     * Class constructor
+     * @param numberItems The number of products to fill the table with
+     */
+    public InMemoryDBConnection(int numberItems) {
+        table = new ConcurrentHashMap<String, Product>(numberItems);
+        Random random = new Random(numberItems);
+
+        for (int i = 0; i < numberItems; i++) {
+            String sku = "THING-" + String.format("%08d", i);
+            // Random price between $1 and $1000
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(99901) + 100, 2);
+            table.put(sku, new Product(sku, price, "Regular"));
+        }
+    }
+
+    @Override
+    public void makeConnection() throws ResourceUnavailableException {
+        // Always connected
+    }
+
+    @Override
+    public Product getProduct(String sku) throws Exception {
+        simulateRoundTrip();
+
+        Product product = table.get(sku);
+        if (product == null) {
+            // Item with SKU not found
+            throw new Exception("Item " + sku + " not found");
+        }
+
+        return product;
+    }
+
+    @Override
+    protected BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+        simulateRoundTrip();
+        return answerBatchGetItem(request);
+    }
+
+    @Override
+    protected CompletableFuture<BatchGetItemResult> batchGetItemAsync(BatchGetItemRequest request) {
+        return completeAfter(answerBatchGetItem(request), Config.MEMORY_DB_LATENCY);
+    }
+
+    @Override
+    public void putProduct(Product product) throws Exception {
+        simulateRoundTrip();
+        table.put(product.getSku(), new Product(product.getSku(), product.getPrice(), product.getType()));
+    }
+
+    @Override
+    public CompletableFuture<Void> putProductAsync(Product product) {
+        table.put(product.getSku(), new Product(product.getSku(), product.getPrice(), product.getType()));
+        return completeAfter(null, Config.MEMORY_DB_LATENCY);
+    }
+
+    /**
+     * Read one segment of a scan of the table, as DBConnection does. SKUs are divided
+     * between segments by their hash, and each page consumes read capacity as
+     * DynamoDB charges an eventually consistent scan: half a unit per 4KB read.
+     */
+    @Override
+    public void scanSegment(int segment, int totalSegments, int pageSize, RateLimiter readCapacity,
+            Predicate<List<Product>> page) throws Exception {
+        List<Product> items = new ArrayList<Product>();
+        for (Product product : table.values()) {
+            if (Math.floorMod(product.getSku().hashCode(), totalSegments) == segment) {
+                items.add(product);
+            }
+        }
+
+        for (int start = 0; start < items.size(); start += pageSize) {
+            List<Product> products = new ArrayList<Product>(items.subList(start, Math.min(start + pageSize, items.size())));
+            simulateRoundTrip();
+
+            long bytes = 0;
+            for (Product product : products) {
+                bytes += ITEM_OVERHEAD_BYTES + product.getSku().length()
+                        + (product.getType() == null ? 0 : product.getType().length())
+                        + (product.getPrice() == null ? 0 : product.getPrice().toPlainString().length());
+            }
+            readCapacity.acquire((int) Math.max(1, (bytes + 8191) / 8192));
+
+            if (!page.test(products)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the number of products in the table
+     * @return The number of products
+     */
+    public int size() {
+        return table.size();
+    }
+
+    /**
+     * Simulate throttling by leaving a share of the keys in each BatchGetItem request
+     * unprocessed, as DynamoDB does when a request exceeds the table's capacity
+     * @param share The chance of each key being left unprocessed, from 0 to 1
+     */
+    public void setUnprocessedShare(double share) {
+        unprocessedShare = share;
+    }
+
+    /**
+     * Get the number of BatchGetItem requests answered, including retries of keys
+     * left unprocessed
+     * @return The number of requests
+     */
+    public long getBatchGetItemCount() {
+        return batchGetItems.get();
+    }
+
+    private BatchGetItemResult answerBatchGetItem(BatchGetItemRequest request) {
+        batchGetItems.incrementAndGet();
+
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        List<Map<String, AttributeValue>> unprocessed = new ArrayList<Map<String, AttributeValue>>();
+        for (Map<String, AttributeValue> key : request.getRequestItems().get(TABLE_NAME).getKeys()) {
+            if (unprocessedShare > 0 && ThreadLocalRandom.current().nextDouble() < unprocessedShare) {
+                unprocessed.add(key);
+                continue;
+            }
+
+            Product product = table.get(key.get("SKU").getS());
+            if (product != null) {
+                items.add(toItem(product));
+            }
+        }
+
+        BatchGetItemResult result = new BatchGetItemResult().withResponses(Collections.singletonMap(TABLE_NAME, items));
+        if (!unprocessed.isEmpty()) {
+            result.setUnprocessedKeys(Collections.singletonMap(TABLE_NAME, new KeysAndAttributes().withKeys(unprocessed)));
+        }
+        return result;
+    }
+
+    private void simulateRoundTrip() {
+        try {
+            Thread.sleep(Config.MEMORY_DB_LATENCY);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
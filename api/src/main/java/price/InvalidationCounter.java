@@ -0,0 +1,49 @@
+package price;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the invalidations of each SKU, so that a product fetched from the database
+ * can be checked for a change made while it was being fetched before it is cached.
+ * Read the count before fetching, and only cache the product if the count is still
+ * the same afterwards. SKUs share counters, so a change to one SKU can make a fetch of
+ * another look out of date, which only costs a product not being cached.
+ */
+public class InvalidationCounter {
+
+    final private AtomicLongArray counts;
+    final private int mask;
+
+    /**
+     * Class constructor
+     * @param stripes The number of counters, rounded up to a power of two
+     */
+    public InvalidationCounter(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        counts = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Get the number of times a SKU (or one sharing its counter) has been invalidated
+     * @param sku The SKU in question
+     * @return The count
+     */
+    public long get(String sku) {
+        return counts.get(indexOf(sku));
+    }
+
+    /**
+     * Record an invalidation of a SKU. Must be called before the SKU is removed from
+     * the cache.
+     * @param sku The SKU invalidated
+     */
+    public void increment(String sku) {
+        counts.incrementAndGet(indexOf(sku));
+    }
+
+    private int indexOf(String sku) {
+        int h = sku.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
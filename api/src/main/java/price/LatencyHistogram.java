@@ -0,0 +1,127 @@
+package price;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram. Latencies are recorded
+ * in microseconds into log-linear buckets: every power of two is split into 64
+ * buckets, so any recorded value is reported to within about 1.5%.
+ *
+ * Recording threads are spread over several stripes of counters so that they
+ * rarely contend on the same cache line. The stripes are summed when percentiles
+ * are read.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // per power of two
+    private static final long MAX_VALUE = TimeUnit.HOURS.toMicros(1); // larger values are clamped
+    private static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    final private int stripes;
+    final private AtomicLongArray counts; // stripe i holds buckets [i * BUCKETS, (i + 1) * BUCKETS)
+    final private AtomicLongArray maxima; // largest value recorded by each stripe
+
+    /**
+     * Class constructor
+     * @param stripes The number of stripes of counters that recording threads are spread over
+     */
+    public LatencyHistogram(int stripes) {
+        this.stripes = Math.max(1, stripes);
+        this.counts = new AtomicLongArray(this.stripes * BUCKETS);
+        this.maxima = new AtomicLongArray(this.stripes);
+    }
+
+    /**
+     * Record a latency
+     * @param nanos The latency in nanoseconds
+     */
+    public void recordNanos(long nanos) {
+        long micros = Math.min(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)), MAX_VALUE);
+        int stripe = (int) (Thread.currentThread().getId() % stripes);
+
+        counts.incrementAndGet(stripe * BUCKETS + bucketIndex(micros));
+
+        long max = maxima.get(stripe);
+        while (micros > max && !maxima.compareAndSet(stripe, max, micros)) {
+            max = maxima.get(stripe);
+        }
+    }
+
+    /**
+     * Record the time since a request started
+     * @param startNanos The System.nanoTime() at which the request started
+     */
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Summarise the latencies recorded so far
+     * @return A map holding the count, p50, p99, p999 and max latency in microseconds
+     */
+    public Map<String, Long> getSummary() {
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucket = counts.get(stripe * BUCKETS + i);
+                merged[i] += bucket;
+                count += bucket;
+            }
+        }
+
+        long max = 0;
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            max = Math.max(max, maxima.get(stripe));
+        }
+
+        Map<String, Long> summary = new LinkedHashMap<String, Long>();
+        summary.put("count", count);
+        summary.put("p50", Math.min(valueAtPercentile(merged, count, 50.0), max));
+        summary.put("p99", Math.min(valueAtPercentile(merged, count, 99.0), max));
+        summary.put("p999", Math.min(valueAtPercentile(merged, count, 99.9), max));
+        summary.put("max", max);
+        return summary;
+    }
+
+    private static long valueAtPercentile(long[] buckets, long count, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return highestValueInBucket(i);
+            }
+        }
+
+        return MAX_VALUE;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        // Shift the value down until it lies in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestValueInBucket(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index - shift * SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
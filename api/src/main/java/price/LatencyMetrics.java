@@ -0,0 +1,49 @@
+package price;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One LatencyHistogram for each tier a request can be answered from, plus one for
+ * the time taken to load each backup partition while rebuilding.
+ */
+public class LatencyMetrics {
+
+    public enum Tier {
+        CACHE_HIT, L2_HIT, BACKUP_HIT, DB_LOAD, PUT, BATCH_GET, REBUILD_PARTITION
+    }
+
+    final private Map<Tier, LatencyHistogram> histograms;
+
+    /**
+     * Class constructor
+     */
+    public LatencyMetrics() {
+        histograms = new EnumMap<Tier, LatencyHistogram>(Tier.class);
+        for (Tier tier : Tier.values()) {
+            histograms.put(tier, new LatencyHistogram(Config.METRICS_STRIPES));
+        }
+    }
+
+    /**
+     * Record the time since a request started
+     * @param tier The tier the request was answered from
+     * @param startNanos The System.nanoTime() at which the request started
+     */
+    public void recordSince(Tier tier, long startNanos) {
+        histograms.get(tier).recordSince(startNanos);
+    }
+
+    /**
+     * Summarise every tier's latencies
+     * @return A map of tier name to its count, p50, p99, p999 and max latency in microseconds
+     */
+    public Map<String, Map<String, Long>> getSummary() {
+        Map<String, Map<String, Long>> summary = new LinkedHashMap<String, Map<String, Long>>();
+        for (Map.Entry<Tier, LatencyHistogram> entry : histograms.entrySet()) {
+            summary.put(entry.getKey().name().toLowerCase(), entry.getValue().getSummary());
+        }
+        return summary;
+    }
+}
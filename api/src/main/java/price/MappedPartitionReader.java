@@ -0,0 +1,211 @@
+package price;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Serves partition files from memory mapped regions so that hot partitions are read
+ * straight out of the page cache without copying. At most
+ * Config.MAPPED_PARTITION_POOL_SIZE partitions are kept mapped at once; the least
+ * recently used mapping is dropped when the pool is full.
+ *
+ * Partition files are always replaced by renaming a new file over the old one, so a
+ * mapping never sees a partially written file. Writers must call invalidate() after
+ * replacing a file so that the next read maps the new contents.
+ *
+ * A mapping which has been dropped or invalidated is unmapped as soon as the last
+ * buffer read from it is released, rather than whenever the garbage collector gets
+ * to it, so that deleted partition files give back their disk space straight away.
+ */
+public class MappedPartitionReader implements PartitionReader {
+
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    private final LoadingCache<File, Mapping> mappings;
+    private final Map<ByteBuffer, Mapping> lent = Collections.synchronizedMap(new IdentityHashMap<ByteBuffer, Mapping>());
+    private final static Logger LOGGER = Logger.getLogger(MappedPartitionReader.class.getName());
+
+    /**
+     * Class constructor
+     * @param poolSize The maximum number of partition files mapped at once
+     */
+    public MappedPartitionReader(long poolSize) {
+        mappings = CacheBuilder.newBuilder().maximumSize(poolSize)
+                .removalListener(new RemovalListener<File, Mapping>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<File, Mapping> removal) {
+                        removal.getValue().retire();
+                    }
+                })
+                .build(new CacheLoader<File, Mapping>() {
+                    @Override
+                    public Mapping load(File file) throws Exception {
+                        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                        try {
+                            // The mapping stays valid after the channel is closed
+                            return new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                        } finally {
+                            channel.close();
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public ByteBuffer read(File file) {
+        try {
+            while (true) {
+                Mapping mapping = mappings.get(file);
+
+                // Each caller gets its own position and limit over the shared mapping
+                ByteBuffer partition = mapping.lend();
+                if (partition != null) {
+                    lent.put(partition, mapping);
+                    return partition;
+                }
+                // Dropped from the pool between the lookup and the lend, so map it again
+            }
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            LOGGER.fine("Could not map cache backup file " + file.getName() + " (or file hasn't been created yet)");
+            return null;
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer partition) {
+        if (partition == null) {
+            return;
+        }
+
+        Mapping mapping = lent.remove(partition);
+        if (mapping != null) {
+            mapping.giveBack();
+        }
+    }
+
+    @Override
+    public void invalidate(File file) {
+        mappings.invalidate(file);
+    }
+
+    /**
+     * Get the number of mappings which have been dropped or invalidated but are still
+     * being read, and so haven't been unmapped yet
+     * @return The number of mappings waiting to be unmapped
+     */
+    public int getRetiredCount() {
+        int retired = 0;
+        synchronized (lent) {
+            Set<Mapping> counted = Collections.newSetFromMap(new IdentityHashMap<Mapping, Boolean>());
+            for (Mapping mapping : lent.values()) {
+                if (mapping.isRetired() && counted.add(mapping)) {
+                    retired++;
+                }
+            }
+        }
+        return retired;
+    }
+
+    /*
+     * A mapping and the number of buffers read from it which haven't been released
+     */
+    private static class Mapping {
+        private final MappedByteBuffer buffer;
+        private int readers = 0;
+        private boolean retired = false;
+
+        Mapping(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        synchronized ByteBuffer lend() {
+            if (retired) {
+                return null;
+            }
+            readers++;
+            return buffer.duplicate();
+        }
+
+        synchronized void giveBack() {
+            readers--;
+            if (readers == 0 && retired) {
+                UNMAPPER.unmap(buffer);
+            }
+        }
+
+        synchronized void retire() {
+            retired = true;
+            if (readers == 0) {
+                UNMAPPER.unmap(buffer);
+            }
+        }
+
+        synchronized boolean isRetired() {
+            return retired;
+        }
+    }
+
+    /*
+     * There is no public API to unmap a buffer, so the JDK's own cleaner is called:
+     * Unsafe.invokeCleaner() from Java 9, the buffer's cleaner before that. If neither
+     * can be reached, mappings are left for the garbage collector as before.
+     */
+    private static class Unmapper {
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        private Unmapper(Object unsafe, Method invokeCleaner) {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+
+        static Unmapper find() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return new Unmapper(theUnsafe.get(null), unsafeClass.getMethod("invokeCleaner", ByteBuffer.class));
+            } catch (NoSuchMethodException e) {
+                return new Unmapper(null, null);
+            } catch (Exception e) {
+                LOGGER.warning("Can't unmap partition files, leaving them to the garbage collector: " + e);
+                return new Unmapper(null, null);
+            }
+        }
+
+        void unmap(MappedByteBuffer buffer) {
+            try {
+                if (invokeCleaner != null) {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } else {
+                    Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.fine("Could not unmap a partition file: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package price;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/*
+ * Second-level product cache held outside the Java heap. Products evicted from the
+ * on-heap cache are demoted here and promoted back when they are next requested.
+ *
+ * The store is split into segments, each with its own lock and its own direct
+ * ByteBuffer arena. An arena is used as a ring: records are appended at the tail
+ * and, when there's no room, the oldest records at the head are evicted (FIFO).
+ * Each record is an int length and a long stamp followed by the product encoded as
+ * in a binary partition file. Only the SKU to offset index is kept on the heap.
+ *
+ * The stamp is given when a product is demoted and must match when it is taken, so
+ * a copy demoted before a change can be told apart from a current one.
+ *
+ * Overwritten and removed records stay in the arena until the head passes them;
+ * the index decides which records are live.
+ */
+
+public class OffHeapProductStore {
+
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int WRAP = -1; // marks the unused end of an arena
+
+    final private Segment[] segments;
+    final private Consumer<Product> evictionListener;
+
+    /**
+     * Class constructor
+     * @param capacity The total size of the arenas in bytes. 0 disables the store.
+     * @param segmentCount The number of independently locked segments
+     * @param evictionListener Called with each live product the store evicts to make room
+     */
+    public OffHeapProductStore(long capacity, int segmentCount, Consumer<Product> evictionListener) {
+        this.evictionListener = evictionListener;
+
+        int count = capacity <= 0 ? 0 : Math.max(1, segmentCount);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((int) Math.min(Integer.MAX_VALUE, capacity / count));
+        }
+    }
+
+    /**
+     * Demote a product into the store, replacing any earlier copy
+     * @param product The product
+     * @param stamp The stamp the product must be taken with, such as the SKU's
+     * invalidation count when it was demoted
+     * @return Returns true if the store now holds the product
+     */
+    public boolean put(Product product, long stamp) {
+        if (segments.length == 0) {
+            return false;
+        }
+
+        byte[] record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            BinaryPartitionUtils.writeRecord(out, product);
+            out.flush();
+            record = bytes.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        List<Product> evicted = new ArrayList<Product>();
+        boolean stored = segmentFor(product.getSku()).put(product.getSku(), stamp, record, evicted);
+        for (Product old : evicted) {
+            evictionListener.accept(old);
+        }
+
+        return stored;
+    }
+
+    /**
+     * Get a product without removing it
+     * @param sku The SKU of the product
+     * @return The product, or null if the store doesn't hold it
+     */
+    public Product get(String sku) {
+        return segments.length == 0 ? null : segmentFor(sku).get(sku, false, 0);
+    }
+
+    /**
+     * Remove and return a product, to promote it back into the on-heap cache. A copy
+     * put with a different stamp is out of date, so it is dropped instead.
+     * @param sku The SKU of the product
+     * @param stamp The stamp the product must have been put with
+     * @return The product, or null if the store doesn't hold it with that stamp
+     */
+    public Product take(String sku, long stamp) {
+        return segments.length == 0 ? null : segmentFor(sku).get(sku, true, stamp);
+    }
+
+    /**
+     * Drop a product which is out of date
+     * @param sku The SKU of the product
+     */
+    public void remove(String sku) {
+        if (segments.length != 0) {
+            segmentFor(sku).remove(sku);
+        }
+    }
+
+    /**
+     * Get the number of products held
+     * @return The number of products
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String sku) {
+        int hash = sku.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * One arena and its index
+     */
+    private static class Segment {
+        final private ByteBuffer arena;
+        final private Map<String, Integer> index = new HashMap<String, Integer>();
+        final private ReadWriteLock lock = new ReentrantReadWriteLock();
+        private int head = 0; // oldest record
+        private int tail = 0; // where the next record is written
+        private int records = 0; // records between head and tail, live or not
+
+        Segment(int capacity) {
+            arena = ByteBuffer.allocateDirect(capacity);
+        }
+
+        Product get(String sku, boolean remove, long stamp) {
+            (remove ? lock.writeLock() : lock.readLock()).lock();
+            try {
+                Integer offset = remove ? index.remove(sku) : index.get(sku);
+                if (offset == null || (remove && arena.getLong(offset + 4) != stamp)) {
+                    return null;
+                }
+
+                ByteBuffer record = arena.duplicate();
+                record.position(offset + RECORD_HEADER_SIZE);
+                return BinaryPartitionUtils.readRecord(record);
+            } finally {
+                (remove ? lock.writeLock() : lock.readLock()).unlock();
+            }
+        }
+
+        void remove(String sku) {
+            lock.writeLock().lock();
+            try {
+                index.remove(sku);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return index.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        boolean put(String sku, long stamp, byte[] record, List<Product> evicted) {
+            int length = RECORD_HEADER_SIZE + record.length;
+
+            lock.writeLock().lock();
+            try {
+                if (length > arena.capacity()) {
+                    index.remove(sku);
+                    return false;
+                }
+
+                int offset = allocate(length, evicted);
+                arena.putInt(offset, record.length);
+                arena.putLong(offset + 4, stamp);
+                ByteBuffer out = arena.duplicate();
+                out.position(offset + RECORD_HEADER_SIZE);
+                out.put(record);
+
+                index.put(sku, offset);
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            return true;
+        }
+
+        /**
+         * Make room for a record at the tail, evicting from the head as needed
+         * @return The offset to write the record at
+         */
+        private int allocate(int length, List<Product> evicted) {
+            while (true) {
+                if (records == 0) {
+                    head = 0;
+                    tail = 0;
+                } else if (arena.capacity() - head < RECORD_HEADER_SIZE || arena.getInt(head) == WRAP) {
+                    // Every record before the end of the arena has been evicted
+                    head = 0;
+                }
+
+                if (records == 0 || tail > head) {
+                    // Free space runs from the tail to the end of the arena
+                    if (arena.capacity() - tail >= length) {
+                        return advanceTail(length);
+                    }
+
+                    // Mark the rest as unused and carry on from the start
+                    if (arena.capacity() - tail >= RECORD_HEADER_SIZE) {
+                        arena.putInt(tail, WRAP);
+                    }
+                    tail = 0;
+                    continue;
+                }
+
+                // Free space runs from the tail up to the head
+                if (head - tail >= length) {
+                    return advanceTail(length);
+                }
+
+                evictOldest(evicted);
+            }
+        }
+
+        private int advanceTail(int length) {
+            int offset = tail;
+            tail += length;
+            records++;
+            return offset;
+        }
+
+        private void evictOldest(List<Product> evicted) {
+            int length = arena.getInt(head);
+            ByteBuffer record = arena.duplicate();
+            record.position(head + RECORD_HEADER_SIZE);
+            String sku = BinaryPartitionUtils.readSku(record);
+
+            Integer live = index.get(sku);
+            if (live != null && live == head) {
+                index.remove(sku);
+                record.position(head + RECORD_HEADER_SIZE);
+                evicted.add(BinaryPartitionUtils.readRecord(record));
+            }
+
+            head += RECORD_HEADER_SIZE + length;
+            records--;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package price;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe fixed size bitmap with one bit per backup partition.
+ */
+public class PartitionBitmap {
+
+    final private AtomicLongArray words;
+    final private AtomicInteger cardinality;
+    final private int size;
+
+    /**
+     * Class constructor - all bits start cleared
+     * @param size The number of partitions
+     */
+    public PartitionBitmap(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) / 64);
+        this.cardinality = new AtomicInteger(0);
+    }
+
+    /**
+     * Returns true if the bit for a partition is set
+     * @param partitionNumber The partition in question
+     * @return Returns true if the bit is set
+     */
+    public boolean get(int partitionNumber) {
+        return (words.get(partitionNumber >>> 6) & (1L << partitionNumber)) != 0;
+    }
+
+    /**
+     * Set the bit for a partition
+     * @param partitionNumber The partition in question
+     * @return Returns true if the bit was not already set
+     */
+    public boolean set(int partitionNumber) {
+        int index = partitionNumber >>> 6;
+        long mask = 1L << partitionNumber;
+
+        while (true) {
+            long word = words.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(index, word, word | mask)) {
+                cardinality.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Get the number of bits which are set
+     * @return The number of set bits
+     */
+    public int cardinality() {
+        return cardinality.get();
+    }
+
+    /**
+     * Returns true if every bit is set
+     * @return Returns true if every bit is set
+     */
+    public boolean isFull() {
+        return cardinality.get() == size;
+    }
+
+    /**
+     * Get the number of partitions covered by the bitmap
+     * @return The number of bits
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,148 @@
+package price;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often requests land on each backup partition, so that after a restart
+ * the cache can be rebuilt hottest partition first. Once a thousand requests per
+ * partition have been counted every count is halved, so heat fades with age.
+ *
+ * Counts are only estimates: increments racing a reset can be lost.
+ */
+public class PartitionHeat {
+
+    private static final int FORMAT_VERSION = 1;
+
+    final private AtomicLongArray counts;
+    final private int sampleSize;
+    final private AtomicInteger additions = new AtomicInteger();
+    private volatile boolean dirty = false;
+
+    /**
+     * Class constructor
+     * @param partitions The number of backup partitions
+     */
+    public PartitionHeat(int partitions) {
+        counts = new AtomicLongArray(partitions);
+        sampleSize = (int) Math.min(Integer.MAX_VALUE, 1000L * partitions);
+    }
+
+    /**
+     * Count a request landing on a partition
+     * @param partitionNumber The partition the requested SKU is mapped to
+     */
+    public void increment(int partitionNumber) {
+        counts.incrementAndGet(partitionNumber);
+        if (!dirty) {
+            dirty = true;
+        }
+        if (additions.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Get how often requests have landed on a partition recently
+     * @param partitionNumber The partition in question
+     * @return The decayed request count
+     */
+    public long get(int partitionNumber) {
+        return counts.get(partitionNumber);
+    }
+
+    /**
+     * Share a partition's heat between the two partitions it has been split into
+     * @param partitionNumber The partition which was split
+     * @param children The partitions its SKUs were moved to
+     */
+    public void split(int partitionNumber, int[] children) {
+        long half = counts.getAndSet(partitionNumber, 0) / 2;
+        for (int child : children) {
+            counts.addAndGet(child, half);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Order every partition by heat
+     * @return The partition numbers, hottest first. Partitions equally hot keep their
+     * numerical order.
+     */
+    public Integer[] hottestFirst() {
+        Integer[] order = new Integer[counts.length()];
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            snapshot[i] = counts.get(i);
+        }
+
+        // Arrays.sort on objects is stable
+        Arrays.sort(order, Comparator.comparingLong((Integer partition) -> snapshot[partition]).reversed());
+        return order;
+    }
+
+    /**
+     * Returns true if the counts have changed since they were last written
+     * @return Returns true if the counts have changed
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Write the counts to a stream. Counts made while writing may or may not be
+     * included.
+     * @param out The stream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        dirty = false;
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(counts.length());
+        data.writeInt(additions.get());
+        for (int i = 0; i < counts.length(); i++) {
+            data.writeLong(counts.get(i));
+        }
+        data.flush();
+    }
+
+    /**
+     * Read counts written by writeTo() into this object
+     * @param in The stream to read from
+     * @return Returns false, leaving the counts empty, if they were written for a
+     * different number of partitions
+     * @throws IOException
+     */
+    public boolean readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != FORMAT_VERSION || data.readInt() != counts.length()) {
+            return false;
+        }
+
+        additions.set(Math.min(data.readInt(), sampleSize - 1));
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, data.readLong());
+        }
+        return true;
+    }
+
+    private void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            long count;
+            do {
+                count = counts.get(i);
+            } while (!counts.compareAndSet(i, count, count >>> 1));
+        }
+        additions.set(0);
+    }
+}
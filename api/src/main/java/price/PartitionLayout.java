@@ -0,0 +1,264 @@
+package price;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records how SKUs are mapped to backup partitions, so that partitions can be split
+ * as they grow without throwing the backup away.
+ *
+ * A SKU's hash first picks one of a fixed number of base partitions, numbered 0 to
+ * base - 1 exactly as before partitions could be split. Each base partition is the
+ * root of a binary tree (extendible hashing): when a partition is split, its SKUs
+ * are divided between two children by the next bit of a second hash. Every node of
+ * a tree has a fixed partition number, so a partition keeps its number, and its
+ * files their names, until it is split itself.
+ *
+ * Node n of base partition b (nodes numbered breadth first from 0) is partition
+ * b + n * base. Splits are rare, so the set of split partitions is copied on write
+ * and lookups never lock.
+ */
+public class PartitionLayout {
+
+    private static final int FORMAT_VERSION = 1;
+
+    final private int base;
+    final private int maxDepth;
+    private volatile long[] splits;
+
+    /**
+     * Class constructor - a layout in which no partition has been split
+     * @param base The number of base partitions
+     * @param maxDepth How many times a base partition can be split in depth, so that
+     * it ends up as at most 2^maxDepth partitions
+     */
+    public PartitionLayout(int base, int maxDepth) {
+        this.base = base;
+        this.maxDepth = maxDepth;
+        this.splits = new long[(getCapacity() + 63) / 64];
+    }
+
+    /**
+     * Get the number of base partitions, which never changes for a backup
+     * @return The number of base partitions
+     */
+    public int getBase() {
+        return base;
+    }
+
+    /**
+     * Get the greatest number of times a base partition can be split in depth
+     * @return The maximum depth
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Get one more than the highest partition number the layout can ever use, for
+     * sizing arrays indexed by partition number
+     * @return The number of partition numbers
+     */
+    public int getCapacity() {
+        return base * ((2 << maxDepth) - 1);
+    }
+
+    /**
+     * Map a SKU's hashes to its partition
+     * @param baseHash The hash which picks the base partition
+     * @param splitHash The hash whose bits, lowest first, pick a child at each split
+     * @return The partition number
+     */
+    public int getPartitionNumber(long baseHash, int splitHash) {
+        long[] current = splits;
+        int partitionNumber = getBasePartition(baseHash);
+
+        for (int depth = 1; isSet(current, partitionNumber); depth++) {
+            partitionNumber = getPartitionAtDepth(baseHash, splitHash, depth);
+        }
+        return partitionNumber;
+    }
+
+    /**
+     * Map a SKU's hashes to the partition it would be in if its base partition had
+     * been split to a given depth, whether or not that partition is in use
+     * @param baseHash The hash which picks the base partition
+     * @param splitHash The hash whose bits, lowest first, pick a child at each split
+     * @param depth How many times to follow the split bits
+     * @return The partition number
+     */
+    public int getPartitionAtDepth(long baseHash, int splitHash, int depth) {
+        int index = splitHash & ((1 << depth) - 1);
+        return getBasePartition(baseHash) + ((1 << depth) - 1 + index) * base;
+    }
+
+    /**
+     * Map a SKU's hash to its base partition
+     * @param baseHash The hash which picks the base partition
+     * @return The base partition number
+     */
+    public int getBasePartition(long baseHash) {
+        return (int) (baseHash % base);
+    }
+
+    /**
+     * Get the base partition that a partition was split from
+     * @param partitionNumber The partition in question
+     * @return The base partition number, which is the partition itself if it is a base partition
+     */
+    public int getBasePartitionOf(int partitionNumber) {
+        return partitionNumber % base;
+    }
+
+    /**
+     * Get how many times a partition's base partition was split to produce it
+     * @param partitionNumber The partition in question
+     * @return The depth, 0 for a base partition
+     */
+    public int getDepth(int partitionNumber) {
+        return 31 - Integer.numberOfLeadingZeros(partitionNumber / base + 1);
+    }
+
+    /**
+     * Get the two partitions a partition is split into
+     * @param partitionNumber The partition to split
+     * @return The partition for SKUs whose next split bit is 0, then the one for 1
+     */
+    public int[] getChildren(int partitionNumber) {
+        int depth = getDepth(partitionNumber);
+        int index = partitionNumber / base + 1 - (1 << depth);
+        int first = partitionNumber % base + ((2 << depth) - 1 + index) * base;
+        return new int[] { first, first + (1 << depth) * base };
+    }
+
+    /**
+     * Get which of a partition's two children a SKU goes to when it is split
+     * @param partitionNumber The partition being split
+     * @param splitHash The SKU's split hash, as passed to getPartitionNumber()
+     * @return The child partition number
+     */
+    public int getChild(int partitionNumber, int splitHash) {
+        return getChildren(partitionNumber)[(splitHash >>> getDepth(partitionNumber)) & 1];
+    }
+
+    /**
+     * Returns true if a partition is in use: it hasn't been split, and it is a base
+     * partition or its parent has been split
+     * @param partitionNumber The partition in question
+     * @return Returns true if SKUs are mapped to the partition
+     */
+    public boolean isLive(int partitionNumber) {
+        long[] current = splits;
+        if (isSet(current, partitionNumber)) {
+            return false;
+        }
+
+        int node = partitionNumber / base;
+        if (node == 0) {
+            return true;
+        }
+
+        int depth = getDepth(partitionNumber);
+        int parentIndex = (node + 1 - (1 << depth)) & ((1 << (depth - 1)) - 1);
+        return isSet(current, partitionNumber % base + ((1 << (depth - 1)) - 1 + parentIndex) * base);
+    }
+
+    /**
+     * Returns true if a partition is in use and can be split again
+     * @param partitionNumber The partition in question
+     * @return Returns true if the partition can be split
+     */
+    public boolean canSplit(int partitionNumber) {
+        return getDepth(partitionNumber) < maxDepth && isLive(partitionNumber);
+    }
+
+    /**
+     * Mark a partition as split, so that its SKUs are mapped to its children
+     * @param partitionNumber The partition which has been split
+     */
+    public synchronized void split(int partitionNumber) {
+        long[] updated = Arrays.copyOf(splits, splits.length);
+        updated[partitionNumber >>> 6] |= 1L << partitionNumber;
+        splits = updated;
+    }
+
+    /**
+     * Undo split(), if the split couldn't be completed
+     * @param partitionNumber The partition which is no longer split
+     */
+    public synchronized void unsplit(int partitionNumber) {
+        long[] updated = Arrays.copyOf(splits, splits.length);
+        updated[partitionNumber >>> 6] &= ~(1L << partitionNumber);
+        splits = updated;
+    }
+
+    /**
+     * List every partition in use
+     * @return The partition numbers, in ascending order
+     */
+    public List<Integer> getPartitions() {
+        List<Integer> partitions = new ArrayList<Integer>(base);
+        for (int i = 0; i < getCapacity(); i++) {
+            if (isLive(i)) {
+                partitions.add(i);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Write the layout to a stream
+     * @param out The stream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        long[] current = splits;
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(base);
+        data.writeInt(maxDepth);
+        data.writeInt(current.length);
+        for (long word : current) {
+            data.writeLong(word);
+        }
+        data.flush();
+    }
+
+    /**
+     * Read a layout written by writeTo()
+     * @param in The stream to read from
+     * @param maxDepth The maximum depth wanted now. A layout already split deeper
+     * keeps its own.
+     * @return The layout
+     * @throws IOException If the stream doesn't hold a layout
+     */
+    public static PartitionLayout readFrom(InputStream in, int maxDepth) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != FORMAT_VERSION) {
+            throw new IOException("Unknown partition layout format");
+        }
+
+        int base = data.readInt();
+        int writtenDepth = data.readInt();
+        long[] written = new long[data.readInt()];
+        for (int i = 0; i < written.length; i++) {
+            written[i] = data.readLong();
+        }
+
+        // Node numbers don't depend on the maximum depth, so the split bits carry over
+        PartitionLayout layout = new PartitionLayout(base, Math.max(maxDepth, writtenDepth));
+        System.arraycopy(written, 0, layout.splits, 0, Math.min(written.length, layout.splits.length));
+        return layout;
+    }
+
+    private static boolean isSet(long[] words, int partitionNumber) {
+        return (words[partitionNumber >>> 6] & (1L << partitionNumber)) != 0;
+    }
+}
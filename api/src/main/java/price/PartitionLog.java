@@ -0,0 +1,279 @@
+package price;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Append-only log segment which sits beside each binary partition file. Every change
+ * to a partition is appended here instead of rewriting the partition, and the
+ * BackupCompactor later folds the log back into the partition file.
+ *
+ * Log layout (all integers big-endian), one entry after another:
+ *
+ *   int     payload length
+ *   byte    PUT or DELETE
+ *   payload PUT:    a product record as written by BinaryPartitionUtils
+ *           DELETE: a length prefixed SKU
+ *
+ * Later entries win over earlier ones and over the partition file. A torn entry at
+ * the end of the log (from a crash mid-append) is ignored by readers and cut off by
+ * recover() before anything else is appended.
+ */
+
+public class PartitionLog {
+
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+
+    /** Returned by find() when the latest entry for a SKU deletes it */
+    public static final Product TOMBSTONE = new Product();
+
+    private static final int ENTRY_HEADER_SIZE = 5;
+
+    /**
+     * Encode a PUT entry
+     * @param product The product written
+     * @return The encoded entry
+     * @throws IOException
+     */
+    public static byte[] encodePut(Product product) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        BinaryPartitionUtils.writeRecord(out, product);
+        out.flush();
+        return frame(PUT, payload.toByteArray());
+    }
+
+    /**
+     * Encode a DELETE entry
+     * @param sku The SKU deleted
+     * @return The encoded entry
+     * @throws IOException
+     */
+    public static byte[] encodeDelete(String sku) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        BinaryPartitionUtils.writeSku(out, sku);
+        out.flush();
+        return frame(DELETE, payload.toByteArray());
+    }
+
+    /**
+     * Append encoded entries to the end of a log file, creating it if needed
+     * @param log The log file
+     * @param entries The encoded entries
+     * @throws IOException
+     */
+    public static void append(File log, byte[] entries) throws IOException {
+        FileOutputStream out = new FileOutputStream(log, true);
+        try {
+            out.write(entries);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a whole log file into memory
+     * @param log The log file
+     * @return A buffer containing the log, or null if there is no log
+     */
+    public static ByteBuffer readLog(File log) {
+        if (!log.exists()) {
+            return null;
+        }
+
+        try {
+            return ByteBuffer.wrap(Files.readAllBytes(log.toPath()));
+        } catch (IOException e) {
+            System.out.println("Could not read backup log " + log.getName());
+            return null;
+        }
+    }
+
+    /**
+     * Find the latest entry for a SKU without decoding the entries for any other SKU
+     * @param log A buffer containing a log
+     * @param sku The SKU of the Product in question
+     * @return The latest Product written, TOMBSTONE if the latest entry deletes the SKU,
+     * or null if the log has no entry for the SKU
+     */
+    public static Product find(ByteBuffer log, String sku) {
+        if (log == null) {
+            return null;
+        }
+
+        byte[] target = sku.getBytes(Charsets.UTF_8);
+        int latest = -1;
+        byte latestOp = 0;
+        int position = 0;
+
+        while (position + ENTRY_HEADER_SIZE <= log.limit()) {
+            int length = log.getInt(position);
+            byte op = log.get(position + 4);
+            int payload = position + ENTRY_HEADER_SIZE;
+            if (length < 2 || payload + length > log.limit()) {
+                break;
+            }
+
+            if (skuEquals(log, payload, target)) {
+                latest = payload;
+                latestOp = op;
+            }
+            position = payload + length;
+        }
+
+        if (latest < 0) {
+            return null;
+        }
+        if (latestOp == DELETE) {
+            return TOMBSTONE;
+        }
+
+        ByteBuffer record = log.duplicate();
+        record.position(latest);
+        return BinaryPartitionUtils.readRecord(record);
+    }
+
+    /**
+     * Decode the latest entry for every SKU in a log, in the order first written
+     * @param log A buffer containing a log
+     * @return A map of SKU to the latest Product written, or to null if the SKU was deleted
+     */
+    public static LinkedHashMap<String, Product> readEntries(ByteBuffer log) {
+        LinkedHashMap<String, Product> entries = new LinkedHashMap<String, Product>();
+
+        if (log == null) {
+            return entries;
+        }
+
+        ByteBuffer in = log.duplicate();
+        in.position(0);
+
+        try {
+            while (in.remaining() >= ENTRY_HEADER_SIZE) {
+                int length = in.getInt();
+                byte op = in.get();
+                if (length < 2 || length > in.remaining()) {
+                    break;
+                }
+
+                if (op == PUT) {
+                    Product product = BinaryPartitionUtils.readRecord(in);
+                    entries.put(product.getSku(), product);
+                } else {
+                    entries.put(BinaryPartitionUtils.readSku(in), null);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            System.out.println("Backup log is truncated, read " + entries.size() + " entries");
+        }
+
+        return entries;
+    }
+
+    /**
+     * Apply log entries on top of the contents of a partition file
+     * @param base The products in the partition file
+     * @param entries The log entries as returned by readEntries()
+     * @return The merged contents of the partition
+     */
+    public static ArrayList<Product> merge(List<Product> base, Map<String, Product> entries) {
+        LinkedHashMap<String, Product> merged = new LinkedHashMap<String, Product>();
+
+        for (Product product : base) {
+            merged.put(product.getSku(), product);
+        }
+        for (Map.Entry<String, Product> entry : entries.entrySet()) {
+            if (entry.getValue() == null) {
+                merged.remove(entry.getKey());
+            } else {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return new ArrayList<Product>(merged.values());
+    }
+
+    /**
+     * Read the merged contents of a partition file and its log
+     * @param partition The binary partition file
+     * @param log The log file belonging to the partition
+     * @return Returns an ArrayList<Product> containing each Product in the partition
+     */
+    public static ArrayList<Product> readMergedPartition(File partition, File log) {
+        ArrayList<Product> base = BinaryPartitionUtils.readProductsFromBinaryFile(partition);
+
+        // Merging also drops duplicates left in partitions written as JSON
+        return merge(base, readEntries(readLog(log)));
+    }
+
+    /**
+     * Cut a torn entry off the end of a log so that new entries can be appended after it
+     * @param log The log file
+     * @return The length of the log after recovery
+     * @throws IOException
+     */
+    public static long recover(File log) throws IOException {
+        ByteBuffer contents = readLog(log);
+        if (contents == null) {
+            return 0;
+        }
+
+        int position = 0;
+        while (position + ENTRY_HEADER_SIZE <= contents.limit()) {
+            int length = contents.getInt(position);
+            if (length < 2 || position + ENTRY_HEADER_SIZE + length > contents.limit()) {
+                break;
+            }
+            position += ENTRY_HEADER_SIZE + length;
+        }
+
+        if (position != contents.limit()) {
+            System.out.println("Truncating torn entry at end of backup log " + log.getName());
+            RandomAccessFile file = new RandomAccessFile(log, "rw");
+            try {
+                file.setLength(position);
+            } finally {
+                file.close();
+            }
+        }
+
+        return position;
+    }
+
+    private static byte[] frame(byte op, byte[] payload) {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_SIZE + payload.length);
+        entry.putInt(payload.length);
+        entry.put(op);
+        entry.put(payload);
+        return entry.array();
+    }
+
+    private static boolean skuEquals(ByteBuffer log, int offset, byte[] target) {
+        if (log.getShort(offset) != target.length) {
+            return false;
+        }
+
+        for (int i = 0; i < target.length; i++) {
+            if (log.get(offset + 2 + i) != target[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
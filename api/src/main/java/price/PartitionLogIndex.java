@@ -0,0 +1,232 @@
+package price;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * In-memory index of the latest entry for each SKU in one partition log, so that a
+ * lookup reads the one entry it needs instead of the whole log. The index is built
+ * by reading the log once and kept up to date by appended(). If the log's length no
+ * longer matches what was indexed (it was truncated, deleted, or appended to behind
+ * the index's back) the index is built again.
+ *
+ * Callers must hold the partition's lock: a write lock to append, at least a read
+ * lock to look up.
+ */
+public class PartitionLogIndex {
+
+    private static final int ENTRY_HEADER_SIZE = 5;
+
+    final private File log;
+    final private HashMap<String, Long> offsets = new HashMap<String, Long>();
+    final private HashSet<String> deleted = new HashSet<String>(); // SKUs whose latest entry is a DELETE
+    private long indexedLength = 0; // Bytes holding whole entries
+    private long seenLength = -1; // Length of the log when last indexed
+
+    /**
+     * Class constructor
+     * @param log The log file indexed
+     */
+    public PartitionLogIndex(File log) {
+        this.log = log;
+    }
+
+    /**
+     * Find the latest entry for a SKU
+     * @param sku The SKU of the Product in question
+     * @return The latest Product written, PartitionLog.TOMBSTONE if the latest entry
+     * deletes the SKU, or null if the log has no entry for the SKU
+     */
+    public synchronized Product find(String sku) {
+        if (!sync()) {
+            return null;
+        }
+
+        Long offset = offsets.get(sku);
+        if (offset == null) {
+            return null;
+        }
+
+        try {
+            FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+            try {
+                return readEntry(channel, offset);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read backup log " + log.getName());
+            return null;
+        }
+    }
+
+    /**
+     * Find the latest entries for several SKUs, opening the log at most once
+     * @param skus The SKUs in question
+     * @return A map of SKU to the latest Product written, or to PartitionLog.TOMBSTONE
+     * if the latest entry deletes the SKU. SKUs the log has no entry for are left out.
+     */
+    public synchronized Map<String, Product> findAll(Collection<String> skus) {
+        Map<String, Product> found = new HashMap<String, Product>();
+        if (!sync()) {
+            return found;
+        }
+
+        FileChannel channel = null;
+        try {
+            for (String sku : skus) {
+                Long offset = offsets.get(sku);
+                if (offset == null) {
+                    continue;
+                }
+                if (channel == null) {
+                    channel = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+                }
+                found.put(sku, readEntry(channel, offset));
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read backup log " + log.getName());
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Apply the latest entry for every SKU in the log to a set of SKUs, without reading
+     * any entry: a SKU last written is added, and one last deleted is removed
+     * @param skus The SKUs in the partition file the log belongs to
+     */
+    public synchronized void applyTo(Set<String> skus) {
+        if (!sync()) {
+            return;
+        }
+
+        for (String sku : offsets.keySet()) {
+            if (deleted.contains(sku)) {
+                skus.remove(sku);
+            } else {
+                skus.add(sku);
+            }
+        }
+    }
+
+    /**
+     * Index entries just appended to the end of the log
+     * @param offset The length of the log before the entries were appended
+     * @param entries The encoded entries appended
+     */
+    public synchronized void appended(long offset, byte[] entries) {
+        if (seenLength < 0 || offset != indexedLength) {
+            // Not indexed yet, or out of step; the next lookup reads the log again
+            seenLength = -1;
+            return;
+        }
+        indexedLength = offset + index(ByteBuffer.wrap(entries), offset);
+        seenLength = indexedLength;
+    }
+
+    /**
+     * Get the number of SKUs with an entry in the log, once the log has been indexed
+     * @return The number of SKUs indexed
+     */
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    /*
+     * Build the index again if the log has changed length since it was indexed.
+     * Returns false if there is no log.
+     */
+    private boolean sync() {
+        long length = log.length();
+        if (length == 0 && !log.exists()) {
+            offsets.clear();
+            deleted.clear();
+            seenLength = -1;
+            return false;
+        }
+
+        if (length != seenLength) {
+            offsets.clear();
+            deleted.clear();
+            ByteBuffer contents = PartitionLog.readLog(log);
+            if (contents == null) {
+                seenLength = -1;
+                return false;
+            }
+            // A torn entry at the end isn't indexed until recovery cuts it off
+            indexedLength = index(contents, 0);
+            seenLength = contents.limit();
+        }
+
+        return true;
+    }
+
+    /*
+     * Record the offset of every whole entry in a buffer. Returns the number of bytes
+     * holding whole entries.
+     */
+    private int index(ByteBuffer entries, long base) {
+        int position = 0;
+        while (position + ENTRY_HEADER_SIZE <= entries.limit()) {
+            int length = entries.getInt(position);
+            int payload = position + ENTRY_HEADER_SIZE;
+            if (length < 2 || payload + length > entries.limit()) {
+                break;
+            }
+
+            // Both PUT and DELETE payloads start with the SKU
+            ByteBuffer skuBytes = entries.duplicate();
+            skuBytes.position(payload);
+            String sku = BinaryPartitionUtils.readSku(skuBytes);
+            offsets.put(sku, base + position);
+            if (entries.get(position + 4) == PartitionLog.DELETE) {
+                deleted.add(sku);
+            } else {
+                deleted.remove(sku);
+            }
+            position = payload + length;
+        }
+        return position;
+    }
+
+    private Product readEntry(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+        readFully(channel, header, offset);
+        int length = header.getInt(0);
+        byte op = header.get(4);
+
+        if (op == PartitionLog.DELETE) {
+            return PartitionLog.TOMBSTONE;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, offset + ENTRY_HEADER_SIZE);
+        payload.flip();
+        return BinaryPartitionUtils.readRecord(payload);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of backup log");
+            }
+        }
+    }
+}
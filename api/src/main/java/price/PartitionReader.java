@@ -0,0 +1,31 @@
+package price;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Supplies the contents of binary backup partition files to CacheBackupHandler.
+ */
+public interface PartitionReader {
+
+    /**
+     * Get the contents of a partition file
+     * @param file The partition file to read
+     * @return A buffer positioned at the start of the partition, or null if the
+     * file could not be read
+     */
+    ByteBuffer read(File file);
+
+    /**
+     * Hand back a buffer returned by read() once it has been decoded. Buffers must not
+     * be used after they are released.
+     * @param partition The buffer read, which may be null
+     */
+    void release(ByteBuffer partition);
+
+    /**
+     * Discard anything held for a partition file because it has been rewritten
+     * @param file The partition file which changed
+     */
+    void invalidate(File file);
+}
@@ -1,232 +1,714 @@
 package price;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 
 import price.Config;
 
 @RestController
-public class ProductController {
+public class ProductController implements DisposableBean {
     private final DBConnection conn;
     private final LoadingCache<String, Product> cache;
+    private final OffHeapProductStore l2Cache;
     private final CacheBackupHandler cacheBackupHandler;
     private final CacheRebuilder cacheRebuilder;
+    private final CacheWarmer cacheWarmer;
+    private final BackupCompactor backupCompactor;
+    private final FilterCheckpointer filterCheckpointer;
+    private final FilterRefresher filterRefresher;
+    private final SingleFlight<String, Product> dbFetches;
+    private final InvalidationCounter invalidations;
+    private final BatchingProductLoader productLoader;
     private final RemovalListener<String, Product> cacheRemovalListener;
     private final File backupDir;
     private final static Logger LOGGER = Logger.getLogger(ProductController.class.getName());
-    private Long timeOfLastBloomRefresh = null;
-
-    public static AtomicBoolean isRebuildingCache;
-
-    /* Performance statistics */
-    private ArrayList<Long> cacheRetrievalTimes = new ArrayList<Long>();
-    private ArrayList<Long> backupRetrievalTimes = new ArrayList<Long>();
-    private ArrayList<Long> databaseRetrievalTimes = new ArrayList<Long>();
-    private long timeReqRecieved;
-    private boolean cacheMissed = false;
+    private final LatencyMetrics metrics;
 
     public ProductController() {
+        this(DBConnection.create()); // Object which handles making DB connections
+    }
+
+    /**
+     * Class constructor
+     * @param conn The database the products are read from and written to
+     */
+    ProductController(DBConnection conn) {
 
-        conn = new DBConnection(); // Object which handles making DB connections
+        this.conn = conn;
+        productLoader = new BatchingProductLoader(conn);
+        dbFetches = new SingleFlight<String, Product>();
+        invalidations = new InvalidationCounter(Config.INVALIDATION_STRIPES);
+        metrics = new LatencyMetrics();
 
         // Create backup directories
         backupDir = new File(Config.BACKUP_DIR);
         backupDir.mkdirs();
         cacheBackupHandler = new CacheBackupHandler(backupDir);
 
-        try {
-            LOGGER.info("Duplicating backup files");
-            cacheBackupHandler.copyAndSuffixBackupFiles(".old");
-            LOGGER.info("Finished duplicating backup files");
-        } catch (Exception e) {
-            LOGGER.severe("Could not make copy of backup files");
-        }
+        // Products the off-heap tier has no room for leave the backup with it
+        l2Cache = new OffHeapProductStore(Config.L2_CACHE_BYTES, Config.L2_CACHE_SEGMENTS,
+                product -> cacheBackupHandler.removeItemFromBackup(product));
 
-        // When item removed from cache, remove from backup too.
+        // When item removed from cache, remove from backup too. Items evicted for
+        // space are demoted to the off-heap tier instead and stay in the backup,
+        // stamped with the SKU's invalidation count so that a copy evicted as it was
+        // changed isn't promoted after the change
         cacheRemovalListener = new RemovalListener<String, Product>() {
             public void onRemoval(RemovalNotification<String, Product> removal) {
                 Product product = removal.getValue();
+                if (removal.getCause() == RemovalCause.SIZE
+                        && l2Cache.put(product, invalidations.get(product.getSku()))) {
+                    return;
+                }
                 LOGGER.info("Item removed from cache: " + product.getSku());
                 cacheBackupHandler.removeItemFromBackup(product);
             }
         };
 
-        cache = CacheBuilder.newBuilder().maximumSize(Config.CACHE_SIZE).removalListener(cacheRemovalListener)
-                .build(new CacheLoader<String, Product>() {
-                    @Override
-                    public Product load(String sku) throws Exception, ResourceUnavailableException {
+        CacheLoader<String, Product> loader = new CacheLoader<String, Product>() {
+            @Override
+            public Product load(String sku) throws Exception, ResourceUnavailableException {
+
+                // Promote from the off-heap tier, which is still backed up
+                Product product = l2Cache.take(sku, invalidations.get(sku));
+                if (product != null) {
+                    return product;
+                }
+
+                product = loadFromDB(sku);
 
-                        conn.makeConnection();
-                        Product product = conn.getProduct(sku);
+                try {
+                    cacheBackupHandler.backupItem(product);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
 
-                        try {
-                            cacheBackupHandler.backupItem(product);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                return product;
+            }
 
-                        // add perf stat
-                        //databaseRetrievalTimes.add(System.currentTimeMillis() - timeReqRecieved);
-                        cacheMissed = true;
+            @Override
+            public Map<String, Product> loadAll(Iterable<? extends String> skus) throws Exception {
 
-                        return product;
+                conn.makeConnection();
+                Map<String, Product> products = conn.getProducts(Lists.newArrayList(skus));
+
+                for (Product product : products.values()) {
+                    try {
+                        cacheBackupHandler.backupItem(product);
+                    } catch (Exception e) {
+                        e.printStackTrace();
                     }
-                });
+                }
+
+                return products;
+            }
+        };
 
-        ProductController.isRebuildingCache = new AtomicBoolean(true);
-        cacheRebuilder = new CacheRebuilder(backupDir, cache);
+        if (Config.CACHE_ENGINE.equals("guava")) {
+            cache = CacheBuilder.newBuilder().maximumSize(Config.CACHE_SIZE).removalListener(cacheRemovalListener)
+                    .build(loader);
+        } else {
+            cache = new CompactProductCache(Config.CACHE_SIZE, Config.CACHE_SEGMENTS, cacheRemovalListener, loader,
+                    Config.CACHE_ADMISSION ? cacheBackupHandler.getFrequencySketch() : null);
+        }
+
+        cacheRebuilder = new CacheRebuilder(cacheBackupHandler, cache, l2Cache, invalidations, metrics);
         cacheRebuilder.start();
+
+        // With no backup to rebuild from, fill the cache from the database instead
+        cacheWarmer = new CacheWarmer(conn, cacheBackupHandler, cache, l2Cache);
+        if (Config.PREWARM_ENABLED && !cacheBackupHandler.hasSnapshot()) {
+            cacheWarmer.start();
+        }
+
+        backupCompactor = new BackupCompactor(cacheBackupHandler);
+        backupCompactor.start();
+
+        filterCheckpointer = new FilterCheckpointer(cacheBackupHandler);
+        filterCheckpointer.start();
+
+        filterRefresher = new FilterRefresher(cacheBackupHandler, cacheRebuilder);
+        filterRefresher.start();
+    }
+
+    /**
+     * Stop background work and write out anything not yet persisted
+     */
+    @Override
+    public void destroy() {
+        cacheWarmer.interrupt();
+        productLoader.shutdown();
+        conn.close();
+        filterCheckpointer.interrupt();
+        filterRefresher.interrupt();
+        backupCompactor.interrupt();
+        cacheBackupHandler.close();
+        cacheBackupHandler.checkpointFilter();
+        cacheBackupHandler.checkpointFrequencySketch();
+        cacheBackupHandler.checkpointPartitionHeat();
     }
 
     @RequestMapping(value = "/product", method = RequestMethod.GET)
-    public ResponseEntity<Product> getProductResponse(@RequestParam(value = "sku", required = true) String sku) {
+    public DeferredResult<ResponseEntity<Product>> getProductResponse(@RequestParam(value = "sku", required = true) String sku) {
+
+        DeferredResult<ResponseEntity<Product>> result = new DeferredResult<ResponseEntity<Product>>(
+                Config.ASYNC_REQUEST_TIMEOUT, new ResponseEntity<Product>(HttpStatus.SERVICE_UNAVAILABLE));
+
+        long start = System.nanoTime();
 
-        Product product;
+        // every request counts towards the SKU's popularity, wherever it is answered from
+        cacheBackupHandler.getFrequencySketch().increment(sku);
 
-        // Start "timer" for performance tests
-        timeReqRecieved = System.currentTimeMillis();
-        cacheMissed = false;
+        int partitionNumber = cacheBackupHandler.getPartitionNumber(sku);
+        cacheBackupHandler.getPartitionHeat().increment(partitionNumber);
 
-        // TODO wait on isRebuildingCache here???
+        if (Config.REBUILD_ON_DEMAND && !cacheRebuilder.isPartitionLoaded(partitionNumber)) {
+            // Load the whole partition now rather than waiting for the rebuilder to reach it
+            cacheRebuilder.ensurePartitionLoaded(partitionNumber);
+        }
 
-        if (ProductController.isRebuildingCache.get()) {
-            product = cacheBackupHandler.getItemFromBackup(sku);
+        if (!cacheRebuilder.isPartitionLoaded(partitionNumber)) {
+            cacheRebuilder.recordUnloadedRequest(partitionNumber);
+            Product product = cacheBackupHandler.getItemFromBackup(sku);
 
             if (product == null) { // must get product from DB
-                try {
-                    conn.makeConnection();
-                } catch (ResourceUnavailableException e) {
-                    LOGGER.severe("Connection to database failed.");
-                    return new ResponseEntity<Product>(HttpStatus.SERVICE_UNAVAILABLE);
-                }
+                // concurrent requests for the same SKU share a single DB fetch
+                long invalidation = invalidations.get(sku);
+                completeFromDB(result, start, dbFetches.executeAsync(sku, () -> productLoader.load(sku).thenApply(fetched -> {
+                    backupLoadedProduct(fetched, invalidation);
+                    return fetched;
+                })));
+            } else {
+                metrics.recordSince(LatencyMetrics.Tier.BACKUP_HIT, start);
+                result.setResult(new ResponseEntity<Product>(product, HttpStatus.OK));
+            }
 
-                try {
-                    product = conn.getProduct(sku);
-                } catch (Exception e) {
-                    LOGGER.info("Could not get product " + sku + " from database");
+        } else { // cache is available for this partition
+
+            Product product = cache.getIfPresent(sku);
+
+            if (product == null) {
+                product = promoteFromL2(sku);
+                if (product != null) {
+                    metrics.recordSince(LatencyMetrics.Tier.L2_HIT, start);
+                    result.setResult(new ResponseEntity<Product>(product, HttpStatus.OK));
+                } else {
+                    long invalidation = invalidations.get(sku);
+                    completeFromDB(result, start, productLoader.load(sku).thenApply(
+                            fetched -> cacheLoadedProduct(fetched, invalidation)));
                 }
             } else {
-                // add perf stat
-                //backupRetrievalTimes.add(System.currentTimeMillis() - timeReqRecieved);
+                // cache hits are answered on the request thread
+                metrics.recordSince(LatencyMetrics.Tier.CACHE_HIT, start);
+                result.setResult(new ResponseEntity<Product>(product, HttpStatus.OK));
             }
+        }
 
-        } else { // cache is available
+        return result;
+    }
 
-            refreshBFOnInterval(Config.BF_REFRESH_INTERVAL);
+    /**
+     * Get many products in one request. The body is a JSON array of SKUs, and the
+     * products found are streamed back as newline delimited JSON in no particular
+     * order. SKUs which aren't found are left out. The status is sent before the
+     * products are looked up, so if a lookup fails partway the response ends with a
+     * line {"error": "..."} instead.
+     *
+     * @param skus
+     *            The SKUs wanted, at most Config.BATCH_GET_MAX_SKUS
+     * @return The streamed products, or 400 if a SKU is null
+     */
+    @RequestMapping(value = "/products:batchGet", method = RequestMethod.POST)
+    public ResponseEntity<StreamingResponseBody> batchGetProductsResponse(@RequestBody List<String> skus) {
+        Set<String> unique = new LinkedHashSet<String>(skus);
+        if (unique.contains(null)) {
+            return new ResponseEntity<StreamingResponseBody>(HttpStatus.BAD_REQUEST);
+        }
+        if (unique.size() > Config.BATCH_GET_MAX_SKUS) {
+            return new ResponseEntity<StreamingResponseBody>(HttpStatus.PAYLOAD_TOO_LARGE);
+        }
 
+        long start = System.nanoTime();
+        StreamingResponseBody body = out -> {
+            ProductStreamWriter writer = new ProductStreamWriter(out);
             try {
-                product = cache.getUnchecked(sku);
+                batchGet(unique, writer);
+            } catch (RuntimeException e) {
+                writer.writeError("Lookup failed");
+                writer.flush();
+                throw e;
+            }
+            writer.flush();
+            metrics.recordSince(LatencyMetrics.Tier.BATCH_GET, start);
+        };
 
-                // add perf stat
-                if (cacheMissed == false) {
-                    //cacheRetrievalTimes.add(System.currentTimeMillis() - timeReqRecieved);
-                }
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(ProductStreamWriter.CONTENT_TYPE)).body(body);
+    }
 
-            } catch (Exception e) {
-                LOGGER.info("Item was not found in database");
-                return new ResponseEntity<Product>(HttpStatus.NOT_FOUND);
-            }
-        }
+    /**
+     * Turn a streamed response away when every stream thread is busy and the queue
+     * for them is full
+     * @param e The rejection from the stream executor
+     * @return 503 Service Unavailable
+     */
+    @ExceptionHandler(TaskRejectedException.class)
+    public ResponseEntity<String> streamRejectedResponse(TaskRejectedException e) {
+        LOGGER.warning("Turned a streamed response away: " + e.getMessage());
+        return new ResponseEntity<String>(HttpStatus.SERVICE_UNAVAILABLE);
+    }
 
-        if (product == null) { // Not found in DB
-            LOGGER.info("Item was not found in database");
-            return new ResponseEntity<Product>(HttpStatus.NOT_FOUND);
-        }
+    /**
+     * Export every product the service holds, streamed as newline delimited JSON: the
+     * cache first, then the backup one partition at a time, so memory use is one
+     * partition rather than the whole backup. Partitions are usually kept under
+     * Config.PARTITION_SPLIT_BYTES, but not while there is a snapshot or once they
+     * have been split Config.MAX_PARTITION_SPLITS times. The export isn't a point in
+     * time snapshot: a product changed while it runs may appear in either version.
+     * Each product is written once.
+     *
+     * @return The streamed products
+     */
+    @RequestMapping(value = "/products:export", method = RequestMethod.GET)
+    public ResponseEntity<StreamingResponseBody> exportProductsResponse() {
+        StreamingResponseBody body = out -> {
+            long start = System.currentTimeMillis();
+            ProductStreamWriter writer = new ProductStreamWriter(out);
+            exportProducts(writer);
+            writer.flush();
+            LOGGER.info("Exported " + writer.getWritten() + " products in " + (System.currentTimeMillis() - start) + "ms");
+        };
 
-        return new ResponseEntity<Product>(product, HttpStatus.OK);
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(ProductStreamWriter.CONTENT_TYPE)).body(body);
     }
 
     @RequestMapping(value = "/product/{sku}", method = RequestMethod.PUT)
-    public ResponseEntity<String> putProductResponse(@PathVariable(value = "sku") String sku,
+    public DeferredResult<ResponseEntity<String>> putProductResponse(@PathVariable(value = "sku") String sku,
             @RequestBody Product product) {
 
+        DeferredResult<ResponseEntity<String>> result = new DeferredResult<ResponseEntity<String>>(
+                Config.ASYNC_REQUEST_TIMEOUT, new ResponseEntity<String>(HttpStatus.SERVICE_UNAVAILABLE));
+        long start = System.nanoTime();
+
         // try to put in or update DB
         try {
             conn.makeConnection();
         } catch (ResourceUnavailableException e) {
             LOGGER.severe("Connection to database failed.");
-            return new ResponseEntity<String>(HttpStatus.SERVICE_UNAVAILABLE);
+            result.setResult(new ResponseEntity<String>(HttpStatus.SERVICE_UNAVAILABLE));
+            return result;
         }
 
-        try {
-            conn.putProduct(product);
-        } catch (Exception e) {
-            LOGGER.info("couldn't put product " + sku + " in db");
-            return new ResponseEntity<String>(HttpStatus.NOT_FOUND);
+        conn.putProductAsync(product).whenComplete((done, e) -> {
+            if (e != null) {
+                LOGGER.info("couldn't put product " + sku + " in db");
+                result.setResult(new ResponseEntity<String>(HttpStatus.NOT_FOUND));
+                return;
+            }
+
+            invalidateProduct(sku, product);
+            metrics.recordSince(LatencyMetrics.Tier.PUT, start);
+            result.setResult(new ResponseEntity<String>(HttpStatus.OK));
+        });
+
+        return result;
+    }
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> response = new LinkedHashMap<String, Object>();
+
+        response.put("rebuilding", cacheRebuilder.isRebuilding());
+        response.put("loadedPartitions", cacheRebuilder.getLoadedPartitionCount());
+        response.put("failedPartitions", cacheRebuilder.getFailedPartitionCount());
+        response.put("backupPartitions", cacheBackupHandler.getPartitions().size());
+        response.put("cacheSize", cache.size());
+        response.put("l2CacheSize", l2Cache.size());
+
+        // share of GETs answered from the on-heap cache
+        Map<String, Map<String, Long>> latency = metrics.getSummary();
+        long gets = 0;
+        for (LatencyMetrics.Tier tier : new LatencyMetrics.Tier[] { LatencyMetrics.Tier.CACHE_HIT,
+                LatencyMetrics.Tier.L2_HIT, LatencyMetrics.Tier.BACKUP_HIT, LatencyMetrics.Tier.DB_LOAD }) {
+            gets += latency.get(tier.name().toLowerCase()).get("count");
         }
+        response.put("cacheHitRate", gets == 0 ? 0.0 : latency.get("cache_hit").get("count") / (double) gets);
+
+        response.put("prewarm", cacheWarmer.getSummary());
+        response.put("filterRefresh", filterRefresher.getSummary());
+        response.put("latencyUnit", "microseconds");
+        response.put("latency", latency);
+
+        return response;
+    }
+
+    /**
+     * Remove a product which has just been changed in the database from the cache
+     * and the backup
+     *
+     * @param sku
+     *            The sku of the product
+     * @param product
+     *            The product as written to the database
+     */
+    private void invalidateProduct(String sku, Product product) {
+        int partitionNumber = cacheBackupHandler.getPartitionNumber(sku);
+
+        // fetches from the database which started before the change mustn't cache
+        // what they read, and later requests mustn't share their result
+        invalidations.increment(sku);
+        dbFetches.forget(sku);
 
-        if (ProductController.isRebuildingCache.get() && cacheBackupHandler.cachedMightContain(sku)) {
+        // the prewarm scan may be about to cache a copy read before the change
+        cacheWarmer.recordInvalidation(sku);
 
-            // add to invalid bloom filter so invalid backup doesn't get touched
+        // a demoted copy is never seen by the cache's removal listener. A copy evicted
+        // from the cache as this runs may be demoted after this, so it is removed again
+        // once the cache has been invalidated, and one stamped with the count from
+        // before this change is never promoted.
+        l2Cache.remove(sku);
+
+        if (!cacheRebuilder.isPartitionLoaded(partitionNumber) && cacheBackupHandler.mightContain(sku)) {
+
+            // remove from the filter so the invalid backup doesn't get touched
             // during rebuilding
             cacheBackupHandler.removeItemFromBackup(product);
 
-            cacheRebuilder.invalidQueue.add(sku);
+            // the partition may have been loaded since the check above
+            if (!cacheRebuilder.queueInvalidation(sku, partitionNumber)) {
+                cache.invalidate(sku);
+            }
         } else {
+            Product cached = cache.getIfPresent(sku);
             cache.invalidate(sku);
+
+            // items fetched while rebuilding are backed up without being cached, so
+            // invalidating the cache alone won't remove them from the backup
+            if (cached == null && cacheBackupHandler.mightContain(sku)) {
+                cacheBackupHandler.removeItemFromBackup(product);
+            }
+        }
+
+        l2Cache.remove(sku);
+    }
+
+    /**
+     * Look up a batch of SKUs the way a GET looks up one, a tier at a time: one
+     * lookup in the cache for SKUs whose partition has been loaded, one read of each
+     * backup partition for the rest, then one database request for whatever is
+     * left. Each tier's products are written out before the next tier is tried.
+     *
+     * @param skus
+     *            The SKUs to look up
+     * @param writer
+     *            Where found products are written
+     * @throws IOException
+     *             if the client has gone away
+     */
+    private void batchGet(Collection<String> skus, ProductStreamWriter writer) throws IOException {
+        List<String> cacheable = new ArrayList<String>();
+        List<String> unloaded = new ArrayList<String>();
+
+        for (String sku : skus) {
+            // every SKU counts towards popularity as if it were requested alone
+            cacheBackupHandler.getFrequencySketch().increment(sku);
+            int partitionNumber = cacheBackupHandler.getPartitionNumber(sku);
+            cacheBackupHandler.getPartitionHeat().increment(partitionNumber);
+
+            if (Config.REBUILD_ON_DEMAND && !cacheRebuilder.isPartitionLoaded(partitionNumber)) {
+                cacheRebuilder.ensurePartitionLoaded(partitionNumber);
+            }
+
+            if (cacheRebuilder.isPartitionLoaded(partitionNumber)) {
+                cacheable.add(sku);
+            } else {
+                cacheRebuilder.recordUnloadedRequest(partitionNumber);
+                unloaded.add(sku);
+            }
+        }
+
+        // SKUs left over are cached or only backed up once loaded, as in a GET
+        List<String> cacheMisses = new ArrayList<String>();
+        List<String> backupMisses = new ArrayList<String>();
+
+        Map<String, Product> cached = cache.getAllPresent(cacheable);
+        for (String sku : cacheable) {
+            Product product = cached.get(sku);
+            if (product == null) {
+                product = promoteFromL2(sku);
+            }
+
+            if (product != null) {
+                writer.write(product);
+            } else {
+                cacheMisses.add(sku);
+            }
+        }
+        writer.flush();
+
+        Map<String, Product> backedUp = cacheBackupHandler.getItemsFromBackup(unloaded);
+        for (String sku : unloaded) {
+            Product product = backedUp.get(sku);
+            if (product != null) {
+                writer.write(product);
+            } else {
+                backupMisses.add(sku);
+            }
+        }
+        writer.flush();
+
+        if (cacheMisses.isEmpty() && backupMisses.isEmpty()) {
+            return;
+        }
+
+        List<String> misses = new ArrayList<String>(cacheMisses);
+        misses.addAll(backupMisses);
+        Map<String, Long> invalidationsBefore = new HashMap<String, Long>();
+        for (String sku : misses) {
+            invalidationsBefore.put(sku, invalidations.get(sku));
+        }
+
+        Map<String, Product> loaded;
+        try {
+            conn.makeConnection();
+            loaded = conn.getProductsAsync(misses).get();
+        } catch (ResourceUnavailableException | ExecutionException e) {
+            LOGGER.severe("Couldn't get " + misses.size() + " products from the database: " + e);
+            writer.writeError("Couldn't get " + misses.size() + " products from the database");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.writeError("Interrupted");
+            return;
+        }
+
+        for (String sku : cacheMisses) {
+            Product product = loaded.get(sku);
+            if (product != null) {
+                writer.write(cacheLoadedProduct(product, invalidationsBefore.get(sku)));
+            }
+        }
+        for (String sku : backupMisses) {
+            Product product = loaded.get(sku);
+            if (product != null) {
+                backupLoadedProduct(product, invalidationsBefore.get(sku));
+                writer.write(product);
+            }
+        }
+    }
+
+    /**
+     * Write out the cache and then every backup partition. Products written from the
+     * cache are skipped when their partition is read, and every other product in the
+     * backup is written, including one which entered the cache after the walk passed
+     * it. A partition which hadn't been rebuilt when the export started is left out
+     * of the cache walk, so its products are all taken from the backup.
+     *
+     * @param writer
+     *            Where the products are written
+     * @throws IOException
+     *             if the client has gone away
+     */
+    private void exportProducts(ProductStreamWriter writer) throws IOException {
+        // Backup writes queued so far reach the partitions before they are read
+        cacheBackupHandler.flush();
+
+        List<Integer> partitions = cacheBackupHandler.getPartitions();
+        boolean rebuilding = cacheRebuilder.isRebuilding();
+        PartitionBitmap loaded = new PartitionBitmap(cacheBackupHandler.getPartitionCapacity());
+        for (int partitionNumber : partitions) {
+            if (cacheRebuilder.isPartitionLoaded(partitionNumber)) {
+                loaded.set(partitionNumber);
+            }
+        }
+
+        Set<String> exported = new HashSet<String>();
+        for (Map.Entry<String, Product> entry : cache.asMap().entrySet()) {
+            if (!rebuilding || loaded.get(cacheBackupHandler.getPartitionNumber(entry.getKey()))) {
+                writer.write(entry.getValue());
+                exported.add(entry.getKey());
+            }
+        }
+
+        Map<Integer, Set<String>> queued = cacheBackupHandler.getQueuedByPartition(partitions);
+        for (int partitionNumber : partitions) {
+            for (Product product : cacheBackupHandler.readPartition(partitionNumber, queued.get(partitionNumber))) {
+                if (!exported.contains(product.getSku())) {
+                    writer.write(product);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer a request once a database fetch for it completes
+     *
+     * @param result
+     *            The request's pending result
+     * @param start
+     *            The System.nanoTime() at which the request started
+     * @param fetch
+     *            The fetch of the requested product
+     */
+    private void completeFromDB(DeferredResult<ResponseEntity<Product>> result, long start,
+            CompletableFuture<Product> fetch) {
+        fetch.whenComplete((product, t) -> {
+            if (t == null) {
+                metrics.recordSince(LatencyMetrics.Tier.DB_LOAD, start);
+                result.setResult(new ResponseEntity<Product>(product, HttpStatus.OK));
+                return;
+            }
+
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (cause instanceof ResourceUnavailableException) {
+                LOGGER.severe("Connection to database failed.");
+                result.setResult(new ResponseEntity<Product>(HttpStatus.SERVICE_UNAVAILABLE));
+            } else {
+                LOGGER.info("Item was not found in database");
+                result.setResult(new ResponseEntity<Product>(HttpStatus.NOT_FOUND));
+            }
+        });
+    }
+
+    /**
+     * Move a product from the off-heap tier back into the cache. A copy demoted
+     * before the SKU was last invalidated is dropped rather than promoted. A change
+     * made between taking it and caching it would find neither copy to remove, so
+     * the promoted copy is removed again if the SKU was invalidated meanwhile.
+     *
+     * @param sku
+     *            The sku of the product
+     * @return The product, or null if it isn't in the off-heap tier
+     */
+    private Product promoteFromL2(String sku) {
+        long invalidation = invalidations.get(sku);
+        Product product = l2Cache.take(sku, invalidation);
+        if (product == null) {
+            return null;
         }
 
-        return new ResponseEntity<String>(HttpStatus.OK);
+        Product existing = cache.asMap().putIfAbsent(sku, product);
+        if (existing != null) {
+            return existing;
+        }
+
+        if (invalidations.get(sku) != invalidation) {
+            cache.invalidate(sku);
+        }
+        return product;
     }
 
     /**
-     * Refresh the bloom filters on an approximate time interval (dependent on
-     * how often this function is called)
+     * Put a product fetched from the database into the cache and the backup, unless
+     * another request cached it first or the product was changed while it was being
+     * fetched, in which case what was fetched may be out of date
      *
-     * @param interval
-     *            Length of interval in milliseconds
+     * @param product
+     *            The fetched product
+     * @param invalidation
+     *            The SKU's invalidation count from before the fetch started
+     * @return The cached product, or the fetched product if it wasn't cached
      */
-    private void refreshBFOnInterval(long interval) {
-        if (timeOfLastBloomRefresh == null || System.currentTimeMillis() - timeOfLastBloomRefresh > interval) {
-            LOGGER.info("Refreshing bloom filters");
-            cacheBackupHandler.refreshBloomFilters(cache);
-            LOGGER.info("Finished refreshing bloom filters");
-            timeOfLastBloomRefresh = System.currentTimeMillis();
+    private Product cacheLoadedProduct(Product product, long invalidation) {
+        String sku = product.getSku();
+        if (invalidations.get(sku) != invalidation) {
+            return product;
+        }
+
+        Product existing = cache.asMap().putIfAbsent(sku, product);
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            cacheBackupHandler.backupItem(product);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-            /*
-             * Let's print some perf statistics while we have an interval
-             * going...
-             */
-            System.out.println("============PERFORMANCE STATISTICS============");
-            System.out.println("Average database retrieval time:     " + average(databaseRetrievalTimes) + "ms");
-            System.out.println("Average cache retrieval time:        " + average(cacheRetrievalTimes) + "ms");
-            System.out.println("Average backup file retrieval time:  " + average(backupRetrievalTimes) + "ms");
+        // A change which invalidated the SKU before the put found nothing to remove,
+        // so the fetched copy is removed here. One made after this check removes it itself.
+        if (invalidations.get(sku) != invalidation) {
+            cache.invalidate(sku);
+            cacheBackupHandler.removeItemFromBackup(product);
         }
+
+        return product;
     }
 
     /**
-     * Calculate the average of a list of values
+     * Put a product fetched from the database into the backup only, as for a SKU
+     * whose partition hasn't been loaded yet, unless the product was changed while
+     * it was being fetched
      *
-     * @param values
-     *            List of Long integers
-     * @return The average number as a Long int
+     * @param product
+     *            The fetched product
+     * @param invalidation
+     *            The SKU's invalidation count from before the fetch started
      */
-    private long average(ArrayList<Long> values) {
-        if (values == null || values.size() == 0) {
-            return 0;
+    private void backupLoadedProduct(Product product, long invalidation) {
+        if (invalidations.get(product.getSku()) != invalidation) {
+            return;
         }
 
-        long sum = 0;
-        for (Long item : values) {
-            sum += item;
+        cacheBackupHandler.backupItem(product);
+
+        if (invalidations.get(product.getSku()) != invalidation) {
+            cacheBackupHandler.removeItemFromBackup(product);
         }
+    }
 
-        return sum / values.size();
+    /**
+     * Load a product from the database as part of a micro-batch with any other
+     * loads made at around the same time
+     *
+     * @param sku
+     *            The sku of the product
+     * @return The Product
+     * @throws Exception
+     *             if not found or the database couldn't be reached
+     */
+    private Product loadFromDB(String sku) throws Exception {
+        try {
+            return productLoader.load(sku).get();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
+        }
     }
 }
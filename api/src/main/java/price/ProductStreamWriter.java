@@ -0,0 +1,80 @@
+package price;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes products to a response as newline delimited JSON, one product per line, so
+ * that a response of any size is streamed out rather than built up in memory. A
+ * response cut short ends with an error line instead.
+ */
+public class ProductStreamWriter {
+
+    public static final String CONTENT_TYPE = "application/x-ndjson";
+
+    final private Writer out;
+    private long written = 0;
+
+    /**
+     * Class constructor
+     * @param out The stream to write to, which is buffered but never closed
+     */
+    public ProductStreamWriter(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8), Config.STREAM_BUFFER_BYTES);
+    }
+
+    /**
+     * Write one product as a line of JSON
+     * @param product The product to write
+     * @throws IOException
+     */
+    public void write(Product product) throws IOException {
+        // JsonWriter is only a formatter here: it is never flushed or closed, so it
+        // neither flushes nor closes the stream under it
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("sku").value(product.getSku());
+        json.name("price").value(product.getPrice());
+        json.name("type").value(product.getType());
+        json.endObject();
+        out.write('\n');
+        written++;
+    }
+
+    /**
+     * Write a line saying the response is incomplete, so that a client can tell it
+     * apart from one which simply didn't find everything. Nothing should be written
+     * after it.
+     * @param message Why the response is incomplete
+     * @throws IOException
+     */
+    public void writeError(String message) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("error").value(message);
+        json.endObject();
+        out.write('\n');
+    }
+
+    /**
+     * Send everything written so far to the client
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Get the number of products written
+     * @return The number of lines written
+     */
+    public long getWritten() {
+        return written;
+    }
+}
@@ -0,0 +1,93 @@
+package price;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key so that only one of them does the
+ * work. The first caller for a key runs the call on its own thread and every caller
+ * which arrives while it is running shares its result.
+ * @param <K> The key type
+ * @param <V> The result type
+ */
+public class SingleFlight<K, V> {
+
+    final private ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+    /**
+     * Run a call for a key unless one is already in flight, in which case share its result
+     * @param key The key the call is for
+     * @param call The work to do if no call for the key is in flight
+     * @return A future which completes with the result of the call
+     */
+    public CompletableFuture<V> execute(K key, Callable<V> call) {
+        CompletableFuture<V> future = new CompletableFuture<V>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            future.complete(call.call());
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        } finally {
+            inFlight.remove(key, future);
+        }
+
+        return future;
+    }
+
+    /**
+     * Start an asynchronous call for a key unless one is already in flight, in which
+     * case share its result. The key stays in flight until the call's future completes.
+     * @param key The key the call is for
+     * @param call Starts the work to do if no call for the key is in flight
+     * @return A future which completes with the result of the call
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> future = new CompletableFuture<V>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            call.get().whenComplete((result, t) -> {
+                inFlight.remove(key, future);
+                if (t != null) {
+                    future.completeExceptionally(t);
+                } else {
+                    future.complete(result);
+                }
+            });
+        } catch (Throwable t) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(t);
+        }
+
+        return future;
+    }
+
+    /**
+     * Stop sharing the call in flight for a key, if any, so that later callers start
+     * a new call. Callers already sharing it still get its result.
+     * @param key The key whose call is out of date
+     */
+    public void forget(K key) {
+        inFlight.remove(key);
+    }
+
+    /**
+     * Get the number of keys which have a call in flight
+     * @return The number of calls in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,65 @@
+package price;
+
+/**
+ * Packs SKUs of the form PREFIX-DIGITS, like THING-00001234, into a single long:
+ *
+ *   bits 63-52  prefix id in a StringDictionary (1 to 4095)
+ *   bits 51-48  number of digits, so leading zeros survive (1 to 12)
+ *   bits 47-0   the digits as a number
+ *
+ * No SKU encodes to 0, so 0 can mark an empty slot.
+ */
+public class SkuCodec {
+
+    private static final int MAX_PREFIXES = 4095;
+    private static final int MAX_DIGITS = 12;
+
+    final private StringDictionary prefixes = new StringDictionary(1, MAX_PREFIXES);
+
+    /**
+     * Encode a SKU
+     * @param sku The SKU
+     * @return The encoded SKU, or 0 if it doesn't fit the pattern
+     */
+    public long encode(String sku) {
+        int dash = sku.lastIndexOf('-');
+        int digits = sku.length() - dash - 1;
+        if (dash < 0 || digits < 1 || digits > MAX_DIGITS) {
+            return 0;
+        }
+
+        long number = 0;
+        for (int i = dash + 1; i < sku.length(); i++) {
+            char c = sku.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            number = number * 10 + (c - '0');
+        }
+
+        int prefix = prefixes.id(sku.substring(0, dash));
+        if (prefix < 0) {
+            return 0;
+        }
+
+        return ((long) prefix << 52) | ((long) digits << 48) | number;
+    }
+
+    /**
+     * Decode a SKU
+     * @param code A value returned by encode()
+     * @return The SKU
+     */
+    public String decode(long code) {
+        String prefix = prefixes.get((int) (code >>> 52));
+        int digits = (int) (code >>> 48) & 0xF;
+        String number = Long.toString(code & 0xFFFFFFFFFFFFL);
+
+        StringBuilder sku = new StringBuilder(prefix.length() + 1 + digits);
+        sku.append(prefix).append('-');
+        for (int i = number.length(); i < digits; i++) {
+            sku.append('0');
+        }
+        return sku.append(number).toString();
+    }
+}
@@ -0,0 +1,25 @@
+package price;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the whole partition file from disk on every call.
+ */
+public class StreamPartitionReader implements PartitionReader {
+
+    @Override
+    public ByteBuffer read(File file) {
+        return BinaryPartitionUtils.readPartitionFile(file);
+    }
+
+    @Override
+    public void release(ByteBuffer partition) {
+        // The buffer is left to the garbage collector
+    }
+
+    @Override
+    public void invalidate(File file) {
+        // Nothing is held between reads
+    }
+}
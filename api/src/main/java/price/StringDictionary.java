@@ -0,0 +1,69 @@
+package price;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns strings as small int ids. Ids are handed out in order from a first id
+ * and never change or get reused. Lookups by id don't lock.
+ */
+public class StringDictionary {
+
+    final private ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    final private int firstId;
+    final private int limit;
+    private volatile String[] strings = new String[16]; // indexed by id - firstId
+
+    /**
+     * Class constructor
+     * @param firstId The id given to the first string
+     * @param limit The most strings the dictionary will hold
+     */
+    public StringDictionary(int firstId, int limit) {
+        this.firstId = firstId;
+        this.limit = limit;
+    }
+
+    /**
+     * Get the id of a string, giving it the next id if it doesn't have one yet
+     * @param string The string
+     * @return The id, or -1 if the dictionary is full
+     */
+    public int id(String string) {
+        Integer id = ids.get(string);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (this) {
+            id = ids.get(string);
+            if (id != null) {
+                return id;
+            }
+            if (ids.size() >= limit) {
+                return -1;
+            }
+
+            int index = ids.size();
+            String[] grown = strings;
+            if (index >= grown.length) {
+                grown = Arrays.copyOf(grown, Math.min(grown.length * 2, limit));
+            }
+            grown[index] = string;
+            strings = grown; // publish before the id can be seen
+            ids.put(string, index + firstId);
+
+            return index + firstId;
+        }
+    }
+
+    /**
+     * Get the string with an id
+     * @param id An id returned by id()
+     * @return The string
+     */
+    public String get(int id) {
+        return strings[id - firstId];
+    }
+}
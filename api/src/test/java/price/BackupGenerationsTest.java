@@ -0,0 +1,147 @@
+package price;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BackupGenerationsTest {
+
+    private static final int PARTITIONS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int partitions;
+    private List<Product> products;
+    private File backupDir;
+    private File generationsDir;
+
+    @Before
+    public void createBackup() throws Exception {
+        partitions = Config.BACKUP_PARTITIONS;
+        Config.BACKUP_PARTITIONS = PARTITIONS;
+        products = TestBackups.generateProducts(400);
+        backupDir = folder.newFolder("backup");
+        generationsDir = new File(backupDir, Config.GENERATIONS_DIR);
+    }
+
+    @After
+    public void restoreConfig() {
+        Config.BACKUP_PARTITIONS = partitions;
+    }
+
+    private static File partitionFile(File dir, int partitionNumber) {
+        return new File(dir, Config.BACKUP_FILENAME + Integer.toString(partitionNumber));
+    }
+
+    private File generation(int generation) {
+        return new File(generationsDir, Integer.toString(generation));
+    }
+
+    private String[] generationsOnDisk() {
+        String[] names = generationsDir.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void opensFirstGenerationInEmptyBackup() throws Exception {
+        BackupGenerations generations = new BackupGenerations(backupDir, PARTITIONS);
+
+        assertEquals(generation(0), generations.getCurrentDir());
+        assertTrue(generations.getCurrentDir().isDirectory());
+        assertFalse(generations.hasSnapshot());
+        assertNull(generations.getSnapshotDir(0));
+    }
+
+    @Test
+    public void movesPartitionsLeftInBackupDirIntoFirstGeneration() throws Exception {
+        TestBackups.createBackup(backupDir, products);
+        File old = new File(backupDir, Config.BACKUP_FILENAME + "0.old");
+        assertTrue(old.createNewFile());
+
+        BackupGenerations generations = new BackupGenerations(backupDir, PARTITIONS);
+
+        assertTrue(generations.hasSnapshot());
+        assertEquals(generation(1), generations.getCurrentDir());
+        assertEquals(0, generations.getCurrentDir().list().length);
+        for (int i = 0; i < PARTITIONS; i++) {
+            assertFalse(partitionFile(backupDir, i).exists());
+            assertTrue(partitionFile(generation(0), i).exists());
+            assertEquals(generation(0), generations.getSnapshotDir(i));
+        }
+        assertTrue(old.exists());
+    }
+
+    @Test
+    public void readsEachPartitionFromNewestGenerationHoldingIt() throws Exception {
+        TestBackups.createBackup(backupDir, products);
+        BackupGenerations first = new BackupGenerations(backupDir, PARTITIONS);
+
+        // The previous run wrote to partition 3, and only appended to the log of 5
+        assertTrue(partitionFile(first.getCurrentDir(), 3).createNewFile());
+        assertTrue(new File(first.getCurrentDir(), Config.BACKUP_FILENAME + "5" + Config.LOG_SUFFIX).createNewFile());
+
+        BackupGenerations restarted = new BackupGenerations(backupDir, PARTITIONS);
+        assertEquals(generation(2), restarted.getCurrentDir());
+        assertArrayEquals(new String[] { "0", "1", "2" }, generationsOnDisk());
+        assertEquals(generation(1), restarted.getSnapshotDir(3));
+        assertEquals(generation(1), restarted.getSnapshotDir(5));
+        assertEquals(generation(0), restarted.getSnapshotDir(4));
+    }
+
+    @Test
+    public void deletesOldGenerationsOnceSnapshotIsReleased() throws Exception {
+        TestBackups.createBackup(backupDir, products);
+        new BackupGenerations(backupDir, PARTITIONS);
+        BackupGenerations restarted = new BackupGenerations(backupDir, PARTITIONS);
+
+        restarted.deleteSnapshot();
+
+        assertFalse(restarted.hasSnapshot());
+        assertNull(restarted.getSnapshotDir(0));
+        assertArrayEquals(new String[] { "2" }, generationsOnDisk());
+
+        // The next run opens a generation after it, with it as the snapshot
+        BackupGenerations next = new BackupGenerations(backupDir, PARTITIONS);
+        assertEquals(generation(3), next.getCurrentDir());
+        assertTrue(next.hasSnapshot());
+    }
+
+    @Test
+    public void rebuildMovesSnapshotIntoCurrentGeneration() throws Exception {
+        TestBackups.createBackup(backupDir, products);
+        CacheBackupHandler handler = new CacheBackupHandler(backupDir);
+        assertTrue(handler.hasSnapshot());
+
+        new CacheRebuilder(handler, TestBackups.createCache(10000), new OffHeapProductStore(0, 1, product -> {}),
+                new InvalidationCounter(1), new LatencyMetrics()).rebuildCache();
+
+        assertFalse(handler.hasSnapshot());
+        assertArrayEquals(new String[] { "1" }, generationsOnDisk());
+        handler.close();
+
+        // After a restart every product is found in the generation the last run left
+        CacheBackupHandler restarted = new CacheBackupHandler(backupDir);
+        assertTrue(restarted.hasSnapshot());
+        List<Product> found = new ArrayList<Product>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            found.addAll(restarted.readSnapshotPartition(i));
+        }
+        assertEquals(products.size(), found.size());
+        restarted.close();
+    }
+}
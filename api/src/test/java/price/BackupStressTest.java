@@ -0,0 +1,312 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Stress test of CacheBackupHandler under concurrent backups, removals, single and
+ * batched lookups, whole partition reads, compactions, splits and the release of the
+ * snapshot. Each worker owns its own SKUs, so it knows what every lookup of them
+ * should return. Two more threads aim at known races: one reads a partition, changes
+ * it, compacts it and reads it again, which finds a mapping kept after its file was
+ * replaced; the other keeps reading SKUs nothing writes to while partitions are
+ * materialized and split under it. At the end the backup is reopened and every SKU
+ * checked against its last write, which catches lost writes and torn partitions.
+ *
+ * Each run lasts backup.stress.millis (3 seconds by default).
+ */
+public class BackupStressTest {
+
+    private static final int PRODUCTS = 10000;
+    private static final int WORKERS = 4;
+    private static final int PARTITIONS = 8;
+    private static final long DURATION_MILLIS = Long.getLong("backup.stress.millis", 3000);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicBoolean running = new AtomicBoolean(true);
+
+    private int partitions;
+    private long cacheSize;
+    private String reader;
+    private long mappedPoolSize;
+    private int queueSize;
+    private long flushInterval;
+    private long compactionMinLogBytes;
+    private double compactionGarbageRatio;
+    private long partitionSplitBytes;
+
+    @Before
+    public void setConfig() {
+        partitions = Config.BACKUP_PARTITIONS;
+        cacheSize = Config.CACHE_SIZE;
+        reader = Config.BACKUP_READER;
+        mappedPoolSize = Config.MAPPED_PARTITION_POOL_SIZE;
+        queueSize = Config.BACKUP_QUEUE_SIZE;
+        flushInterval = Config.BACKUP_FLUSH_INTERVAL;
+        compactionMinLogBytes = Config.COMPACTION_MIN_LOG_BYTES;
+        compactionGarbageRatio = Config.COMPACTION_GARBAGE_RATIO;
+        partitionSplitBytes = Config.PARTITION_SPLIT_BYTES;
+
+        // Few partitions, a short queue and eager compaction and splitting make collisions likely
+        Config.BACKUP_PARTITIONS = PARTITIONS;
+        Config.CACHE_SIZE = PRODUCTS;
+        Config.BACKUP_QUEUE_SIZE = 64;
+        Config.BACKUP_FLUSH_INTERVAL = 1;
+        Config.COMPACTION_MIN_LOG_BYTES = 1024;
+        Config.COMPACTION_GARBAGE_RATIO = 0.1;
+        Config.PARTITION_SPLIT_BYTES = 8192;
+    }
+
+    @After
+    public void restoreConfig() {
+        Config.BACKUP_PARTITIONS = partitions;
+        Config.CACHE_SIZE = cacheSize;
+        Config.BACKUP_READER = reader;
+        Config.MAPPED_PARTITION_POOL_SIZE = mappedPoolSize;
+        Config.BACKUP_QUEUE_SIZE = queueSize;
+        Config.BACKUP_FLUSH_INTERVAL = flushInterval;
+        Config.COMPACTION_MIN_LOG_BYTES = compactionMinLogBytes;
+        Config.COMPACTION_GARBAGE_RATIO = compactionGarbageRatio;
+        Config.PARTITION_SPLIT_BYTES = partitionSplitBytes;
+    }
+
+    @Test
+    public void mappedReaderKeepsEveryWrite() throws Exception {
+        Config.BACKUP_READER = "mmap";
+        // Small enough that mappings are also dropped while they are being read
+        Config.MAPPED_PARTITION_POOL_SIZE = 4;
+        stress();
+    }
+
+    @Test
+    public void streamReaderKeepsEveryWrite() throws Exception {
+        Config.BACKUP_READER = "stream";
+        stress();
+    }
+
+    private void stress() throws Exception {
+        List<Product> products = TestBackups.generateProducts(PRODUCTS);
+        File backupDir = folder.newFolder("backup");
+        TestBackups.createBackup(backupDir, products);
+        CacheBackupHandler handler = new CacheBackupHandler(backupDir);
+        assertTrue(handler.hasSnapshot());
+
+        // Lookups only reach the partition files for SKUs in the filter
+        handler.refreshFilter();
+
+        // Each worker and the compaction checker own every (WORKERS + 2)th SKU, and
+        // the rest are never written
+        int owners = WORKERS + 2;
+        List<Map<String, Product>> expected = new ArrayList<Map<String, Product>>();
+        for (int t = 0; t < owners; t++) {
+            Map<String, Product> owned = new ConcurrentHashMap<String, Product>();
+            for (int i = t; i < products.size(); i += owners) {
+                owned.put(products.get(i).getSku(), products.get(i));
+            }
+            expected.add(owned);
+        }
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < WORKERS; t++) {
+            Map<String, Product> owned = expected.get(t);
+            Random random = new Random(t);
+            threads.add(new Thread(() -> work(handler, owned, random), "Stress " + t));
+        }
+        Map<String, Product> checked = expected.get(WORKERS);
+        threads.add(new Thread(() -> checkCompaction(handler, checked, new Random(WORKERS)), "Stress compaction"));
+        Map<String, Product> unwritten = expected.get(WORKERS + 1);
+        threads.add(new Thread(() -> readUnwritten(handler, unwritten, new Random(WORKERS + 1)), "Stress reads"));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        BackupCompactor compactor = new BackupCompactor(handler);
+        long end = System.currentTimeMillis() + DURATION_MILLIS;
+        boolean released = false;
+        while (System.currentTimeMillis() < end) {
+            compactor.compactPartitions();
+
+            // Partitions not written to yet are materialized midway, after which
+            // partitions start being split
+            if (!released && System.currentTimeMillis() > end - DURATION_MILLIS / 2) {
+                handler.releaseSnapshot();
+                released = true;
+            }
+        }
+
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        handler.close();
+
+        long lost = verify(backupDir, products, expected);
+        assertTrue("Nothing ran", operations.get() > 0);
+        assertEquals("Failures in " + operations.get() + " operations, the first: " + first(), 0, failures.get());
+        assertEquals("SKUs not as last written", 0, lost);
+    }
+
+    private void work(CacheBackupHandler handler, Map<String, Product> owned, Random random) {
+        List<String> skus = new ArrayList<String>(owned.keySet());
+        long version = 0;
+
+        while (running.get()) {
+            String sku = skus.get(random.nextInt(skus.size()));
+            int op = random.nextInt(10);
+
+            if (op < 6) {
+                Product product = new Product(sku, BigDecimal.valueOf(++version, 2), "Regular");
+                handler.backupItem(product);
+                owned.put(sku, product);
+            } else if (op < 7) {
+                handler.removeItemFromBackup(new Product(sku, null, null));
+                owned.remove(sku);
+            } else if (op < 9) {
+                check("Lookup", sku, handler.getItemFromBackup(sku), owned.get(sku));
+            } else if (random.nextInt(4) == 0) {
+                // Read as an export reads it, the partition may have been split since
+                // it was looked up. The filter isn't consulted, so nothing is hidden.
+                check("Partition read", sku, readFromPartition(handler, sku), owned.get(sku));
+            } else {
+                // A batch spans several partitions and often repeats one
+                List<String> batch = new ArrayList<String>();
+                for (int i = 0; i < 8; i++) {
+                    batch.add(skus.get(random.nextInt(skus.size())));
+                }
+                Map<String, Product> found = handler.getItemsFromBackup(batch);
+                for (String batched : batch) {
+                    check("Batched lookup", batched, found.get(batched), owned.get(batched));
+                }
+            }
+            operations.incrementAndGet();
+        }
+    }
+
+    /*
+     * Reads a SKU's partition, so a mapped reader maps it, then changes the SKU,
+     * compacts the partition and reads the SKU again from the new partition file
+     */
+    private void checkCompaction(CacheBackupHandler handler, Map<String, Product> owned, Random random) {
+        List<String> skus = new ArrayList<String>(owned.keySet());
+        long version = 0;
+
+        while (running.get()) {
+            String sku = skus.get(random.nextInt(skus.size()));
+            check("Lookup before compaction", sku, handler.getItemFromBackup(sku), owned.get(sku));
+
+            Product product = new Product(sku, BigDecimal.valueOf(++version, 2), "Regular");
+            handler.backupItem(product);
+            owned.put(sku, product);
+            handler.flush();
+            handler.compactPartition(handler.getPartitionNumber(sku));
+
+            check("Lookup after compaction", sku, handler.getItemFromBackup(sku), product);
+            operations.incrementAndGet();
+        }
+    }
+
+    /*
+     * Nothing writes these SKUs, so every read must find them as they were, however
+     * their partitions are moved, compacted or split around them
+     */
+    private void readUnwritten(CacheBackupHandler handler, Map<String, Product> unwritten, Random random) {
+        List<String> skus = new ArrayList<String>(unwritten.keySet());
+
+        while (running.get()) {
+            String sku = skus.get(random.nextInt(skus.size()));
+            check("Unwritten lookup", sku, handler.getItemFromBackup(sku), unwritten.get(sku));
+            if (random.nextInt(8) == 0) {
+                check("Unwritten partition read", sku, readFromPartition(handler, sku), unwritten.get(sku));
+            }
+            operations.incrementAndGet();
+        }
+    }
+
+    private static Product readFromPartition(CacheBackupHandler handler, String sku) {
+        Product found = null;
+        for (Product product : handler.readPartition(handler.getPartitionNumber(sku))) {
+            if (product.getSku().equals(sku)) {
+                found = product;
+            }
+        }
+        return found;
+    }
+
+    private void check(String read, String sku, Product found, Product want) {
+        if (!same(found, want)) {
+            fail(read + " of " + sku + " returned " + describe(found) + ", expected " + describe(want));
+        }
+    }
+
+    private void fail(String failure) {
+        failures.incrementAndGet();
+        if (failed.size() < 10) {
+            failed.add(failure);
+        }
+    }
+
+    private String first() {
+        synchronized (failed) {
+            return failed.isEmpty() ? "none" : failed.get(0);
+        }
+    }
+
+    private long verify(File backupDir, List<Product> products, List<Map<String, Product>> expected) {
+        CacheBackupHandler reopened = new CacheBackupHandler(backupDir);
+
+        Map<String, Product> backedUp = new HashMap<String, Product>();
+        for (int i : reopened.getPartitions()) {
+            for (Product product : reopened.readSnapshotPartition(i)) {
+                if (reopened.getPartitionNumber(product.getSku()) != i) {
+                    fail(product.getSku() + " found in the wrong partition " + i);
+                }
+                backedUp.put(product.getSku(), product);
+            }
+        }
+        reopened.close();
+
+        // A SKU left out of its owner's map was last removed
+        long lost = 0;
+        for (int i = 0; i < products.size(); i++) {
+            String sku = products.get(i).getSku();
+            if (!same(backedUp.get(sku), expected.get(i % expected.size()).get(sku))) {
+                lost++;
+            }
+        }
+        return lost;
+    }
+
+    private static boolean same(Product a, Product b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getSku().equals(b.getSku()) && a.getPrice().compareTo(b.getPrice()) == 0;
+    }
+
+    private static String describe(Product product) {
+        return product == null ? "nothing" : product.getSku() + " at " + product.getPrice();
+    }
+}
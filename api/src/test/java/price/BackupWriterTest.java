@@ -0,0 +1,127 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BackupWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int partitions;
+    private int queueSize;
+
+    @Before
+    public void setConfig() {
+        partitions = Config.BACKUP_PARTITIONS;
+        queueSize = Config.BACKUP_QUEUE_SIZE;
+        Config.BACKUP_PARTITIONS = 4;
+        Config.BACKUP_QUEUE_SIZE = 8;
+    }
+
+    @After
+    public void restoreConfig() {
+        Config.BACKUP_PARTITIONS = partitions;
+        Config.BACKUP_QUEUE_SIZE = queueSize;
+    }
+
+    /*
+     * Fails the first writes it is given, by reporting them unwritten, by throwing, or
+     * by throwing an Error which stops the backup writer
+     */
+    private static class FailingBackupHandler extends CacheBackupHandler {
+        final AtomicInteger failures = new AtomicInteger();
+        volatile String failure = "report";
+
+        FailingBackupHandler(File backupDir) {
+            super(backupDir);
+        }
+
+        @Override
+        boolean writeBatch(int partitionNumber, List<Map.Entry<String, Product>> batch) {
+            if (failures.getAndDecrement() > 0) {
+                if (failure.equals("throw")) {
+                    throw new IllegalStateException("Disk on fire");
+                }
+                if (failure.equals("stop")) {
+                    throw new AssertionError("Writer stopped");
+                }
+                return false;
+            }
+            return super.writeBatch(partitionNumber, batch);
+        }
+    }
+
+    @Test
+    public void keepsFailedWritesQueued() throws Exception {
+        FailingBackupHandler handler = new FailingBackupHandler(folder.newFolder("backup"));
+        List<Product> products = TestBackups.generateProducts(6);
+
+        handler.failures.set(3);
+        for (Product product : products) {
+            handler.backupItem(product);
+        }
+        handler.flush();
+        handler.flush();
+
+        for (Product product : products) {
+            assertEquals(product.getPrice(), handler.getItemFromBackup(product.getSku()).getPrice());
+        }
+        handler.close();
+    }
+
+    @Test
+    public void keepsWritingAfterAnException() throws Exception {
+        FailingBackupHandler handler = new FailingBackupHandler(folder.newFolder("backup"));
+        List<Product> products = TestBackups.generateProducts(6);
+
+        handler.failure = "throw";
+        handler.failures.set(2);
+        for (Product product : products) {
+            handler.backupItem(product);
+        }
+        handler.flush();
+        handler.flush();
+
+        for (Product product : products) {
+            assertEquals(product.getPrice(), handler.getItemFromBackup(product.getSku()).getPrice());
+        }
+        handler.close();
+    }
+
+    @Test
+    public void writesThroughOnceTheWriterHasStopped() throws Exception {
+        FailingBackupHandler handler = new FailingBackupHandler(folder.newFolder("backup"));
+        List<Product> products = TestBackups.generateProducts(40);
+
+        handler.failure = "stop";
+        handler.failures.set(1);
+        handler.backupItem(products.get(0));
+        handler.flush();
+
+        // Far more than the queue holds, which would block for good if queued
+        for (Product product : products) {
+            handler.backupItem(product);
+        }
+        handler.flush();
+
+        for (Product product : products) {
+            assertEquals(product.getPrice(), handler.getItemFromBackup(product.getSku()).getPrice());
+        }
+        assertNull(handler.getItemFromBackup("THING-99999999"));
+        handler.close();
+        assertNotNull(handler.getItemFromBackup(products.get(0).getSku()));
+    }
+}
@@ -0,0 +1,73 @@
+package price;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+public class BinaryPartitionUtilsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsSkusFromIndex() throws Exception {
+        File file = folder.newFile("Data_0");
+        BinaryPartitionUtils.writeProductsToBinaryFile(Arrays.asList(
+                new Product("THING-00000002", new BigDecimal("2.50"), "Regular"),
+                new Product("THING-00000001", new BigDecimal("1.50"), null)), file);
+
+        assertEquals(Arrays.asList("THING-00000001", "THING-00000002"),
+                BinaryPartitionUtils.readSkus(BinaryPartitionUtils.readPartitionFile(file)));
+        assertTrue(BinaryPartitionUtils.readSkus(null).isEmpty());
+    }
+
+    @Test
+    public void convertsJSONPartition() throws Exception {
+        File file = folder.newFile("Data_0");
+        CacheBackupUtils.writeProductsToJSONFile(new ArrayList<Product>(Arrays.asList(
+                new Product("THING-00000001", new BigDecimal("1.50"), "Regular"),
+                new Product("THING-00000002", new BigDecimal("2.50"), "Sale"))), file);
+
+        assertTrue(BinaryPartitionUtils.convertJSONFileToBinary(file));
+        assertTrue(BinaryPartitionUtils.isBinaryPartitionFile(file));
+
+        ArrayList<Product> products = BinaryPartitionUtils.readProductsFromBinaryFile(file);
+        assertEquals(2, products.size());
+        assertEquals(new BigDecimal("2.50"), BinaryPartitionUtils.findProduct(
+                BinaryPartitionUtils.readPartitionFile(file), "THING-00000002").getPrice());
+    }
+
+    @Test
+    public void leavesUnreadableJSONPartitionAlone() throws Exception {
+        File file = folder.newFile("Data_0");
+        byte[] truncated = "[{\"SKU\":\"THING-00000001\",\"Price\":\"1.50\",\"Type\":\"Regular\"},{\"SKU\":\"THI"
+                .getBytes(Charsets.UTF_8);
+        Files.write(file.toPath(), truncated);
+
+        assertFalse(BinaryPartitionUtils.convertJSONFileToBinary(file));
+        assertArrayEquals(truncated, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void leavesJSONPartitionWithBadPriceAlone() throws Exception {
+        File file = folder.newFile("Data_0");
+        byte[] json = "[{\"SKU\":\"THING-00000001\",\"Price\":\"cheap\",\"Type\":\"Regular\"}]".getBytes(Charsets.UTF_8);
+        Files.write(file.toPath(), json);
+
+        assertFalse(BinaryPartitionUtils.convertJSONFileToBinary(file));
+        assertArrayEquals(json, Files.readAllBytes(file.toPath()));
+    }
+}
@@ -0,0 +1,145 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheBackupHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int partitions;
+    private long filterCapacity;
+
+    @Before
+    public void setConfig() {
+        partitions = Config.BACKUP_PARTITIONS;
+        filterCapacity = Config.FILTER_INITIAL_CAPACITY;
+        Config.BACKUP_PARTITIONS = 8;
+    }
+
+    @After
+    public void restoreConfig() {
+        Config.BACKUP_PARTITIONS = partitions;
+        Config.FILTER_INITIAL_CAPACITY = filterCapacity;
+    }
+
+    @Test
+    public void removingSkuNotBackedUpLeavesSkuSharingItsFingerprint() throws Exception {
+        // A filter of one bucket, so SKUs with the same fingerprint share it
+        Config.FILTER_INITIAL_CAPACITY = 1;
+        String[] skus = CuckooFilterTest.collidingSkus();
+        CacheBackupHandler handler = new CacheBackupHandler(folder.newFolder("backup"));
+
+        // Fingerprints are only added and removed once the writer has written to the disk
+        handler.backupItem(new Product(skus[0], BigDecimal.ONE, "Regular"));
+        handler.flush();
+        assertTrue(handler.mightContain(skus[1]));
+
+        handler.removeItemFromBackup(new Product(skus[1], BigDecimal.ONE, "Regular"));
+        handler.flush();
+        handler.removeItemFromBackup(new Product(skus[1], BigDecimal.ONE, "Regular"));
+        handler.flush();
+        assertNotNull(handler.getItemFromBackup(skus[0]));
+
+        // Both backed up, then one removed
+        handler.backupItem(new Product(skus[1], BigDecimal.ONE, "Regular"));
+        handler.flush();
+        handler.removeItemFromBackup(new Product(skus[0], BigDecimal.ONE, "Regular"));
+        handler.flush();
+        assertNull(handler.getItemFromBackup(skus[0]));
+        assertNotNull(handler.getItemFromBackup(skus[1]));
+        handler.close();
+    }
+
+    @Test
+    public void refreshesFilterFromBackupPartitions() throws Exception {
+        File backupDir = folder.newFolder("backup");
+        List<Product> products = TestBackups.generateProducts(500);
+        TestBackups.createBackup(backupDir, products.subList(0, 400));
+        CacheBackupHandler handler = new CacheBackupHandler(backupDir);
+
+        // Some backed up through the queue, some removed
+        for (Product product : products.subList(400, 500)) {
+            handler.backupItem(product);
+        }
+        for (Product product : products.subList(0, 50)) {
+            handler.removeItemFromBackup(product);
+        }
+
+        // The refresh reads what is on disk; queued writes reach the filter once written
+        handler.flush();
+        assertEquals(450, handler.refreshFilter());
+        for (Product product : products.subList(50, 500)) {
+            assertEquals(product.getPrice(), handler.getItemFromBackup(product.getSku()).getPrice());
+        }
+        for (Product product : products.subList(0, 50)) {
+            assertNull(handler.getItemFromBackup(product.getSku()));
+        }
+        handler.close();
+    }
+
+    @Test
+    public void readsPartitionsWithQueueGroupedOnce() throws Exception {
+        File backupDir = folder.newFolder("backup");
+        List<Product> products = TestBackups.generateProducts(200);
+        TestBackups.createBackup(backupDir, products.subList(0, 100));
+        long flushInterval = Config.BACKUP_FLUSH_INTERVAL;
+        // Writes stay queued until flushed
+        Config.BACKUP_FLUSH_INTERVAL = 60000;
+        CacheBackupHandler handler;
+        try {
+            handler = new CacheBackupHandler(backupDir);
+        } finally {
+            Config.BACKUP_FLUSH_INTERVAL = flushInterval;
+        }
+
+        for (Product product : products.subList(100, 200)) {
+            handler.backupItem(product);
+        }
+        for (Product product : products.subList(0, 10)) {
+            handler.removeItemFromBackup(product);
+        }
+
+        List<Integer> partitions = handler.getPartitions();
+        Map<Integer, Set<String>> queued = handler.getQueuedByPartition(partitions);
+        int grouped = 0;
+        for (Map.Entry<Integer, Set<String>> partition : queued.entrySet()) {
+            for (String sku : partition.getValue()) {
+                assertEquals(handler.getPartitionNumber(sku), (int) partition.getKey());
+            }
+            grouped += partition.getValue().size();
+        }
+        assertEquals(110, grouped);
+
+        // Some of the queue reaches the disk after it was grouped
+        handler.flush();
+        Set<String> read = new HashSet<String>();
+        for (int partitionNumber : partitions) {
+            for (Product product : handler.readPartition(partitionNumber, queued.get(partitionNumber))) {
+                assertTrue(read.add(product.getSku()));
+            }
+        }
+        assertEquals(190, read.size());
+        for (Product product : products.subList(0, 10)) {
+            assertFalse(read.contains(product.getSku()));
+        }
+        handler.close();
+    }
+}
@@ -0,0 +1,232 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+public class CacheRebuilderTest {
+
+    private static final int PARTITIONS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int partitions;
+    private long cacheSize;
+    private int rebuildThreads;
+    private String cacheEngine;
+    private List<Product> products;
+    private File backupDir;
+
+    @Before
+    public void createBackup() throws Exception {
+        partitions = Config.BACKUP_PARTITIONS;
+        cacheSize = Config.CACHE_SIZE;
+        rebuildThreads = Config.REBUILD_THREADS;
+        cacheEngine = Config.CACHE_ENGINE;
+        Config.BACKUP_PARTITIONS = PARTITIONS;
+        Config.CACHE_SIZE = 10000;
+        products = TestBackups.generateProducts(400);
+        backupDir = folder.newFolder("backup");
+        TestBackups.createBackup(backupDir, products);
+    }
+
+    @After
+    public void restoreConfig() {
+        Config.BACKUP_PARTITIONS = partitions;
+        Config.CACHE_SIZE = cacheSize;
+        Config.REBUILD_THREADS = rebuildThreads;
+        Config.CACHE_ENGINE = cacheEngine;
+    }
+
+    /*
+     * Fails to read a partition a given number of times before reading it
+     */
+    private static class FailingBackupHandler extends CacheBackupHandler {
+        final private int[] failures;
+        final AtomicIntegerArray reads = new AtomicIntegerArray(PARTITIONS);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+        FailingBackupHandler(File backupDir, int[] failures) {
+            super(backupDir);
+            this.failures = failures;
+        }
+
+        @Override
+        public ArrayList<Product> readSnapshotPartition(int partitionNumber) {
+            order.add(partitionNumber);
+            if (reads.incrementAndGet(partitionNumber) <= failures[partitionNumber]) {
+                throw new IllegalStateException("Partition " + partitionNumber + " is unreadable");
+            }
+            return super.readSnapshotPartition(partitionNumber);
+        }
+    }
+
+    private String skuIn(CacheBackupHandler handler, int partitionNumber) {
+        for (Product product : products) {
+            if (handler.getPartitionNumber(product.getSku()) == partitionNumber) {
+                return product.getSku();
+            }
+        }
+        throw new IllegalStateException("No SKU in partition " + partitionNumber);
+    }
+
+    @Test
+    public void keepsMostPopularOfPartitionWhenCacheIsFull() throws Exception {
+        Config.CACHE_SIZE = 40;
+        CacheBackupHandler handler = new CacheBackupHandler(backupDir);
+        LoadingCache<String, Product> cache = TestBackups.createCache(40);
+        CacheRebuilder rebuilder = new CacheRebuilder(handler, cache,
+                new OffHeapProductStore(0, 1, product -> {}), new InvalidationCounter(1), new LatencyMetrics());
+
+        List<String> hot = new ArrayList<String>();
+        for (Product product : products) {
+            if (handler.getPartitionNumber(product.getSku()) == 0 && hot.size() < 3) {
+                hot.add(product.getSku());
+                for (int i = 0; i <= hot.size(); i++) {
+                    handler.getFrequencySketch().increment(product.getSku());
+                }
+            }
+        }
+
+        // The partition holds more than the cache has room for
+        rebuilder.ensurePartitionLoaded(0);
+        assertTrue(rebuilder.isPartitionLoaded(0));
+        for (String sku : hot) {
+            assertNotNull(cache.getIfPresent(sku));
+        }
+        handler.close();
+    }
+
+    @Test
+    public void rebuildsHottestPartitionFirstFromHeatOfPreviousRun() throws Exception {
+        CacheBackupHandler previous = new CacheBackupHandler(backupDir);
+        for (int i = 0; i < 30; i++) {
+            previous.getPartitionHeat().increment(5);
+        }
+        for (int i = 0; i < 20; i++) {
+            previous.getPartitionHeat().increment(2);
+        }
+        previous.getPartitionHeat().increment(7);
+        previous.checkpointPartitionHeat();
+        assertFalse(previous.getPartitionHeat().isDirty());
+        previous.close();
+
+        // A cache with room for about two partitions, evicting across all of them at once
+        Config.CACHE_SIZE = 100;
+        Config.CACHE_ENGINE = "guava";
+        Config.REBUILD_THREADS = 1;
+        LoadingCache<String, Product> cache = CacheBuilder.newBuilder().maximumSize(100).concurrencyLevel(1)
+                .build(new CacheLoader<String, Product>() {
+                    @Override
+                    public Product load(String sku) throws Exception {
+                        throw new Exception("Item " + sku + " not found");
+                    }
+                });
+        OffHeapProductStore l2Cache = new OffHeapProductStore(1 << 20, 1, product -> {});
+
+        FailingBackupHandler handler = new FailingBackupHandler(backupDir, new int[PARTITIONS]);
+        assertEquals(30, handler.getPartitionHeat().get(5));
+        assertEquals(20, handler.getPartitionHeat().get(2));
+        CacheRebuilder rebuilder = new CacheRebuilder(handler, cache, l2Cache, new InvalidationCounter(1),
+                new LatencyMetrics());
+        rebuilder.rebuildCache();
+
+        assertEquals(Arrays.asList(5, 2, 7, 0, 1, 3, 4, 6), handler.order);
+
+        // The colder partitions loaded later are demoted rather than evicting the hottest
+        for (Product product : products) {
+            String sku = product.getSku();
+            if (handler.getPartitionNumber(sku) == 5) {
+                assertNotNull(cache.getIfPresent(sku));
+            } else if (handler.getPartitionNumber(sku) == 6) {
+                assertNull(cache.getIfPresent(sku));
+                assertNotNull(l2Cache.get(sku));
+            }
+        }
+        assertTrue(cache.size() <= 100);
+        handler.close();
+    }
+
+    @Test
+    public void finishesRebuildWhenPartitionCantBeLoaded() throws Exception {
+        int[] failures = new int[PARTITIONS];
+        failures[3] = Integer.MAX_VALUE;
+        failures[5] = 1;
+        FailingBackupHandler handler = new FailingBackupHandler(backupDir, failures);
+        LoadingCache<String, Product> cache = TestBackups.createCache(10000);
+        handler.refreshFilter();
+        CacheRebuilder rebuilder = new CacheRebuilder(handler, cache,
+                new OffHeapProductStore(0, 1, product -> {}), new InvalidationCounter(1), new LatencyMetrics());
+
+        rebuilder.rebuildCache();
+
+        assertFalse(rebuilder.isRebuilding());
+        assertEquals(1, rebuilder.getFailedPartitionCount());
+        assertEquals(PARTITIONS - 1, rebuilder.getLoadedPartitionCount());
+        assertFalse(rebuilder.isPartitionLoaded(3));
+        assertTrue(rebuilder.isPartitionLoaded(5));
+        assertEquals(Config.REBUILD_MAX_ATTEMPTS, handler.reads.get(3));
+        assertEquals(2, handler.reads.get(5));
+
+        // The snapshot is released with the failed partition moved into the current generation
+        assertFalse(handler.hasSnapshot());
+
+        // Requests don't try to load it again, and invalidations are made straight away
+        rebuilder.ensurePartitionLoaded(3);
+        assertEquals(Config.REBUILD_MAX_ATTEMPTS, handler.reads.get(3));
+        assertFalse(rebuilder.queueInvalidation(skuIn(handler, 3), 3));
+
+        // Its SKUs aren't cached but are still found in the backup one at a time
+        String sku = skuIn(handler, 3);
+        assertNull(cache.getIfPresent(sku));
+        handler.refreshFilter();
+        assertNotNull(handler.getItemFromBackup(sku));
+        handler.close();
+    }
+
+    @Test
+    public void requestLeavesFailedPartitionToRebuilder() throws Exception {
+        int[] failures = new int[PARTITIONS];
+        failures[2] = Integer.MAX_VALUE;
+        FailingBackupHandler handler = new FailingBackupHandler(backupDir, failures);
+        LoadingCache<String, Product> cache = TestBackups.createCache(10000);
+        CacheRebuilder rebuilder = new CacheRebuilder(handler, cache,
+                new OffHeapProductStore(0, 1, product -> {}), new InvalidationCounter(1), new LatencyMetrics());
+
+        // The first request tries to load it on demand, later requests don't
+        rebuilder.ensurePartitionLoaded(2);
+        rebuilder.ensurePartitionLoaded(2);
+        rebuilder.ensurePartitionLoaded(2);
+        assertEquals(1, handler.reads.get(2));
+        assertFalse(rebuilder.isPartitionLoaded(2));
+
+        String sku = skuIn(handler, 2);
+        assertTrue(rebuilder.queueInvalidation(sku, 2));
+
+        rebuilder.rebuildCache();
+        assertFalse(rebuilder.isRebuilding());
+        assertEquals(Config.REBUILD_MAX_ATTEMPTS, handler.reads.get(2));
+        assertNotNull(cache.getIfPresent(skuIn(handler, 0)));
+        handler.close();
+    }
+}
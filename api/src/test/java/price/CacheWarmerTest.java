@@ -0,0 +1,233 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class CacheWarmerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String backupDir;
+    private int partitions;
+    private long cacheSize;
+    private long l2CacheBytes;
+    private boolean prewarm;
+    private long latency;
+    private int segments;
+    private int pageSize;
+    private double readCapacity;
+
+    /*
+     * Counts the pages the scan reads, and can hold the first page back after it
+     * has been read from the table until the gate is opened
+     */
+    private static class ScanCountingDBConnection extends InMemoryDBConnection {
+        final AtomicLong pages = new AtomicLong();
+        final CountDownLatch held = new CountDownLatch(1);
+        final List<Product> firstPage = new ArrayList<Product>();
+        volatile CountDownLatch gate;
+
+        ScanCountingDBConnection(int numberItems) {
+            super(numberItems);
+        }
+
+        @Override
+        public void scanSegment(int segment, int totalSegments, int pageSize, RateLimiter readCapacity,
+                Predicate<List<Product>> page) throws Exception {
+            super.scanSegment(segment, totalSegments, pageSize, readCapacity, products -> {
+                if (pages.getAndIncrement() == 0 && gate != null) {
+                    synchronized (firstPage) {
+                        firstPage.addAll(products);
+                    }
+                    held.countDown();
+                    Uninterruptibles.awaitUninterruptibly(gate);
+                }
+                return page.test(products);
+            });
+        }
+    }
+
+    @Before
+    public void setConfig() throws Exception {
+        backupDir = Config.BACKUP_DIR;
+        partitions = Config.BACKUP_PARTITIONS;
+        cacheSize = Config.CACHE_SIZE;
+        l2CacheBytes = Config.L2_CACHE_BYTES;
+        prewarm = Config.PREWARM_ENABLED;
+        latency = Config.MEMORY_DB_LATENCY;
+        segments = Config.PREWARM_SEGMENTS;
+        pageSize = Config.PREWARM_PAGE_SIZE;
+        readCapacity = Config.PREWARM_READ_CAPACITY;
+
+        Config.BACKUP_DIR = folder.newFolder("backup").getPath();
+        Config.BACKUP_PARTITIONS = 16;
+        Config.CACHE_SIZE = 1000;
+        Config.L2_CACHE_BYTES = 1 << 20;
+        Config.MEMORY_DB_LATENCY = 1;
+        Config.PREWARM_SEGMENTS = 2;
+        Config.PREWARM_PAGE_SIZE = 10;
+        Config.PREWARM_READ_CAPACITY = 1000000;
+    }
+
+    @After
+    public void restoreConfig() {
+        Config.BACKUP_DIR = backupDir;
+        Config.BACKUP_PARTITIONS = partitions;
+        Config.CACHE_SIZE = cacheSize;
+        Config.L2_CACHE_BYTES = l2CacheBytes;
+        Config.PREWARM_ENABLED = prewarm;
+        Config.MEMORY_DB_LATENCY = latency;
+        Config.PREWARM_SEGMENTS = segments;
+        Config.PREWARM_PAGE_SIZE = pageSize;
+        Config.PREWARM_READ_CAPACITY = readCapacity;
+    }
+
+    private Map<String, Object> warm(ScanCountingDBConnection conn, LoadingCache<String, Product> cache)
+            throws Exception {
+        CacheBackupHandler handler = new CacheBackupHandler(new File(Config.BACKUP_DIR));
+        CacheWarmer warmer = new CacheWarmer(conn, handler, cache, new OffHeapProductStore(1 << 20, 1, product -> {}));
+        warmer.start();
+        warmer.join();
+        handler.close();
+        return warmer.getSummary();
+    }
+
+    @Test
+    public void keepsWithinReadCapacity() throws Exception {
+        // Every page of ten small products costs one unit, so 20 pages take about a second
+        Config.PREWARM_READ_CAPACITY = 20;
+        ScanCountingDBConnection conn = new ScanCountingDBConnection(200);
+
+        long start = System.nanoTime();
+        Map<String, Object> summary = warm(conn, TestBackups.createCache(Config.CACHE_SIZE));
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(200L, summary.get("loaded"));
+        assertEquals(20, conn.pages.get());
+        // The first unit is granted straight away, and a little is stored while starting
+        assertTrue("Scanned " + conn.pages.get() + " pages in " + millis + "ms",
+                millis >= (conn.pages.get() - 2) * 1000 / 20);
+    }
+
+    @Test
+    public void stopsOnceTheCacheIsFull() throws Exception {
+        Config.CACHE_SIZE = 50;
+        ScanCountingDBConnection conn = new ScanCountingDBConnection(1000);
+        LoadingCache<String, Product> cache = TestBackups.createCache(1000);
+
+        Map<String, Object> summary = warm(conn, cache);
+
+        assertEquals(50L, summary.get("loaded"));
+        assertEquals(50, cache.size());
+        // Each segment may read one page past the one which filled the cache
+        long scanned = (Long) summary.get("scanned");
+        assertTrue("Scanned " + scanned, scanned <= Config.CACHE_SIZE + Config.PREWARM_SEGMENTS * Config.PREWARM_PAGE_SIZE);
+        assertTrue(conn.pages.get() <= Config.CACHE_SIZE / Config.PREWARM_PAGE_SIZE + 2 * Config.PREWARM_SEGMENTS);
+    }
+
+    @Test
+    public void putDuringScanLeavesNoStaleCopy() throws Exception {
+        Config.PREWARM_ENABLED = true;
+        ScanCountingDBConnection conn = new ScanCountingDBConnection(200);
+        conn.gate = new CountDownLatch(1);
+        ProductController controller = new ProductController(conn);
+
+        // The first page has been read from the table but not loaded
+        assertTrue(conn.held.await(5, TimeUnit.SECONDS));
+        String sku;
+        synchronized (conn.firstPage) {
+            sku = conn.firstPage.get(0).getSku();
+        }
+        put(controller, sku, "999.99");
+
+        // The rest are changed while the scan runs on
+        conn.gate.countDown();
+        List<String> changed = new ArrayList<String>();
+        for (int i = 0; i < 200; i += 7) {
+            String other = String.format("THING-%08d", i);
+            if (!other.equals(sku)) {
+                put(controller, other, "888.88");
+                changed.add(other);
+            }
+        }
+        awaitWarmed(controller);
+
+        assertEquals(new BigDecimal("999.99"), getPrice(controller, sku));
+        for (String other : changed) {
+            assertEquals(new BigDecimal("888.88"), getPrice(controller, other));
+        }
+        controller.destroy();
+
+        // Nor is a copy read before the change left in the backup
+        CacheBackupHandler reopened = new CacheBackupHandler(new File(Config.BACKUP_DIR));
+        changed.add(sku);
+        for (String other : changed) {
+            for (Product product : reopened.readPartition(reopened.getPartitionNumber(other))) {
+                if (product.getSku().equals(other)) {
+                    assertTrue(other + " backed up at " + product.getPrice(),
+                            product.getPrice().compareTo(new BigDecimal(other.equals(sku) ? "999.99" : "888.88")) == 0);
+                }
+            }
+        }
+        reopened.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void awaitWarmed(ProductController controller) {
+        long end = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < end) {
+            Map<String, Object> prewarm = (Map<String, Object>) controller.getMetrics().get("prewarm");
+            if (!(Boolean) prewarm.get("warming")) {
+                return;
+            }
+            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+        }
+        throw new AssertionError("Still warming");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ResponseEntity<T> await(DeferredResult<ResponseEntity<T>> result) {
+        long end = System.currentTimeMillis() + 5000;
+        while (!result.hasResult() && System.currentTimeMillis() < end) {
+            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+        }
+        assertTrue("No response", result.hasResult());
+        return (ResponseEntity<T>) result.getResult();
+    }
+
+    private static void put(ProductController controller, String sku, String price) {
+        ResponseEntity<String> response = await(controller.putProductResponse(sku,
+                new Product(sku, new BigDecimal(price), "Regular")));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    private static BigDecimal getPrice(ProductController controller, String sku) {
+        ResponseEntity<Product> response = await(controller.getProductResponse(sku));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        return response.getBody().getPrice();
+    }
+}
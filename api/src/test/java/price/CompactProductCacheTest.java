@@ -0,0 +1,195 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class CompactProductCacheTest {
+
+    private final List<RemovalNotification<String, Product>> removals = new ArrayList<RemovalNotification<String, Product>>();
+    private final AtomicInteger loads = new AtomicInteger();
+    private volatile String loadedPrice = "1.00";
+
+    private final RemovalListener<String, Product> listener = removal -> {
+        synchronized (removals) {
+            removals.add(removal);
+        }
+    };
+
+    private final CacheLoader<String, Product> loader = new CacheLoader<String, Product>() {
+        @Override
+        public Product load(String sku) throws Exception {
+            loads.incrementAndGet();
+            Thread.sleep(50);
+            if (loadedPrice == null) {
+                throw new Exception("Item " + sku + " not found");
+            }
+            return product(sku, loadedPrice);
+        }
+
+        @Override
+        public ListenableFuture<Product> reload(String sku, Product old) throws Exception {
+            return Futures.immediateFuture(load(sku));
+        }
+    };
+
+    private CompactProductCache newCache() {
+        return new CompactProductCache(1000, 4, listener, loader, null);
+    }
+
+    private static Product product(String sku, String price) {
+        return new Product(sku, new BigDecimal(price), "Regular");
+    }
+
+    @Test
+    public void removesOnlyTheExpectedProduct() {
+        ConcurrentMap<String, Product> map = newCache().asMap();
+        map.put("THING-00000001", product("THING-00000001", "1.50"));
+
+        assertFalse(map.remove("THING-00000001", product("THING-00000001", "2.50")));
+        assertTrue(map.containsKey("THING-00000001"));
+
+        // A different instance with the same SKU, price and type
+        assertTrue(map.remove("THING-00000001", product("THING-00000001", "1.50")));
+        assertFalse(map.containsKey("THING-00000001"));
+        assertEquals(RemovalCause.EXPLICIT, removals.get(removals.size() - 1).getCause());
+    }
+
+    @Test
+    public void replacesOnlyTheExpectedProduct() {
+        ConcurrentMap<String, Product> map = newCache().asMap();
+        map.put("THING-00000001", product("THING-00000001", "1.50"));
+
+        assertFalse(map.replace("THING-00000001", product("THING-00000001", "9.99"), product("THING-00000001", "2.50")));
+        assertEquals(new BigDecimal("1.50"), map.get("THING-00000001").getPrice());
+
+        assertTrue(map.replace("THING-00000001", product("THING-00000001", "1.50"), product("THING-00000001", "2.50")));
+        assertEquals(new BigDecimal("2.50"), map.get("THING-00000001").getPrice());
+        assertEquals(RemovalCause.REPLACED, removals.get(removals.size() - 1).getCause());
+
+        assertFalse(map.replace("THING-00000002", product("THING-00000002", "1.50"), product("THING-00000002", "2.50")));
+        assertNull(map.get("THING-00000002"));
+    }
+
+    @Test
+    public void comparesProductsKeptOutsideTheSegments() {
+        ConcurrentMap<String, Product> map = newCache().asMap();
+
+        // Not of the form PREFIX-DIGITS, so held in the fallback cache
+        map.put("odd sku", product("odd sku", "1.50"));
+        assertFalse(map.remove("odd sku", product("odd sku", "2.50")));
+        assertTrue(map.replace("odd sku", product("odd sku", "1.50"), product("odd sku", "2.50")));
+        assertTrue(map.remove("odd sku", product("odd sku", "2.50")));
+        assertFalse(map.containsKey("odd sku"));
+
+        // A price too precise for a segment moves the entry to the fallback cache and back
+        String huge = "123456789012345678901234567890.5";
+        map.put("THING-00000001", product("THING-00000001", "1.50"));
+        assertTrue(map.replace("THING-00000001", product("THING-00000001", "1.50"), product("THING-00000001", huge)));
+        assertEquals(new BigDecimal(huge), map.get("THING-00000001").getPrice());
+        assertTrue(map.replace("THING-00000001", product("THING-00000001", huge), product("THING-00000001", "3.50")));
+        assertEquals(new BigDecimal("3.50"), map.get("THING-00000001").getPrice());
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void supportsConcurrentMapDefaultMethods() {
+        ConcurrentMap<String, Product> map = newCache().asMap();
+        map.put("THING-00000001", product("THING-00000001", "1.50"));
+        map.put("THING-00000002", product("THING-00000002", "2.50"));
+
+        map.computeIfPresent("THING-00000001", (sku, old) -> product(sku, "1.75"));
+        assertEquals(new BigDecimal("1.75"), map.get("THING-00000001").getPrice());
+
+        map.replaceAll((sku, old) -> product(sku, old.getPrice().add(BigDecimal.ONE).toPlainString()));
+        assertEquals(new BigDecimal("2.75"), map.get("THING-00000001").getPrice());
+        assertEquals(new BigDecimal("3.50"), map.get("THING-00000002").getPrice());
+
+        map.computeIfPresent("THING-00000002", (sku, old) -> null);
+        assertFalse(map.containsKey("THING-00000002"));
+
+        map.merge("THING-00000003", product("THING-00000003", "4.00"), (old, added) -> added);
+        assertEquals(new BigDecimal("4.00"), map.get("THING-00000003").getPrice());
+    }
+
+    @Test
+    public void sharesConcurrentLoadsOfTheSameSku() throws Exception {
+        CompactProductCache cache = newCache();
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> getters = new ArrayList<Thread>();
+        List<Product> results = new ArrayList<Product>();
+
+        for (int i = 0; i < threads; i++) {
+            Thread getter = new Thread(() -> {
+                try {
+                    start.await();
+                    Product product = cache.get("THING-00000001");
+                    synchronized (results) {
+                        results.add(product);
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            getters.add(getter);
+            getter.start();
+        }
+        start.countDown();
+        for (Thread getter : getters) {
+            getter.join();
+        }
+
+        assertEquals(threads, results.size());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void refreshesAndKeepsTheOldValueIfTheLoadFails() {
+        CompactProductCache cache = newCache();
+        cache.put("THING-00000001", product("THING-00000001", "1.50"));
+
+        loadedPrice = "2.50";
+        cache.refresh("THING-00000001");
+        assertEquals(new BigDecimal("2.50"), cache.getIfPresent("THING-00000001").getPrice());
+
+        loadedPrice = null;
+        cache.refresh("THING-00000001");
+        assertEquals(new BigDecimal("2.50"), cache.getIfPresent("THING-00000001").getPrice());
+    }
+
+    @Test
+    public void recordsStats() throws Exception {
+        CompactProductCache cache = new CompactProductCache(4, 1, listener, loader, null);
+        cache.get("THING-00000001");
+        cache.get("THING-00000001");
+        for (int i = 2; i < 20; i++) {
+            cache.put("THING-0000000" + (char) ('a' + i), product("THING-00000001", "1.00"));
+            cache.put(String.format("THING-%08d", i), product(String.format("THING-%08d", i), "1.00"));
+        }
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(1, stats.missCount());
+        assertEquals(1, stats.loadSuccessCount());
+        assertTrue(stats.evictionCount() > 0);
+    }
+}
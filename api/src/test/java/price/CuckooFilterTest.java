@@ -0,0 +1,58 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+public class CuckooFilterTest {
+
+    /**
+     * Find two SKUs with the same fingerprint. A filter sized for one SKU has a single
+     * bucket, so they share their buckets too.
+     * @return The two SKUs
+     */
+    static String[] collidingSkus() {
+        Map<Short, String> seen = new HashMap<Short, String>();
+        for (int i = 0; ; i++) {
+            String sku = String.format("THING-%08d", i);
+            short fingerprint = (short) (Hashing.murmur3_128().hashString(sku, Charsets.UTF_8).asLong() >>> 48);
+            String other = seen.put(fingerprint, sku);
+            if (other != null && fingerprint != 0) {
+                return new String[] { other, sku };
+            }
+        }
+    }
+
+    @Test
+    public void keepsACopyForEachSkuSharingAFingerprint() {
+        String[] skus = collidingSkus();
+        CuckooFilter filter = new CuckooFilter(1);
+
+        filter.put(skus[0]);
+        filter.put(skus[1]);
+        assertEquals(2, filter.size());
+
+        assertTrue(filter.remove(skus[0]));
+        assertTrue(filter.mightContain(skus[1]));
+        assertTrue(filter.remove(skus[1]));
+        assertFalse(filter.mightContain(skus[1]));
+    }
+
+    @Test
+    public void boundsCopiesOfAFingerprint() {
+        CuckooFilter filter = new CuckooFilter(1000);
+        for (int i = 0; i < 100; i++) {
+            filter.put("THING-00000001");
+        }
+        assertEquals(4, filter.size());
+        assertEquals(1, filter.getTableCount());
+    }
+}
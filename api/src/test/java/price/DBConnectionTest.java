@@ -0,0 +1,157 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DBConnectionTest {
+
+    private long latency;
+    private int maxAttempts;
+    private long baseDelay;
+    private long maxDelay;
+
+    @Before
+    public void configure() {
+        latency = Config.MEMORY_DB_LATENCY;
+        maxAttempts = Config.DB_MAX_ATTEMPTS;
+        baseDelay = Config.DB_RETRY_BASE_DELAY;
+        maxDelay = Config.DB_RETRY_MAX_DELAY;
+
+        Config.MEMORY_DB_LATENCY = 0;
+        Config.DB_RETRY_BASE_DELAY = 2;
+        Config.DB_RETRY_MAX_DELAY = 10;
+    }
+
+    @After
+    public void restoreConfig() {
+        Config.MEMORY_DB_LATENCY = latency;
+        Config.DB_MAX_ATTEMPTS = maxAttempts;
+        Config.DB_RETRY_BASE_DELAY = baseDelay;
+        Config.DB_RETRY_MAX_DELAY = maxDelay;
+    }
+
+    private static List<String> skus(int from, int to) {
+        List<String> skus = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            skus.add("THING-" + String.format("%08d", i));
+        }
+        return skus;
+    }
+
+    @Test
+    public void getsEveryProductDespiteUnprocessedKeys() throws Exception {
+        Config.DB_MAX_ATTEMPTS = 50;
+        InMemoryDBConnection conn = new InMemoryDBConnection(1000);
+        conn.setUnprocessedShare(0.5);
+
+        // 250 products over 3 batches, and 10 SKUs not in the table
+        Map<String, Product> products = conn.getProducts(skus(750, 1010));
+
+        assertEquals(250, products.size());
+        assertEquals(skus(750, 1000), new ArrayList<String>(new TreeSet<String>(products.keySet())));
+        assertTrue(conn.getBatchGetItemCount() > 3);
+    }
+
+    @Test
+    public void slowStageDoesNotHoldUpOtherResponses() throws Exception {
+        // Long enough that the stage below is chained before the response completes
+        Config.MEMORY_DB_LATENCY = 50;
+        InMemoryDBConnection conn = new InMemoryDBConnection(1000);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // Stands in for a backup write blocked on a full queue
+        CompletableFuture<Void> blocked = conn.getProductsAsync(skus(0, 10)).thenAccept(products -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        try {
+            Map<String, Product> products = conn.getProductsAsync(skus(10, 20)).get(5, TimeUnit.SECONDS);
+            assertEquals(10, products.size());
+        } finally {
+            release.countDown();
+        }
+        blocked.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void failsOnceAttemptsRunOut() throws Exception {
+        Config.DB_MAX_ATTEMPTS = 4;
+        InMemoryDBConnection conn = new InMemoryDBConnection(1000);
+        conn.setUnprocessedShare(1.0);
+
+        try {
+            conn.getProducts(skus(0, 50));
+            fail("Keys left unprocessed were reported as not found");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("50 keys still unprocessed"));
+        }
+        assertEquals(4, conn.getBatchGetItemCount());
+    }
+
+    @Test
+    public void getsEveryProductAsyncDespiteUnprocessedKeys() throws Exception {
+        Config.DB_MAX_ATTEMPTS = 50;
+        InMemoryDBConnection conn = new InMemoryDBConnection(1000);
+        conn.setUnprocessedShare(0.5);
+
+        Map<String, Product> products = conn.getProductsAsync(skus(750, 1010)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(skus(750, 1000), new ArrayList<String>(new TreeSet<String>(products.keySet())));
+        assertTrue(conn.getBatchGetItemCount() > 3);
+    }
+
+    @Test
+    public void failsAsyncOnceAttemptsRunOut() throws Exception {
+        Config.DB_MAX_ATTEMPTS = 4;
+        InMemoryDBConnection conn = new InMemoryDBConnection(1000);
+        conn.setUnprocessedShare(1.0);
+
+        try {
+            conn.getProductsAsync(skus(0, 150)).get(10, TimeUnit.SECONDS);
+            fail("Keys left unprocessed were reported as not found");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("keys still unprocessed after 4 requests"));
+        }
+
+        // Both batches were tried Config.DB_MAX_ATTEMPTS times
+        Thread.sleep(100);
+        assertEquals(8, conn.getBatchGetItemCount());
+    }
+
+    @Test
+    public void retryDelayIsCappedAndJittered() {
+        Config.DB_RETRY_BASE_DELAY = 50;
+        Config.DB_RETRY_MAX_DELAY = 2000;
+
+        for (int attempt = 1; attempt <= 40; attempt++) {
+            long ceiling = Math.min(2000, 50L << Math.min(attempt - 1, 30));
+            Set<Long> delays = new HashSet<Long>();
+            for (int i = 0; i < 200; i++) {
+                long delay = DBConnection.getRetryDelay(attempt);
+                assertTrue(delay >= 0 && delay <= ceiling);
+                delays.add(delay);
+            }
+            assertTrue("Delays aren't jittered", delays.size() > 1);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    private static final String SKU = "THING-00000001";
+
+    private static FrequencySketch saturated(long maximumSize) {
+        FrequencySketch sketch = new FrequencySketch(maximumSize);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(SKU);
+        }
+        return sketch;
+    }
+
+    /*
+     * Count requests for other SKUs until the sketch is halved, which shows as the
+     * saturated SKU dropping below 15. Returns the number of requests counted.
+     */
+    private static int incrementUntilReset(FrequencySketch sketch) {
+        for (int i = 0; ; i++) {
+            sketch.increment(String.format("THING-%08d", 1000 + i));
+            if (sketch.frequency(SKU) < 15) {
+                return i + 1;
+            }
+        }
+    }
+
+    @Test
+    public void countsRequestsUpToFifteen() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        assertEquals(0, sketch.frequency(SKU));
+        assertFalse(sketch.isDirty());
+
+        sketch.increment(SKU);
+        sketch.increment(SKU);
+        sketch.increment(SKU);
+        assertEquals(3, sketch.frequency(SKU));
+        assertTrue(sketch.isDirty());
+
+        assertEquals(15, saturated(1000).frequency(SKU));
+    }
+
+    @Test
+    public void halvesEveryCounterOnceTheSampleIsCounted() {
+        FrequencySketch sketch = saturated(10);
+
+        // Counts past 15 are lost, so the sample of 100 is mostly other SKUs
+        int increments = incrementUntilReset(sketch);
+        assertTrue(increments >= 100 - 15);
+        assertTrue(increments <= 100);
+        assertEquals(7, sketch.frequency(SKU));
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        FrequencySketch sketch = saturated(10);
+        sketch.increment("THING-00000002");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sketch.writeTo(out);
+        assertFalse(sketch.isDirty());
+
+        FrequencySketch restored = new FrequencySketch(10);
+        assertTrue(restored.readFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(15, restored.frequency(SKU));
+        assertEquals(sketch.frequency("THING-00000002"), restored.frequency("THING-00000002"));
+
+        // The count towards the next reset is carried over too
+        assertEquals(incrementUntilReset(sketch), incrementUntilReset(restored));
+    }
+
+    @Test
+    public void ignoresSketchOfAnotherSize() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        saturated(10).writeTo(out);
+
+        FrequencySketch other = new FrequencySketch(1000);
+        assertFalse(other.readFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(0, other.frequency(SKU));
+    }
+}
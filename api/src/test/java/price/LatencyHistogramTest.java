@@ -0,0 +1,132 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    private static long micros(long value) {
+        return TimeUnit.MICROSECONDS.toNanos(value);
+    }
+
+    /*
+     * The p50 of one sample of a value and one much larger, which is the highest value
+     * in the smaller one's bucket
+     */
+    private static long bucketTop(long value) {
+        LatencyHistogram histogram = new LatencyHistogram(1);
+        histogram.recordNanos(micros(value));
+        histogram.recordNanos(TimeUnit.HOURS.toNanos(1));
+        return histogram.getSummary().get("p50");
+    }
+
+    @Test
+    public void summarisesNothingAsZero() {
+        Map<String, Long> summary = new LatencyHistogram(4).getSummary();
+        assertEquals(Arrays.asList("count", "p50", "p99", "p999", "max"), new ArrayList<String>(summary.keySet()));
+        for (long value : summary.values()) {
+            assertEquals(0, value);
+        }
+    }
+
+    @Test
+    public void bucketsExactlyBelowOneHundredAndTwentyEight() {
+        assertEquals(0, bucketTop(0));
+        assertEquals(1, bucketTop(1));
+        assertEquals(127, bucketTop(127));
+    }
+
+    @Test
+    public void bucketsLogLinearlyAbove() {
+        // Above 128 every power of two is split into 64 buckets, doubling in width
+        assertEquals(129, bucketTop(128));
+        assertEquals(129, bucketTop(129));
+        assertEquals(131, bucketTop(130));
+        assertEquals(255, bucketTop(255));
+        assertEquals(259, bucketTop(256));
+        assertEquals(259, bucketTop(259));
+        assertEquals(263, bucketTop(260));
+
+        for (long value = 1; value < 1000000000; value = value * 3 / 2 + 1) {
+            long top = bucketTop(value);
+            assertTrue(value + " reported as " + top, top >= value && top <= value + value / 64);
+        }
+    }
+
+    @Test
+    public void clampsToAnHour() {
+        LatencyHistogram histogram = new LatencyHistogram(1);
+        histogram.recordNanos(TimeUnit.HOURS.toNanos(2));
+        histogram.recordNanos(-1);
+
+        Map<String, Long> summary = histogram.getSummary();
+        assertEquals(2, (long) summary.get("count"));
+        assertEquals(0, (long) summary.get("p50"));
+        assertEquals(TimeUnit.HOURS.toMicros(1), (long) summary.get("p99"));
+        assertEquals(TimeUnit.HOURS.toMicros(1), (long) summary.get("max"));
+    }
+
+    @Test
+    public void reportsPercentilesToWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram(1);
+        for (long value = 1000; value >= 1; value--) {
+            histogram.recordNanos(micros(value));
+        }
+
+        Map<String, Long> summary = histogram.getSummary();
+        assertEquals(1000, (long) summary.get("count"));
+        assertEquals(bucketTop(500), (long) summary.get("p50"));
+        assertEquals(bucketTop(990), (long) summary.get("p99"));
+        assertEquals(bucketTop(999), (long) summary.get("p999"));
+        assertEquals(1000, (long) summary.get("max"));
+    }
+
+    @Test
+    public void sumsStripesRecordedFromManyThreads() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram(4);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final long value = 100 * (i + 1);
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    histogram.recordNanos(micros(value));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<String, Long> summary = histogram.getSummary();
+        assertEquals(8000, (long) summary.get("count"));
+        assertEquals(bucketTop(400), (long) summary.get("p50"));
+        assertEquals(800, (long) summary.get("max"));
+    }
+
+    @Test
+    public void summarisesEachTierSeparately() {
+        LatencyMetrics metrics = new LatencyMetrics();
+        long start = System.nanoTime();
+        metrics.recordSince(LatencyMetrics.Tier.CACHE_HIT, start);
+        metrics.recordSince(LatencyMetrics.Tier.CACHE_HIT, start);
+        metrics.recordSince(LatencyMetrics.Tier.DB_LOAD, start);
+
+        Map<String, Map<String, Long>> summary = metrics.getSummary();
+        assertEquals(Arrays.asList("cache_hit", "l2_hit", "backup_hit", "db_load", "put", "batch_get",
+                "rebuild_partition"), new ArrayList<String>(summary.keySet()));
+        assertEquals(2, (long) summary.get("cache_hit").get("count"));
+        assertEquals(1, (long) summary.get("db_load").get("count"));
+        assertEquals(0, (long) summary.get("l2_hit").get("count"));
+    }
+}
@@ -0,0 +1,74 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedPartitionReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writePartition(String name, String price) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        BinaryPartitionUtils.writeProductsToBinaryFile(new ArrayList<Product>(Arrays.asList(
+                new Product("THING-00000001", new BigDecimal(price), "Regular"))), file);
+        return file;
+    }
+
+    @Test
+    public void keepsInvalidatedMappingUntilReleased() throws Exception {
+        MappedPartitionReader reader = new MappedPartitionReader(4);
+        File file = writePartition("Data_0", "1.50");
+
+        ByteBuffer first = reader.read(file);
+        reader.invalidate(file);
+        assertEquals(1, reader.getRetiredCount());
+
+        // Still readable until it is released
+        assertEquals(new BigDecimal("1.50"), BinaryPartitionUtils.findProduct(first, "THING-00000001").getPrice());
+
+        reader.release(first);
+        assertEquals(0, reader.getRetiredCount());
+    }
+
+    @Test
+    public void mapsRewrittenFileAfterInvalidate() throws Exception {
+        MappedPartitionReader reader = new MappedPartitionReader(4);
+        File file = writePartition("Data_0", "1.50");
+
+        ByteBuffer first = reader.read(file);
+        reader.release(first);
+
+        writePartition("Data_0", "2.50");
+        reader.invalidate(file);
+
+        ByteBuffer second = reader.read(file);
+        assertEquals(new BigDecimal("2.50"), BinaryPartitionUtils.findProduct(second, "THING-00000001").getPrice());
+        reader.release(second);
+    }
+
+    @Test
+    public void unmapsEvictedMappingOnceReleased() throws Exception {
+        MappedPartitionReader reader = new MappedPartitionReader(1);
+        File first = writePartition("Data_0", "1.50");
+        File second = writePartition("Data_1", "2.50");
+
+        ByteBuffer held = reader.read(first);
+        reader.release(reader.read(second));
+        assertEquals(1, reader.getRetiredCount());
+
+        reader.release(held);
+        assertEquals(0, reader.getRetiredCount());
+        assertNull(reader.read(new File(folder.getRoot(), "Data_2")));
+    }
+}
@@ -0,0 +1,125 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OffHeapProductStoreTest {
+
+    // Each of these products takes a 12 byte header and 32 bytes of record, so an
+    // arena of 100 bytes holds two with 12 bytes left at the end
+    private static final int ARENA = 100;
+
+    private final List<Product> evicted = new ArrayList<Product>();
+
+    private static Product product(int i, String price) {
+        return new Product("THING-" + String.format("%08d", i), new BigDecimal(price), "Regular");
+    }
+
+    private OffHeapProductStore store(long capacity) {
+        return new OffHeapProductStore(capacity, 1, product -> evicted.add(product));
+    }
+
+    @Test
+    public void wrapsAroundEvictingOldestFirst() {
+        OffHeapProductStore store = store(ARENA);
+        assertTrue(store.put(product(1, "1.50"), 0));
+        assertTrue(store.put(product(2, "1.50"), 0));
+
+        // No room at the end, so the third starts over at the front in place of the first
+        assertTrue(store.put(product(3, "1.50"), 0));
+        assertEquals(1, evicted.size());
+        assertEquals(product(1, "1.50").getSku(), evicted.get(0).getSku());
+
+        // The fourth follows it, in place of the second, and the head skips the unused end
+        assertTrue(store.put(product(4, "1.50"), 0));
+        assertEquals(2, evicted.size());
+        assertEquals(product(2, "1.50").getSku(), evicted.get(1).getSku());
+
+        assertTrue(store.put(product(5, "1.50"), 0));
+        assertEquals(product(3, "1.50").getSku(), evicted.get(2).getSku());
+
+        assertNull(store.get(product(3, "1.50").getSku()));
+        assertEquals(new BigDecimal("1.50"), store.get(product(4, "1.50").getSku()).getPrice());
+        assertEquals(new BigDecimal("1.50"), store.get(product(5, "1.50").getSku()).getPrice());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void overwrittenRecordIsEvictedWithoutNotifying() {
+        OffHeapProductStore store = store(ARENA);
+        String sku = product(1, "1.50").getSku();
+        store.put(product(1, "1.50"), 0);
+        store.put(product(1, "2.50"), 0);
+        assertEquals(new BigDecimal("2.50"), store.get(sku).getPrice());
+        assertEquals(1, store.size());
+
+        // Takes the place of the overwritten copy, which is no longer live
+        store.put(product(2, "1.50"), 0);
+        assertTrue(evicted.isEmpty());
+        assertEquals(new BigDecimal("2.50"), store.get(sku).getPrice());
+
+        // Takes the place of the live copy
+        store.put(product(3, "1.50"), 0);
+        assertEquals(1, evicted.size());
+        assertEquals(new BigDecimal("2.50"), evicted.get(0).getPrice());
+        assertNull(store.get(sku));
+    }
+
+    @Test
+    public void removedRecordIsEvictedWithoutNotifying() {
+        OffHeapProductStore store = store(ARENA);
+        store.put(product(1, "1.50"), 0);
+        store.put(product(2, "1.50"), 0);
+        store.remove(product(1, "1.50").getSku());
+
+        store.put(product(3, "1.50"), 0);
+        assertTrue(evicted.isEmpty());
+        store.put(product(4, "1.50"), 0);
+        assertEquals(1, evicted.size());
+        assertEquals(product(2, "1.50").getSku(), evicted.get(0).getSku());
+    }
+
+    @Test
+    public void recordLargerThanArenaIsNotStored() {
+        // Room for the product without a type, but not with one
+        OffHeapProductStore store = store(40);
+        String sku = product(1, "1.50").getSku();
+        assertTrue(store.put(new Product(sku, new BigDecimal("1.50"), null), 0));
+
+        // The copy already held is out of date, so it goes too
+        assertFalse(store.put(product(1, "2.50"), 0));
+        assertNull(store.get(sku));
+        assertEquals(0, store.size());
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void takeDropsCopyWithAnotherStamp() {
+        OffHeapProductStore store = store(ARENA);
+        String sku = product(1, "1.50").getSku();
+
+        store.put(product(1, "1.50"), 1);
+        assertNull(store.take(sku, 2));
+        assertNull(store.get(sku));
+
+        store.put(product(1, "2.50"), 2);
+        assertEquals(new BigDecimal("2.50"), store.take(sku, 2).getPrice());
+        assertNull(store.take(sku, 2));
+    }
+
+    @Test
+    public void storeWithoutCapacityHoldsNothing() {
+        OffHeapProductStore store = store(0);
+        assertFalse(store.put(product(1, "1.50"), 0));
+        assertNull(store.take(product(1, "1.50").getSku(), 0));
+        assertEquals(0, store.size());
+    }
+}
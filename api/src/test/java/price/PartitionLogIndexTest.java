@@ -0,0 +1,117 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PartitionLogIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Product product(String sku, String price) {
+        return new Product(sku, new BigDecimal(price), "Regular");
+    }
+
+    @Test
+    public void findsLatestEntry() throws Exception {
+        File log = new File(folder.getRoot(), "Data_0.log");
+        PartitionLog.append(log, PartitionLog.encodePut(product("THING-00000001", "1.50")));
+        PartitionLog.append(log, PartitionLog.encodePut(product("THING-00000002", "2.50")));
+        PartitionLog.append(log, PartitionLog.encodePut(product("THING-00000001", "3.50")));
+        PartitionLog.append(log, PartitionLog.encodeDelete("THING-00000002"));
+
+        PartitionLogIndex index = new PartitionLogIndex(log);
+        assertEquals(new BigDecimal("3.50"), index.find("THING-00000001").getPrice());
+        assertSame(PartitionLog.TOMBSTONE, index.find("THING-00000002"));
+        assertNull(index.find("THING-00000003"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void appliesLatestEntriesToPartitionSkus() throws Exception {
+        File log = new File(folder.getRoot(), "Data_0.log");
+        PartitionLog.append(log, PartitionLog.encodeDelete("THING-00000001"));
+        PartitionLog.append(log, PartitionLog.encodePut(product("THING-00000002", "2.50")));
+        PartitionLog.append(log, PartitionLog.encodeDelete("THING-00000003"));
+        PartitionLog.append(log, PartitionLog.encodePut(product("THING-00000003", "3.50")));
+
+        PartitionLogIndex index = new PartitionLogIndex(log);
+        Set<String> skus = new HashSet<String>(Arrays.asList("THING-00000001", "THING-00000004"));
+        index.applyTo(skus);
+        assertEquals(new HashSet<String>(Arrays.asList("THING-00000002", "THING-00000003", "THING-00000004")), skus);
+
+        long offset = log.length();
+        byte[] entries = PartitionLog.encodeDelete("THING-00000002");
+        PartitionLog.append(log, entries);
+        index.appended(offset, entries);
+        index.applyTo(skus);
+        assertEquals(new HashSet<String>(Arrays.asList("THING-00000003", "THING-00000004")), skus);
+    }
+
+    @Test
+    public void indexesAppendsWithoutRereading() throws Exception {
+        File log = new File(folder.getRoot(), "Data_0.log");
+        PartitionLog.append(log, PartitionLog.encodePut(product("THING-00000001", "1.50")));
+
+        PartitionLogIndex index = new PartitionLogIndex(log);
+        assertEquals(new BigDecimal("1.50"), index.find("THING-00000001").getPrice());
+
+        long offset = log.length();
+        byte[] entries = PartitionLog.encodePut(product("THING-00000002", "2.50"));
+        PartitionLog.append(log, entries);
+        index.appended(offset, entries);
+
+        Map<String, Product> found = index.findAll(Arrays.asList("THING-00000001", "THING-00000002", "THING-00000003"));
+        assertEquals(2, found.size());
+        assertEquals(new BigDecimal("2.50"), found.get("THING-00000002").getPrice());
+    }
+
+    @Test
+    public void reindexesLogChangedBehindItsBack() throws Exception {
+        File log = new File(folder.getRoot(), "Data_0.log");
+        PartitionLog.append(log, PartitionLog.encodePut(product("THING-00000001", "1.50")));
+
+        PartitionLogIndex index = new PartitionLogIndex(log);
+        assertEquals(new BigDecimal("1.50"), index.find("THING-00000001").getPrice());
+
+        PartitionLog.append(log, PartitionLog.encodePut(product("THING-00000001", "2.50")));
+        assertEquals(new BigDecimal("2.50"), index.find("THING-00000001").getPrice());
+
+        Files.delete(log.toPath());
+        assertNull(index.find("THING-00000001"));
+    }
+
+    @Test
+    public void ignoresTornEntry() throws Exception {
+        File log = new File(folder.getRoot(), "Data_0.log");
+        PartitionLog.append(log, PartitionLog.encodePut(product("THING-00000001", "1.50")));
+        byte[] torn = PartitionLog.encodePut(product("THING-00000002", "2.50"));
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(torn, 0, torn.length - 3);
+        out.close();
+
+        PartitionLogIndex index = new PartitionLogIndex(log);
+        assertEquals(new BigDecimal("1.50"), index.find("THING-00000001").getPrice());
+        assertNull(index.find("THING-00000002"));
+
+        // Recovery cuts the torn entry off before the next append
+        long offset = PartitionLog.recover(log);
+        PartitionLog.append(log, torn);
+        index.appended(offset, torn);
+        assertEquals(new BigDecimal("2.50"), index.find("THING-00000002").getPrice());
+    }
+}
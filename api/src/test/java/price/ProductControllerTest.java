@@ -0,0 +1,264 @@
+package price;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class ProductControllerTest {
+
+    private static final String SKU = "THING-00000042";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String backupDir;
+    private int partitions;
+    private long cacheSize;
+    private int cacheSegments;
+    private int streamBufferBytes;
+    private long l2CacheBytes;
+    private boolean prewarm;
+    private long latency;
+    private int dbAttempts;
+
+    private GatedDBConnection conn;
+    private ProductController controller;
+
+    /*
+     * Reads the table when a BatchGetItem is sent, as the stand-in does, but holds
+     * the response back until the gate is opened
+     */
+    private static class GatedDBConnection extends InMemoryDBConnection {
+        volatile CountDownLatch gate;
+
+        GatedDBConnection(int numberItems) {
+            super(numberItems);
+        }
+
+        @Override
+        protected CompletableFuture<BatchGetItemResult> batchGetItemAsync(BatchGetItemRequest request) {
+            CountDownLatch held = gate;
+            CompletableFuture<BatchGetItemResult> response = super.batchGetItemAsync(request);
+            if (held == null) {
+                return response;
+            }
+            return response.thenApplyAsync(result -> {
+                Uninterruptibles.awaitUninterruptibly(held);
+                return result;
+            });
+        }
+    }
+
+    @Before
+    public void createController() throws Exception {
+        backupDir = Config.BACKUP_DIR;
+        partitions = Config.BACKUP_PARTITIONS;
+        cacheSize = Config.CACHE_SIZE;
+        cacheSegments = Config.CACHE_SEGMENTS;
+        streamBufferBytes = Config.STREAM_BUFFER_BYTES;
+        l2CacheBytes = Config.L2_CACHE_BYTES;
+        prewarm = Config.PREWARM_ENABLED;
+        latency = Config.MEMORY_DB_LATENCY;
+        dbAttempts = Config.DB_MAX_ATTEMPTS;
+
+        Config.BACKUP_DIR = folder.newFolder("backup").getPath();
+        Config.BACKUP_PARTITIONS = 16;
+        Config.CACHE_SIZE = 1000;
+        Config.L2_CACHE_BYTES = 1 << 20;
+        Config.PREWARM_ENABLED = false;
+        Config.MEMORY_DB_LATENCY = 5;
+        Config.DB_MAX_ATTEMPTS = 2;
+
+        conn = new GatedDBConnection(100);
+        controller = new ProductController(conn);
+    }
+
+    @After
+    public void destroyController() {
+        controller.destroy();
+
+        Config.BACKUP_DIR = backupDir;
+        Config.BACKUP_PARTITIONS = partitions;
+        Config.CACHE_SIZE = cacheSize;
+        Config.CACHE_SEGMENTS = cacheSegments;
+        Config.STREAM_BUFFER_BYTES = streamBufferBytes;
+        Config.L2_CACHE_BYTES = l2CacheBytes;
+        Config.PREWARM_ENABLED = prewarm;
+        Config.MEMORY_DB_LATENCY = latency;
+        Config.DB_MAX_ATTEMPTS = dbAttempts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ResponseEntity<T> await(DeferredResult<ResponseEntity<T>> result) {
+        long end = System.currentTimeMillis() + 5000;
+        while (!result.hasResult() && System.currentTimeMillis() < end) {
+            Uninterruptibles.sleepUninterruptibly(1, java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+        assertTrue("No response", result.hasResult());
+        return (ResponseEntity<T>) result.getResult();
+    }
+
+    private BigDecimal getPrice(String sku) {
+        ResponseEntity<Product> response = await(controller.getProductResponse(sku));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        return response.getBody().getPrice();
+    }
+
+    private void put(String sku, String price) {
+        ResponseEntity<String> response = await(controller.putProductResponse(sku,
+                new Product(sku, new BigDecimal(price), "Regular")));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    private void awaitBatchGetItems(long count) {
+        long end = System.currentTimeMillis() + 5000;
+        while (conn.getBatchGetItemCount() < count && System.currentTimeMillis() < end) {
+            Uninterruptibles.sleepUninterruptibly(1, java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+        assertTrue(conn.getBatchGetItemCount() >= count);
+    }
+
+    @Test
+    public void changeWhileFetchingIsNotUndoneByTheFetch() throws Exception {
+        // Wait for the rebuilder, which has no backup to load, so the cache is used
+        put(SKU, "1.00");
+
+        conn.gate = new CountDownLatch(1);
+        DeferredResult<ResponseEntity<Product>> stale = controller.getProductResponse(SKU);
+        awaitBatchGetItems(1);
+
+        // Changed after the fetch read the table, before the fetch's result is cached
+        put(SKU, "2.00");
+        conn.gate.countDown();
+        conn.gate = null;
+        assertEquals(new BigDecimal("1.00"), await(stale).getBody().getPrice());
+
+        assertEquals(new BigDecimal("2.00"), getPrice(SKU));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void metricsCountEachGetInTheTierWhichAnsweredIt() {
+        put(SKU, "1.00");
+        getPrice(SKU);
+        getPrice(SKU);
+        getPrice(SKU);
+
+        Map<String, Object> metrics = controller.getMetrics();
+        assertEquals("microseconds", metrics.get("latencyUnit"));
+        assertEquals(2 / 3.0, (double) metrics.get("cacheHitRate"), 0.0001);
+
+        Map<String, Map<String, Long>> latency = (Map<String, Map<String, Long>>) metrics.get("latency");
+        assertEquals(1, (long) latency.get("put").get("count"));
+        assertEquals(1, (long) latency.get("db_load").get("count"));
+        assertEquals(2, (long) latency.get("cache_hit").get("count"));
+        assertEquals(0, (long) latency.get("l2_hit").get("count"));
+        assertEquals(0, (long) latency.get("backup_hit").get("count"));
+        Map<String, Long> load = latency.get("db_load");
+        assertTrue(load.get("p50") > 0 && load.get("p50") <= load.get("max"));
+    }
+
+    @Test
+    public void batchGetRejectsNullSku() {
+        ResponseEntity<StreamingResponseBody> response = controller.batchGetProductsResponse(Arrays.asList(SKU, null));
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void batchGetEndsWithErrorWhenDatabaseFails() throws Exception {
+        // Cached, so it is written before the database is asked for the other
+        put(SKU, "1.00");
+        getPrice(SKU);
+        conn.setUnprocessedShare(1.0);
+
+        ResponseEntity<StreamingResponseBody> response = controller.batchGetProductsResponse(
+                Arrays.asList(SKU, "THING-00000043"));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+
+        String[] lines = new String(out.toByteArray(), Charsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains(SKU));
+        assertTrue(lines[1].startsWith("{\"error\":"));
+    }
+
+    @Test
+    public void exportWritesProductCachedAfterTheCacheWasWalkedOnce() throws Exception {
+        // A full cache of popular products, which turns a product requested once away
+        // to the off-heap tier
+        controller.destroy();
+        Config.CACHE_SIZE = 200;
+        Config.CACHE_SEGMENTS = 1;
+        conn = new GatedDBConnection(1000);
+        controller = new ProductController(conn);
+        put(SKU, "1.00");
+        for (int i = 100; i < 300; i++) {
+            getPrice("THING-" + String.format("%08d", i));
+            getPrice("THING-" + String.format("%08d", i));
+        }
+        String promoted = "THING-00000500";
+        getPrice(promoted);
+
+        // Requested again as the cache is written out, until it is admitted to the
+        // cache in place of a product already written
+        Config.STREAM_BUFFER_BYTES = 256;
+        ResponseEntity<StreamingResponseBody> response = controller.exportProductsResponse();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            private boolean requested = false;
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (!requested) {
+                    requested = true;
+                    for (int i = 0; i < 4; i++) {
+                        getPrice(promoted);
+                    }
+                }
+                super.write(b, off, len);
+            }
+
+            @Override
+            public void write(int b) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+        };
+        try {
+            response.getBody().writeTo(out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        Set<String> exported = new HashSet<String>();
+        for (String line : new String(out.toByteArray(), Charsets.UTF_8).split("\n")) {
+            String sku = line.substring(line.indexOf("THING-"), line.indexOf("THING-") + 14);
+            assertTrue("Exported twice: " + sku, exported.add(sku));
+        }
+        assertTrue(exported.contains(promoted));
+        assertEquals(201, exported.size());
+    }
+}
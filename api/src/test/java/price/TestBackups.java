@@ -0,0 +1,90 @@
+package price;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Builds the products, backups and caches the tests run against.
+ */
+public class TestBackups {
+
+    /**
+     * Generate products named like those in scripts/DB/buildtestdb.js
+     * @param count The number of products
+     * @return The products, in SKU order
+     */
+    public static ArrayList<Product> generateProducts(int count) {
+        ArrayList<Product> products = new ArrayList<Product>(count);
+        for (int i = 0; i < count; i++) {
+            products.add(new Product("THING-" + String.format("%08d", i), BigDecimal.valueOf(100 + i, 2), "Regular"));
+        }
+        return products;
+    }
+
+    /**
+     * Write products into a backup directory laid out as binary partition files, the
+     * way the previous run of the service would have left them. Config.BACKUP_PARTITIONS
+     * must be set first.
+     * @param backupDir The empty backup directory
+     * @param products The products to back up
+     * @throws IOException
+     */
+    public static void createBackup(File backupDir, List<Product> products) throws IOException {
+        // A throwaway handler to map SKUs to partitions
+        File scratchDir = Files.createTempDirectory("price-test-scratch").toFile();
+        CacheBackupHandler hasher = new CacheBackupHandler(scratchDir);
+
+        List<List<Product>> partitions = new ArrayList<List<Product>>(Config.BACKUP_PARTITIONS);
+        for (int i = 0; i < Config.BACKUP_PARTITIONS; i++) {
+            partitions.add(new ArrayList<Product>());
+        }
+        for (Product product : products) {
+            partitions.get(hasher.getPartitionNumber(product.getSku())).add(product);
+        }
+
+        for (int i = 0; i < Config.BACKUP_PARTITIONS; i++) {
+            File partition = new File(backupDir, Config.BACKUP_FILENAME + Integer.toString(i));
+            BinaryPartitionUtils.writeProductsToBinaryFile(partitions.get(i), partition);
+        }
+
+        hasher.close();
+        delete(scratchDir);
+    }
+
+    /**
+     * Build a cache which never loads from the database
+     * @param size The most products the cache holds
+     * @return An empty cache
+     */
+    public static LoadingCache<String, Product> createCache(long size) {
+        return CacheBuilder.newBuilder().maximumSize(size)
+                .build(new CacheLoader<String, Product>() {
+                    @Override
+                    public Product load(String sku) throws Exception {
+                        throw new Exception("Item " + sku + " not found");
+                    }
+                });
+    }
+
+    /**
+     * Delete a directory and everything under it
+     * @param file The directory to delete
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,120 @@
+package price.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import price.BinaryPartitionUtils;
+import price.CacheBackupHandler;
+import price.Config;
+import price.Product;
+
+/**
+ * Generates the products and backup directories that the benchmarks run against.
+ * Everything is generated from a fixed seed so that runs before and after a change
+ * measure the same data.
+ */
+public class BackupFixture {
+
+    private static final long SEED = 42L;
+
+    /**
+     * Generate products named like those in scripts/DB/buildtestdb.js
+     * @param count The number of products
+     * @return The products, in SKU order
+     */
+    public static ArrayList<Product> generateProducts(int count) {
+        ArrayList<Product> products = new ArrayList<Product>(count);
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < count; i++) {
+            String sku = "THING-" + String.format("%08d", i);
+            // Random price between $1 and $1000
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(99901) + 100, 2);
+            products.add(new Product(sku, price, "Regular"));
+        }
+
+        return products;
+    }
+
+    /**
+     * Set the Config values which size the backup. Must be called before any
+     * CacheBackupHandler is created.
+     * @param partitions The number of backup partitions
+     * @param products The number of products in the backup
+     */
+    public static void configure(int partitions, int products) {
+        Config.BACKUP_PARTITIONS = partitions;
+        Config.CACHE_SIZE = Math.max(products, 1);
+    }
+
+    /**
+     * Write products into a new backup directory, laid out as binary partition files
+     * the way the previous run of the service would have left them
+     * @param products The products to back up
+     * @return The new backup directory
+     * @throws IOException
+     */
+    public static File createBackup(List<Product> products) throws IOException {
+        File backupDir = Files.createTempDirectory("price-bench-backup").toFile();
+
+        // A throwaway handler to map SKUs to partitions
+        File scratchDir = Files.createTempDirectory("price-bench-scratch").toFile();
+        CacheBackupHandler hasher = new CacheBackupHandler(scratchDir);
+
+        List<List<Product>> partitions = new ArrayList<List<Product>>(Config.BACKUP_PARTITIONS);
+        for (int i = 0; i < Config.BACKUP_PARTITIONS; i++) {
+            partitions.add(new ArrayList<Product>());
+        }
+        for (Product product : products) {
+            partitions.get(hasher.getPartitionNumber(product.getSku())).add(product);
+        }
+
+        for (int i = 0; i < Config.BACKUP_PARTITIONS; i++) {
+            File partition = new File(backupDir, Config.BACKUP_FILENAME + Integer.toString(i));
+            BinaryPartitionUtils.writeProductsToBinaryFile(partitions.get(i), partition);
+        }
+
+        hasher.close();
+        delete(scratchDir);
+        return backupDir;
+    }
+
+    /**
+     * Build a cache like the service's, which never loads from the database
+     * @return An empty cache large enough to hold Config.CACHE_SIZE products
+     */
+    public static LoadingCache<String, Product> createCache() {
+        // Guava evicts per segment before the total reaches maximumSize, so leave room
+        // for every product in the backup
+        return CacheBuilder.newBuilder().maximumSize(Config.CACHE_SIZE + Config.CACHE_SIZE / 4)
+                .build(new CacheLoader<String, Product>() {
+                    @Override
+                    public Product load(String sku) throws Exception {
+                        throw new Exception("Item " + sku + " not found");
+                    }
+                });
+    }
+
+    /**
+     * Delete a directory and everything under it
+     * @param file The directory to delete
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,82 @@
+package price.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import price.CacheBackupHandler;
+import price.Config;
+import price.Product;
+
+/**
+ * Lookups and writes against a backup left by a previous run, as seen by requests
+ * while the cache is rebuilding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class BackupHandlerBenchmark {
+
+    @Param({"500", "2000"})
+    public int partitions;
+
+    @Param({"100", "250"})
+    public int partitionSize;
+
+    @Param({"stream", "mmap"})
+    public String reader;
+
+    private File backupDir;
+    private List<Product> products;
+    private CacheBackupHandler handler;
+
+    @Setup
+    public void setup() throws IOException {
+        BackupFixture.configure(partitions, partitions * partitionSize);
+        Config.BACKUP_READER = reader;
+
+        products = BackupFixture.generateProducts(partitions * partitionSize);
+        backupDir = BackupFixture.createBackup(products);
+        handler = new CacheBackupHandler(backupDir);
+
+        // Lookups only reach the partition files for SKUs in the filter
+        handler.refreshFilter();
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.close();
+        BackupFixture.delete(backupDir);
+    }
+
+    @Benchmark
+    public Product getItemFromBackup() {
+        Product product = products.get(ThreadLocalRandom.current().nextInt(products.size()));
+        return handler.getItemFromBackup(product.getSku());
+    }
+
+    @Benchmark
+    public void backupItem() {
+        Product product = products.get(ThreadLocalRandom.current().nextInt(products.size()));
+        handler.backupItem(new Product(product.getSku(), BigDecimal.ONE, product.getType()));
+    }
+}
@@ -0,0 +1,74 @@
+package price.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import price.CacheBackupHandler;
+import price.Product;
+
+/**
+ * Membership checks against the backup filter, and rebuilding it from a full backup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class FilterBenchmark {
+
+    @Param({"200000"})
+    public int keys;
+
+    private File backupDir;
+    private List<Product> products;
+    private CacheBackupHandler handler;
+
+    @Setup
+    public void setup() throws IOException {
+        BackupFixture.configure(2000, keys);
+
+        products = BackupFixture.generateProducts(keys);
+        backupDir = BackupFixture.createBackup(products);
+        handler = new CacheBackupHandler(backupDir);
+        handler.refreshFilter();
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.close();
+        BackupFixture.delete(backupDir);
+    }
+
+    @Benchmark
+    public boolean mightContainHit() {
+        return handler.mightContain(products.get(ThreadLocalRandom.current().nextInt(keys)).getSku());
+    }
+
+    @Benchmark
+    public boolean mightContainMiss() {
+        return handler.mightContain("MISSING-" + ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void refreshFilter() {
+        handler.refreshFilter();
+    }
+}
@@ -0,0 +1,68 @@
+package price.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import price.CacheBackupUtils;
+import price.Product;
+
+/**
+ * Reading and writing one partition in the JSON format that backups used before
+ * the binary partition format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class JSONBackupBenchmark {
+
+    @Param({"100", "250", "1000"})
+    public int partitionSize;
+
+    private File dir;
+    private File readFile;
+    private File writeFile;
+    private ArrayList<Product> products;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("price-bench-json").toFile();
+        readFile = new File(dir, "read.json");
+        writeFile = new File(dir, "write.json");
+        products = BackupFixture.generateProducts(partitionSize);
+        CacheBackupUtils.writeProductsToJSONFile(products, readFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BackupFixture.delete(dir);
+    }
+
+    @Benchmark
+    public ArrayList<Product> readProductsFromJSONFile() {
+        return CacheBackupUtils.readProductsFromJSONFile(readFile);
+    }
+
+    @Benchmark
+    public void writeProductsToJSONFile() {
+        CacheBackupUtils.writeProductsToJSONFile(products, writeFile);
+    }
+}
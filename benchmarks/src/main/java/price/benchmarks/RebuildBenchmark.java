@@ -0,0 +1,84 @@
+package price.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.cache.LoadingCache;
+
+import price.CacheBackupHandler;
+import price.CacheRebuilder;
+import price.Config;
+import price.InvalidationCounter;
+import price.LatencyMetrics;
+import price.OffHeapProductStore;
+import price.Product;
+
+/**
+ * A full rebuild of the cache from a backup left by a previous run. A rebuild
+ * consumes its snapshot, so every iteration runs once against a freshly
+ * generated backup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(2)
+public class RebuildBenchmark {
+
+    @Param({"500", "2000"})
+    public int partitions;
+
+    @Param({"100", "250"})
+    public int partitionSize;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private List<Product> products;
+    private File backupDir;
+    private CacheBackupHandler handler;
+    private LoadingCache<String, Product> cache;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        BackupFixture.configure(partitions, partitions * partitionSize);
+        Config.REBUILD_THREADS = threads;
+        products = BackupFixture.generateProducts(partitions * partitionSize);
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        backupDir = BackupFixture.createBackup(products);
+        handler = new CacheBackupHandler(backupDir);
+        cache = BackupFixture.createCache();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        handler.close();
+        BackupFixture.delete(backupDir);
+    }
+
+    @Benchmark
+    public long rebuildCache() {
+        new CacheRebuilder(handler, cache, new OffHeapProductStore(0, 1, product -> {}), new InvalidationCounter(1), new LatencyMetrics()).rebuildCache();
+        return cache.size();
+    }
+}
@@ -0,0 +1,207 @@
+package price.loadgen;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.springframework.boot.SpringApplication;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import price.Application;
+import price.Config;
+import price.InMemoryDBConnection;
+
+/**
+ * Open-loop load generator for the price service.
+ *
+ * Requests are scheduled at a constant rate whether or not earlier requests have
+ * completed, and each latency is measured from the time its request was due to be
+ * sent rather than the time it actually was. A stalled service therefore shows up
+ * as long latencies for every request it held up, instead of as a quiet period
+ * with few requests (coordinated omission).
+ *
+ * SKUs are picked with Zipfian popularity and a share of the requests are PUTs.
+ * Results are reported separately for requests sent while the service was
+ * rebuilding its cache and once the cache was ready.
+ *
+ * Options are given as key=value arguments, see Options for the defaults.
+ * With embedded=true the service is started in this process against the
+ * in-process stand-in database, so nothing else needs to be running.
+ */
+public class LoadGenerator {
+
+    /**
+     * Command line options
+     */
+    static class Options {
+        String url = "http://localhost:8181";
+        int rate = 1000; // requests per second
+        int duration = 60; // seconds
+        int skus = 500000;
+        double zipf = 0.99;
+        double putRatio = 0.05;
+        int connections = 256; // requests in flight at once
+        long seed = 42L;
+        boolean embedded = false;
+        String backupDir = Config.BACKUP_DIR; // for embedded=true
+        boolean prewarm = Config.PREWARM_ENABLED; // for embedded=true, scan the database when there is no backup
+
+        Options(String[] args) {
+            Map<String, String> values = new HashMap<String, String>();
+            for (String arg : args) {
+                int split = arg.indexOf('=');
+                if (split < 0) {
+                    throw new IllegalArgumentException("Expected key=value but got " + arg);
+                }
+                values.put(arg.substring(0, split), arg.substring(split + 1));
+            }
+
+            url = values.containsKey("url") ? values.remove("url") : url;
+            rate = values.containsKey("rate") ? Integer.parseInt(values.remove("rate")) : rate;
+            duration = values.containsKey("duration") ? Integer.parseInt(values.remove("duration")) : duration;
+            skus = values.containsKey("skus") ? Integer.parseInt(values.remove("skus")) : skus;
+            zipf = values.containsKey("zipf") ? Double.parseDouble(values.remove("zipf")) : zipf;
+            putRatio = values.containsKey("putRatio") ? Double.parseDouble(values.remove("putRatio")) : putRatio;
+            connections = values.containsKey("connections") ? Integer.parseInt(values.remove("connections")) : connections;
+            seed = values.containsKey("seed") ? Long.parseLong(values.remove("seed")) : seed;
+            embedded = values.containsKey("embedded") ? Boolean.parseBoolean(values.remove("embedded")) : embedded;
+            backupDir = values.containsKey("backupDir") ? values.remove("backupDir") : backupDir;
+            prewarm = values.containsKey("prewarm") ? Boolean.parseBoolean(values.remove("prewarm")) : prewarm;
+
+            if (!values.isEmpty()) {
+                throw new IllegalArgumentException("Unknown options " + values.keySet());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+        URL base = new URL(options.url);
+
+        if (options.embedded) {
+            startEmbeddedService(options, base.getPort());
+        }
+
+        ServiceMonitor monitor = new ServiceMonitor(options.url);
+        if (!monitor.awaitService(TimeUnit.MINUTES.toMillis(2))) {
+            System.out.println("Service at " + options.url + " did not answer on /metrics");
+            System.exit(1);
+        }
+        monitor.start();
+
+        System.out.println("Generating " + options.rate + " requests/s for " + options.duration + "s over "
+                + options.skus + " SKUs (zipf " + options.zipf + ", " + (int) (options.putRatio * 100) + "% PUT)");
+
+        PhaseStats rebuilding = new PhaseStats("Rebuilding");
+        PhaseStats ready = new PhaseStats("Cache ready");
+        ExecutorService senders = Executors.newFixedThreadPool(options.connections,
+                new ThreadFactoryBuilder().setNameFormat("Sender %d").setDaemon(true).build());
+
+        ZipfianGenerator keys = new ZipfianGenerator(options.skus, options.zipf);
+        Random random = new Random(options.seed);
+        long interval = TimeUnit.SECONDS.toNanos(1) / options.rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(options.duration);
+
+        for (long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            final long dueAt = due;
+            final String sku = "THING-" + String.format("%08d", keys.next(random));
+            final boolean put = random.nextDouble() < options.putRatio;
+            final BigDecimal price = BigDecimal.valueOf(random.nextInt(99901) + 100, 2);
+            final PhaseStats phase = monitor.isRebuilding() ? rebuilding : ready;
+
+            senders.execute(() -> {
+                int status = put ? sendPut(options.url, sku, price) : sendGet(options.url, sku);
+                phase.record(put, status, System.nanoTime() - dueAt);
+            });
+        }
+
+        senders.shutdown();
+        if (!senders.awaitTermination(1, TimeUnit.MINUTES)) {
+            System.out.println("Requests still outstanding after 1 minute are not reported");
+        }
+        monitor.interrupt();
+
+        long readyAt = monitor.getReadyAt();
+        long rebuildEnd = readyAt < 0 ? end : Math.max(start, Math.min(readyAt, end));
+        rebuilding.report((rebuildEnd - start) / 1e9);
+        ready.report((end - rebuildEnd) / 1e9);
+
+        System.exit(0);
+    }
+
+    private static void startEmbeddedService(Options options, int port) {
+        Config.DB_URL = InMemoryDBConnection.URL_SCHEME;
+        Config.MEMORY_DB_ITEMS = options.skus;
+        Config.BACKUP_DIR = options.backupDir;
+        Config.PREWARM_ENABLED = options.prewarm;
+
+        System.out.println("Starting the service on port " + port + " with backups in "
+                + new File(options.backupDir).getAbsolutePath());
+        SpringApplication.run(Application.class, "--server.port=" + port);
+    }
+
+    private static int sendGet(String url, String sku) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + "/product?sku=" + sku).openConnection();
+            return finish(connection);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static int sendPut(String url, String sku, BigDecimal price) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + "/product/" + sku).openConnection();
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+
+            String body = "{\"sku\":\"" + sku + "\",\"price\":" + price.toPlainString() + ",\"type\":\"Regular\"}";
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body.getBytes(Charsets.UTF_8));
+            } finally {
+                out.close();
+            }
+
+            return finish(connection);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read the whole response so the connection can be reused
+     */
+    private static int finish(HttpURLConnection connection) throws Exception {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try {
+                ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            } finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,76 @@
+package price.loadgen;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import price.LatencyHistogram;
+
+/**
+ * Latencies and outcomes of the requests sent during one phase of a run
+ */
+public class PhaseStats {
+
+    private static final int STRIPES = 16;
+
+    final private String name;
+    final private LatencyHistogram gets = new LatencyHistogram(STRIPES);
+    final private LatencyHistogram puts = new LatencyHistogram(STRIPES);
+    final private LongAdder ok = new LongAdder();
+    final private LongAdder notFound = new LongAdder();
+    final private LongAdder failed = new LongAdder();
+
+    /**
+     * Class constructor
+     * @param name The phase's name, used in the report
+     */
+    public PhaseStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record a completed request
+     * @param put Whether the request was a PUT
+     * @param status The HTTP status, or -1 if the request failed without one
+     * @param latencyNanos The time from when the request was due to be sent until it completed
+     */
+    public void record(boolean put, int status, long latencyNanos) {
+        (put ? puts : gets).recordNanos(latencyNanos);
+
+        if (status == 200) {
+            ok.increment();
+        } else if (status == 404) {
+            notFound.increment();
+        } else {
+            failed.increment();
+        }
+    }
+
+    /**
+     * Print the phase's results
+     * @param seconds How long the phase lasted
+     */
+    public void report(double seconds) {
+        long requests = ok.sum() + notFound.sum() + failed.sum();
+
+        System.out.println("==== " + name + " ====");
+        if (requests == 0) {
+            System.out.println("No requests");
+            return;
+        }
+
+        System.out.println(String.format("Requests: %d in %.1fs (%.0f/s), %d ok, %d not found, %d failed",
+                requests, seconds, requests / Math.max(seconds, 0.001), ok.sum(), notFound.sum(), failed.sum()));
+        printLatency("GET", gets.getSummary());
+        printLatency("PUT", puts.getSummary());
+    }
+
+    private static void printLatency(String op, Map<String, Long> summary) {
+        if (summary.get("count") == 0) {
+            return;
+        }
+
+        System.out.println(String.format("%s latency (ms): count=%d p50=%.2f p99=%.2f p999=%.2f max=%.2f",
+                op, summary.get("count"), summary.get("p50") / 1000.0, summary.get("p99") / 1000.0,
+                summary.get("p999") / 1000.0, summary.get("max") / 1000.0));
+    }
+}
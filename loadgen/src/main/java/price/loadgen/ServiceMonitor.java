@@ -0,0 +1,112 @@
+package price.loadgen;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import com.google.common.base.Charsets;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Polls the service's /metrics endpoint to tell whether its cache is still being
+ * rebuilt, so that each request can be reported under the phase it was sent in.
+ */
+public class ServiceMonitor extends Thread {
+
+    private static final long POLL_INTERVAL = 250; // ms
+
+    final private URL metricsUrl;
+    private volatile boolean rebuilding = true;
+    private volatile long readyAt = -1; // System.nanoTime() when the rebuild was first seen finished
+
+    /**
+     * Class constructor
+     * @param baseUrl The URL of the service, e.g. http://localhost:8181
+     * @throws Exception if the URL is malformed
+     */
+    public ServiceMonitor(String baseUrl) throws Exception {
+        this.metricsUrl = new URL(baseUrl + "/metrics");
+        this.setName("Service Monitor");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Entry point to start a new thread
+     */
+    public void run() {
+        while (!isInterrupted() && rebuilding) {
+            try {
+                if (!poll()) {
+                    rebuilding = false;
+                    readyAt = System.nanoTime();
+                    System.out.println("Service cache is ready");
+                }
+            } catch (Exception e) {
+                // Not up yet, or too busy to answer; try again
+            }
+
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait until the service answers on /metrics
+     * @param timeout How long to wait in milliseconds
+     * @return Returns true if the service answered in time
+     */
+    public boolean awaitService(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                rebuilding = poll();
+                return true;
+            } catch (Exception e) {
+                try {
+                    Thread.sleep(POLL_INTERVAL);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true until the service reports that its cache has been rebuilt
+     * @return Returns true while the service is rebuilding
+     */
+    public boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    /**
+     * Get the time at which the rebuild was seen to finish
+     * @return The System.nanoTime() of the first poll that saw the cache ready, or -1
+     */
+    public long getReadyAt() {
+        return readyAt;
+    }
+
+    private boolean poll() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) metricsUrl.openConnection();
+        connection.setConnectTimeout(1000);
+        connection.setReadTimeout(5000);
+
+        Reader in = new InputStreamReader(connection.getInputStream(), Charsets.UTF_8);
+        try {
+            JsonObject metrics = new JsonParser().parse(in).getAsJsonObject();
+            return metrics.get("rebuilding").getAsBoolean();
+        } finally {
+            in.close();
+        }
+    }
+}
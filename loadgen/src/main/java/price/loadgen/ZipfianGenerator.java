@@ -0,0 +1,57 @@
+package price.loadgen;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks item numbers in [0, items) with Zipfian popularity: the item of rank k is
+ * chosen with probability proportional to 1 / k^exponent. Ranks are scattered
+ * over the item numbers so the most popular items aren't all neighbours.
+ */
+public class ZipfianGenerator {
+
+    private static final long SCATTER = 1000003L; // prime
+
+    final private int items;
+    final private double[] cumulative;
+    final private long scatter;
+
+    /**
+     * Class constructor
+     * @param items The number of items
+     * @param exponent The skew. 0 is uniform, around 1 is typical of web traffic
+     */
+    public ZipfianGenerator(int items, double exponent) {
+        this.items = items;
+        this.cumulative = new double[items];
+
+        double sum = 0;
+        for (int rank = 0; rank < items; rank++) {
+            sum += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < items; rank++) {
+            cumulative[rank] /= sum;
+        }
+
+        // Multiplying by a number coprime with items maps ranks onto items one to one
+        boolean coprime = BigInteger.valueOf(SCATTER).gcd(BigInteger.valueOf(items)).equals(BigInteger.ONE);
+        this.scatter = coprime ? SCATTER : 1;
+    }
+
+    /**
+     * Pick the next item
+     * @param random The source of randomness
+     * @return An item number in [0, items)
+     */
+    public int next(Random random) {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (rank < 0) {
+            rank = -rank - 1;
+        }
+        rank = Math.min(rank, items - 1);
+
+        return (int) ((rank * scatter) % items);
+    }
+}